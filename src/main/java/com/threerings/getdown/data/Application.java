@@ -13,6 +13,7 @@ import com.threerings.getdown.util.*;
 import javax.swing.*;
 import java.io.*;
 import java.lang.reflect.Method;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.channels.FileChannel;
@@ -190,7 +191,7 @@ public class Application {
         _appbase = config.getAppbase();
 
         // extract our version information
-        _version = VersionUtil.getLatestVersion(getAppdir(), _appbase);
+        _version = getLatestVersion(_appbase);
 
         String prefix = StringUtil.isBlank(_appid) ? "" : (_appid + ".");
 
@@ -246,6 +247,44 @@ public class Application {
         // determine whether we want to allow offline operation (defaults to false)
         _allowOffline = Boolean.parseBoolean(config.getString("allow_offline"));
 
+        // determine how many resources we may download at once (0 means use the default)
+        _maxConcurrentDownloads = config.getInteger("max_concurrent_downloads", 0);
+
+        // determine how many threads verify resources (0 means one per core)
+        _verifyThreads = config.getInteger("verify_threads", 0);
+
+        // determine the size (in bytes) above which files are downloaded in segments (0 disables
+        // segmented downloads, -1 means use the default)
+        _segmentThreshold = config.getInteger("segment_threshold", -1);
+
+        // determine whether to take pains to reuse connections when downloading
+        _keepAliveDownloads = config.getBoolean("keep_alive_downloads");
+
+        // determine the bandwidth (in kilobytes per second) we may use when downloading, both
+        // normally and when updating silently in the background (0 means unlimited)
+        _maxBandwidth = config.getInteger("max_bandwidth", 0);
+        _maxSilentBandwidth = config.getInteger("max_bandwidth_silent", _maxBandwidth);
+
+        // determine whether we may launch the app before its non-critical resources are in, and
+        // which resources (beyond its code) it needs in order to start up
+        _earlyLaunch = config.getBoolean("early_launch");
+        Collections.addAll(_critical, config.getStringArray("critical"));
+        _critical.addAll(DeferredDownloads.getCritical(getAppdir()));
+
+        // note the mirrors from which we may download our resources (in addition to the appbase)
+        for (String mirror : config.getStringArray("mirror")) {
+            try {
+                _mirrors.add(new URL(mirror.endsWith("/") ? mirror : (mirror + "/")));
+            } catch (MalformedURLException mue) {
+                log.warning("Ignoring invalid mirror", "mirror", mirror, "error", mue);
+            }
+        }
+
+        // determine where (if anywhere) to keep the resources we share with other applications on
+        // this machine, and how large (in megabytes) that cache may grow
+        _resourceCache = config.getString("resource_cache");
+        _resourceCacheSize = config.getInteger("resource_cache_size", 0);
+
         // look for a debug.txt file which causes us to run in java.exe on Windows so that we can
         // obtain a thread dump of the running JVM
         _windebug = getLocalPath("debug.txt").exists();
@@ -263,6 +302,8 @@ public class Application {
 
     private void clear() {
         _resources.clear();
+        _mirrors.clear();
+        _critical.clear();
         _jvmargs.clear();
         _appargs.clear();
         _txtJvmArgs.clear();
@@ -330,6 +371,111 @@ public class Application {
         return _allowOffline;
     }
 
+    /**
+     * Returns the maximum number of resources to download concurrently, or zero if neither the
+     * configuration nor the system properties specify a limit.
+     */
+    public int getMaxConcurrentDownloads ()
+    {
+        int maxConcurrent = SysProps.maxConcurrentDownloads();
+        return (maxConcurrent > 0) ? maxConcurrent : _maxConcurrentDownloads;
+    }
+
+    /**
+     * Returns the number of threads with which to verify resources: that specified by the system
+     * properties or the configuration, or one per core if neither specifies it.
+     */
+    public int getVerifyThreads ()
+    {
+        int threads = SysProps.verifyThreads();
+        if (threads <= 0) {
+            threads = _verifyThreads;
+        }
+        return (threads > 0) ? threads : ResourceVerifier.getDefaultThreads();
+    }
+
+    /**
+     * Returns the size in bytes above which a single resource is downloaded in several segments at
+     * once, zero if segmented downloads are disabled or -1 if the configuration doesn't say.
+     */
+    public int getSegmentThreshold ()
+    {
+        return _segmentThreshold;
+    }
+
+    /**
+     * Returns true if resources should be downloaded over persistent (keep-alive) connections,
+     * reused from one file to the next.
+     */
+    public boolean useKeepAliveDownloads ()
+    {
+        return _keepAliveDownloads;
+    }
+
+    /**
+     * Returns the number of bytes per second we may use to download resources, or zero if our
+     * bandwidth is not limited.
+     *
+     * @param silent whether we are updating silently in the background.
+     */
+    public long getMaxBandwidth (boolean silent)
+    {
+        return Math.max(0, silent ? _maxSilentBandwidth : _maxBandwidth) * 1024L;
+    }
+
+    /**
+     * Returns true if the app may be launched as soon as its launch-critical resources are valid,
+     * with the rest being downloaded in the background.
+     */
+    public boolean allowEarlyLaunch ()
+    {
+        return _earlyLaunch;
+    }
+
+    /**
+     * Returns true if the supplied resource must be valid before the app can be launched: its
+     * code and any resources configured (or recorded by the app) as launch-critical.
+     */
+    public boolean isLaunchCritical (Resource rsrc)
+    {
+        return rsrc.getType() == ResourceType.CODE_FILE || _critical.contains(rsrc.getPath());
+    }
+
+    /**
+     * Returns the (versioned) URLs of the mirrors of our appbase, if any.
+     */
+    public List<URL> getMirrors ()
+    {
+        List<URL> mirrors = new ArrayList<URL>();
+        for (URL mirror : _mirrors) {
+            mirrors.add(VersionUtil.createVersionedUrl(mirror, getVersion()));
+        }
+        return mirrors;
+    }
+
+    /**
+     * Returns the directory of the resource cache shared by the applications on this machine, or
+     * null if we don't use one. A relative directory is taken to be relative to the user's home
+     * directory.
+     */
+    public File getResourceCacheDir ()
+    {
+        if (StringUtil.isBlank(_resourceCache)) {
+            return null;
+        }
+        File dir = new File(_resourceCache);
+        return dir.isAbsolute() ? dir : new File(System.getProperty("user.home"), _resourceCache);
+    }
+
+    /**
+     * Returns the size in bytes to which the shared resource cache may grow, or zero if the
+     * configuration doesn't say.
+     */
+    public long getResourceCacheSize ()
+    {
+        return Math.max(0, _resourceCacheSize) * 1024L * 1024L;
+    }
+
     /**
      * Attempts to redownload the <code>getdown.txt</code> file based on information parsed from a
      * previous call to {@link #init}.
@@ -646,7 +792,7 @@ public class Application {
 
         // if we are a versioned application, check for latest version
         if (VersionUtil.isValidVersion(getVersion())) {
-            latestVersion = VersionUtil.getLatestVersion(getAppdir(), ConfigUtil.readConfigFile(getAppdir(), false).getAppbase());
+            latestVersion = getLatestVersion(ConfigUtil.readConfigFile(getAppdir(), false).getAppbase());
         }
 
         if (VersionUtil.compareVersions(latestVersion, getVersion()) > 0) {
@@ -672,55 +818,95 @@ public class Application {
         Collection<Resource> rsrcs = getActiveResources().getResources(ResourceType.CONFIGURABLE_RESOURCES);
         List<Resource> failures = new ArrayList<Resource>();
 
-        // total up the file size of the resources to validate
-        long totalSize = 0L;
+        // total up the file size of the resources to validate, noting those that we've already
+        // validated (against their current digests) as we go
+        long totalSize = 0L, validSize = 0L;
+        List<Resource> unverified = new ArrayList<Resource>();
         for (Resource rsrc : rsrcs) {
-            totalSize += rsrc.getLocalFile().length();
+            long size = rsrc.getLocalFile().length();
+            totalSize += size;
+            if (rsrc.isMarkedValid(getExpectedDigest(rsrc))) {
+                if (alreadyValid != null) {
+                    alreadyValid[0]++;
+                }
+                validSize += size;
+            } else {
+                unverified.add(rsrc);
+            }
         }
 
+        // then verify the rest, in parallel
         MetaProgressObserver mpobs = new MetaProgressObserver(obs, totalSize);
+        mpobs.startConcurrentElement(validSize).progress(100);
+        Set<Resource> verified = new ResourceVerifier(digests, getVerifyThreads()).verify(
+            unverified, mpobs);
+
+        // unpacking writes into the appdir, so we do it one resource at a time, and in order
         boolean noUnpack = SysProps.noUnpack();
-        for (Resource rsrc : rsrcs) {
+        for (Resource rsrc : unverified) {
             if (Thread.interrupted()) {
                 throw new InterruptedException("m.applet_stopped");
             }
-            mpobs.startElement(rsrc.getLocalFile().length());
-
-            if (rsrc.isMarkedValid()) {
-                if (alreadyValid != null) {
-                    alreadyValid[0]++;
-                }
-                mpobs.progress(100);
-                continue;
+            if (!verified.contains(rsrc) || !installResource(rsrc, noUnpack, unpacked)) {
+                failures.add(rsrc);
             }
+        }
 
-            try {
-                if (DigestsUtil.validateResourceDigest(rsrc, digests, mpobs)) {
-                    // unpack this resource if appropriate
-                    if (noUnpack || !rsrc.shouldUnpack()) {
-                        // finally note that this resource is kosher
-                        rsrc.markAsValid();
-                        continue;
-                    }
-                    if (rsrc.unpack()) {
-                        unpacked.add(rsrc);
-                        rsrc.markAsValid();
-                        continue;
-                    }
-                    log.info("Failure unpacking resource", "rsrc", rsrc);
-                }
+        return (failures.size() == 0) ? null : failures;
+    }
 
-            } catch (Exception e) {
-                log.info("Failure validating resource. Requesting redownload...",
-                    "rsrc", rsrc, "error", e);
+    /**
+     * Verifies the supplied resource on its own, unpacking it if appropriate and marking it valid
+     * if it checks out. This allows resources to be handed over one at a time, rather than once
+     * all of them have been verified.
+     *
+     * @param unpacked a set to populate with the resource if it is unpacked.
+     * @return true if the resource is valid and ready to use.
+     */
+    public boolean verifyResource (Resource rsrc, Set<Resource> unpacked)
+    {
+        if (rsrc.isMarkedValid(getExpectedDigest(rsrc))) {
+            return true;
+        }
+        return DigestsUtil.validateLocalResourceDigest(rsrc, digests, null) &&
+            installResource(rsrc, SysProps.noUnpack(), unpacked);
+    }
 
-            } finally {
-                mpobs.progress(100);
+    /**
+     * Unpacks the supplied (verified) resource if appropriate and marks it valid.
+     *
+     * @return false if the resource could not be unpacked.
+     */
+    protected boolean installResource (Resource rsrc, boolean noUnpack, Set<Resource> unpacked)
+    {
+        try {
+            // unpack this resource if appropriate
+            if (noUnpack || !rsrc.shouldUnpack()) {
+                // finally note that this resource is kosher
+                rsrc.markAsValid(getExpectedDigest(rsrc));
+                return true;
             }
-            failures.add(rsrc);
+            if (rsrc.unpack()) {
+                unpacked.add(rsrc);
+                rsrc.markAsValid(getExpectedDigest(rsrc));
+                return true;
+            }
+            log.info("Failure unpacking resource", "rsrc", rsrc);
+
+        } catch (Exception e) {
+            log.info("Failure validating resource. Requesting redownload...",
+                "rsrc", rsrc, "error", e);
         }
+        return false;
+    }
 
-        return (failures.size() == 0) ? null : failures;
+    /**
+     * Returns the digest that the supplied resource should have, or null if we don't know it.
+     */
+    protected String getExpectedDigest (Resource rsrc)
+    {
+        return (digests != null && digests.hasResourceDigest(rsrc)) ?
+            digests.getResourceDigest(rsrc) : null;
     }
 
     /**
@@ -758,12 +944,37 @@ public class Application {
     }
 
     /**
-     * Clears all validation marker files.
+     * Determines the latest version of our application at the given appbase. Both {@link #init}
+     * and {@link #verifyMetadata} want to know this, so we ask the server only once per appbase.
+     */
+    private String getLatestVersion(URL appbase) throws IOException {
+        String key = appbase.toString();
+        if (!key.equals(_latestVersionBase)) {
+            _latestVersion = VersionUtil.getLatestVersion(getAppdir(), appbase);
+            _latestVersionBase = key;
+        }
+        return _latestVersion;
+    }
+
+    /**
+     * Clears the validation markers of all of our resources.
      */
     private void clearValidationMarkers() {
+        List<String> paths = new ArrayList<String>();
         for (Resource resource : getActiveResources().getResources(ResourceType.CONFIGURABLE_RESOURCES)) {
-            resource.clearMarker();
+            paths.add(resource.getPath());
+            // an install that predates the index may still have a marker file per resource
+            ValidationIndex.deleteLegacyMarker(resource.getLocalFile());
         }
+        ValidationIndex.get(getAppdir()).clear(paths);
+    }
+
+    /**
+     * Returns the digests of our resources, or null if they have not yet been loaded by
+     * {@link #verifyMetadata}.
+     */
+    public Digests getDigests () {
+        return digests;
     }
 
     /**
@@ -836,11 +1047,22 @@ public class Application {
 
     private String _version = VersionUtil.NO_VERSION;
     private URL _appbase;
+    private String _latestVersion, _latestVersionBase;
     protected String _class;
     protected String _name;
     protected String _dockIconPath;
     protected boolean _windebug;
     protected boolean _allowOffline;
+    protected int _maxConcurrentDownloads;
+    protected int _verifyThreads;
+    protected int _segmentThreshold = -1;
+    protected boolean _keepAliveDownloads;
+    protected int _maxBandwidth, _maxSilentBandwidth;
+    protected List<URL> _mirrors = new ArrayList<URL>();
+    protected boolean _earlyLaunch;
+    protected Set<String> _critical = new HashSet<String>();
+    protected String _resourceCache;
+    protected int _resourceCacheSize;
 
     protected String _javaLocation;
 
@@ -193,6 +193,23 @@ public class Configuration {
         return Boolean.parseBoolean(getString(key));
     }
 
+    /**
+     * Parses an integer from the config file, returning the supplied default if the value is
+     * missing or invalid.
+     */
+    public int getInteger(String key, int def) {
+        String value = getString(key);
+        if (StringUtil.isBlank(value)) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warning("Ignoring invalid '" + key + "' config '" + value + "'.");
+            return def;
+        }
+    }
+
     /**
      * Returns true if we either have no version requirement, are running in a JVM that meets our
      * version requirements or have what appears to be a version of the JVM that meets our
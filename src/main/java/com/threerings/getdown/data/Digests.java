@@ -7,24 +7,182 @@ package com.threerings.getdown.data;
 
 import com.samskivert.text.MessageUtil;
 import com.samskivert.util.StringUtil;
+import com.threerings.getdown.util.ChunkTree;
+import com.threerings.getdown.util.DigestAlgorithm;
+import com.threerings.getdown.util.DigestSource;
 import com.threerings.getdown.util.DigestsUtil;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.Properties;
 
 
 /**
  * Manages the <code>digest.txt</code> file
+ *
+ * Besides the digest of each resource, the file may contain attributes of a resource (like its
+ * size) stored under the key <code>path?attribute</code>. Older clients see these as digests of
+ * resources which they never ask for, so the file stays readable for them.
+ *
+ * Digests computed with an algorithm other than MD5 name it in a header (under the key
+ * <code>.algorithm</code>), which is covered by the meta-digest like the rest of the contents.
+ * They also record the {@link #FAST_ALGORITHM} digest of each resource, with which we re-validate
+ * our copies of resources that we verified when we downloaded them.
+ *
+ * Archives (resources that are unpacked) were originally digested entry by entry, which means
+ * inflating them. Digests with a header instead digest them like any other file, as noted by the
+ * header <code>.archives = raw</code>: that's as fast as reading the archive from disk, and lets
+ * archives be verified as they are downloaded.
  */
 public final class Digests {
+    /** The suffix of the precompressed (gzipped) copy of a resource published next to it. */
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    /** The suffix of the block signature of a resource published next to it. */
+    public static final String BLOCKS_SUFFIX = ".blocks";
+
+    /** The suffix of the chunk tree of a resource published next to it. */
+    public static final String CHUNKS_SUFFIX = ".chunks";
+
+    /** The algorithm of the digests with which local copies of resources are re-validated. */
+    public static final DigestAlgorithm FAST_ALGORITHM = DigestAlgorithm.XXH64;
+
     private static final String METADIGEST_KEY = ".";
+    private static final String ALGORITHM_KEY = ".algorithm";
+    private static final String ARCHIVES_KEY = ".archives";
+    private static final String RAW_ARCHIVES = "raw";
+    private static final String ENTRY_ARCHIVES = "entries";
+    private static final String ATTRIBUTE_SEPARATOR = "?";
+    private static final String SIZE_ATTRIBUTE = "size";
+    private static final String COMPRESSED_ATTRIBUTE = "gz";
+    private static final String BLOCKS_ATTRIBUTE = "blocks";
+    private static final String CHUNKS_ATTRIBUTE = "chunks";
+    private static final String BUNDLE_ATTRIBUTE = "bundle";
+    private static final String BUNDLE_OFFSET_SEPARATOR = "@";
+    private static final String FAST_ATTRIBUTE = FAST_ALGORITHM.getName().toLowerCase();
+
+    /**
+     * The options with which digests are created. The defaults create plain MD5 digests, computed
+     * from scratch; each setter returns the options, so that they can be chained.
+     */
+    public static final class Options {
+        private DigestAlgorithm algorithm = DigestAlgorithm.MD5;
+        private boolean compressed, blocks, chunks;
+        private Map<String, String> bundles = Collections.emptyMap();
+        private DigestSource source = DigestSource.COMPUTE;
+
+        /**
+         * Sets the (cryptographic) algorithm with which the digests are computed.
+         */
+        public Options algorithm(DigestAlgorithm algorithm) {
+            this.algorithm = algorithm;
+            return this;
+        }
+
+        /**
+         * Sets whether to record the precompressed copies of the resources (see {@link
+         * #COMPRESSED_SUFFIX}) that exist next to them, so that clients download those instead.
+         */
+        public Options compressed(boolean compressed) {
+            this.compressed = compressed;
+            return this;
+        }
+
+        /**
+         * Sets whether to record the block signatures of the resources (see {@link
+         * #BLOCKS_SUFFIX}) that exist next to them, so that clients update their copies of those
+         * resources by downloading only the blocks that changed.
+         */
+        public Options blocks(boolean blocks) {
+            this.blocks = blocks;
+            return this;
+        }
+
+        /**
+         * Sets whether to record the roots of the chunk trees of the resources (see {@link
+         * #CHUNKS_SUFFIX}) that exist next to them, so that clients repair their copies of those
+         * resources by downloading only the chunks that are corrupt.
+         */
+        public Options chunks(boolean chunks) {
+            this.chunks = chunks;
+            return this;
+        }
+
+        /**
+         * Sets the bundles into which (small) resources were copied, so that clients can download
+         * several of them at once: maps the path of each such resource to the path of its bundle
+         * and its position therein, separated by <code>@</code>.
+         */
+        public Options bundles(Map<String, String> bundles) {
+            this.bundles = bundles;
+            return this;
+        }
+
+        /**
+         * Sets the source from which the digests are obtained (which may remember them from a
+         * previous run).
+         */
+        public Options source(DigestSource source) {
+            this.source = source;
+            return this;
+        }
+    }
 
     public static Digests create(ResourceGroup app, String version) throws IOException {
-        Digests digests = new Digests();
-        for (Resource rsrc : collectResources(app)) {
+        return create(app, version, new Options());
+    }
+
+    /**
+     * Creates the digests of the supplied resources with the supplied options. The resources are
+     * digested on several threads at once.
+     */
+    public static Digests create(ResourceGroup app, String version, Options options) throws IOException {
+        DigestAlgorithm algorithm = options.algorithm;
+        if (!algorithm.isCryptographic()) {
+            // anyone could craft a resource that passes for the original
+            throw new IllegalArgumentException("Digest algorithm is not cryptographic: " + algorithm.getName());
+        }
+        // digests with a header (which older clients don't read) digest archives raw
+        boolean rawArchives = algorithm != DigestAlgorithm.MD5;
+        Digests digests = new Digests(algorithm, rawArchives);
+        boolean fast = digests.hasHeader() && algorithm != FAST_ALGORITHM;
+        List<Resource> rsrcs = collectResources(app);
+        List<String[]> computed = computeDigests(rsrcs, options.source, algorithm, fast ? FAST_ALGORITHM : null,
+                                                 rawArchives);
+        for (int ii = 0; ii < rsrcs.size(); ii++) {
+            Resource rsrc = rsrcs.get(ii);
             try {
-                digests.addResource(rsrc.getPath(), DigestsUtil.computeResourceDigest(rsrc, null));
+                digests.addResource(rsrc.getPath(), computed.get(ii)[0]);
+                if (fast) {
+                    digests.addAttribute(rsrc.getPath(), FAST_ATTRIBUTE, computed.get(ii)[1]);
+                }
+                digests.addAttribute(rsrc.getPath(), SIZE_ATTRIBUTE, String.valueOf(rsrc.getLocalFile().length()));
+                File gz = new File(rsrc.getLocalFile().getPath() + COMPRESSED_SUFFIX);
+                if (options.compressed && gz.isFile()) {
+                    digests.addAttribute(rsrc.getPath(), COMPRESSED_ATTRIBUTE, String.valueOf(gz.length()));
+                }
+                File sig = new File(rsrc.getLocalFile().getPath() + BLOCKS_SUFFIX);
+                if (options.blocks && sig.isFile()) {
+                    digests.addAttribute(rsrc.getPath(), BLOCKS_ATTRIBUTE, String.valueOf(sig.length()));
+                }
+                File tree = new File(rsrc.getLocalFile().getPath() + CHUNKS_SUFFIX);
+                if (options.chunks && tree.isFile()) {
+                    ChunkTree ct = ChunkTree.read(tree);
+                    // a tree left over from another version of the resource would be of no use
+                    if (ct.getLength() == rsrc.getLocalFile().length()) {
+                        digests.addAttribute(rsrc.getPath(), CHUNKS_ATTRIBUTE, ct.getRoot());
+                    }
+                }
+                if (options.bundles.containsKey(rsrc.getPath())) {
+                    digests.addAttribute(rsrc.getPath(), BUNDLE_ATTRIBUTE, options.bundles.get(rsrc.getPath()));
+                }
             } catch (Throwable t) {
                 throw (IOException) new IOException("Error computing digest for: " + rsrc).initCause(t);
             }
@@ -35,10 +193,34 @@ public final class Digests {
     }
 
     public static Digests create(Properties contents, String version) throws IOException {
-        Digests digests = new Digests();
+        DigestAlgorithm algorithm = DigestAlgorithm.MD5;
+        String name = contents.getProperty(ALGORITHM_KEY);
+        if (name != null) {
+            algorithm = DigestAlgorithm.forName(name.trim());
+            if (algorithm == null) {
+                throw new IOException("Unsupported digest algorithm: " + name);
+            }
+            if (!algorithm.isCryptographic()) {
+                throw new IOException("Refusing digests computed with a non-cryptographic algorithm: " + name);
+            }
+        }
+
+        boolean rawArchives = false;
+        String archives = contents.getProperty(ARCHIVES_KEY);
+        if (archives != null) {
+            if (archives.trim().equals(RAW_ARCHIVES)) {
+                rawArchives = true;
+            } else if (!archives.trim().equals(ENTRY_ARCHIVES)) {
+                throw new IOException("Unsupported archive digests: " + archives);
+            }
+        }
+
+        Digests digests = new Digests(algorithm, rawArchives);
         String metaDigest = "";
         for (String file : contents.stringPropertyNames()) {
-            if (file.equals(METADIGEST_KEY)) {
+            if (file.equals(ALGORITHM_KEY) || file.equals(ARCHIVES_KEY)) {
+                continue;
+            } else if (file.equals(METADIGEST_KEY)) {
                 metaDigest = contents.getProperty(METADIGEST_KEY);
             } else {
                 digests.addResource(file, contents.getProperty(file));
@@ -53,6 +235,50 @@ public final class Digests {
         return digests;
     }
 
+    /**
+     * Obtains the digests of the given resources (computed with the given algorithm, and with the
+     * given additional algorithm, if any) from the given source, one thread per core.
+     */
+    private static List<String[]> computeDigests(List<Resource> rsrcs, final DigestSource source,
+                                                 final DigestAlgorithm algorithm, final DigestAlgorithm additional,
+                                                 final boolean rawArchives) throws IOException {
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), rsrcs.size()));
+        ExecutorService digesters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Digester");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+            for (final Resource rsrc : rsrcs) {
+                futures.add(digesters.submit(new Callable<String[]>() {
+                    public String[] call() throws IOException {
+                        return new String[] {
+                            source.getDigest(rsrc, algorithm, rawArchives),
+                            (additional == null) ? null : source.getDigest(rsrc, additional, rawArchives)
+                        };
+                    }
+                }));
+            }
+
+            List<String[]> computed = new ArrayList<String[]>();
+            for (int ii = 0; ii < rsrcs.size(); ii++) {
+                try {
+                    computed.add(futures.get(ii).get());
+                } catch (ExecutionException e) {
+                    throw (IOException) new IOException("Error computing digest for: " + rsrcs.get(ii)).initCause(e.getCause());
+                }
+            }
+            return computed;
+        } catch (InterruptedException e) {
+            throw (IOException) new IOException("Interrupted while computing digests").initCause(e);
+        } finally {
+            digesters.shutdownNow();
+        }
+    }
+
     private static List<Resource> collectResources(ResourceGroup group) {
         List<Resource> resources = new ArrayList<Resource>();
         resources.addAll(group.getResources(ResourceType.CONFIG_FILE));
@@ -64,18 +290,38 @@ public final class Digests {
     }
 
 
+    private final DigestAlgorithm algorithm;
+    private final boolean rawArchives;
     private final SortedMap<String, String> digests;
     private String metaDigest = "";
 
-    private Digests() {
+    private Digests(DigestAlgorithm algorithm, boolean rawArchives) {
+        this.algorithm = algorithm;
+        this.rawArchives = rawArchives;
         digests = new TreeMap<String, String>();
     }
 
+    /**
+     * Returns {@code true} if our algorithm is named in a header (older clients only understand
+     * MD5 digests, which therefore have none).
+     */
+    private boolean hasHeader() {
+        return algorithm != DigestAlgorithm.MD5;
+    }
+
 
     private void addResource(String path, String digest) {
         digests.put(path, digest);
     }
 
+    private void addAttribute(String path, String attribute, String value) {
+        digests.put(path + ATTRIBUTE_SEPARATOR + attribute, value);
+    }
+
+    private String getAttribute(Resource resource, String attribute) {
+        return digests.get(resource.getPath() + ATTRIBUTE_SEPARATOR + attribute);
+    }
+
     private void setMetaDigest(String digest) {
         metaDigest = digest;
     }
@@ -91,6 +337,25 @@ public final class Digests {
         return metaDigest;
     }
 
+    /**
+     * Returns the algorithm with which the digests were computed.
+     */
+    public DigestAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns {@code true} if archives were digested like any other file (rather than entry by
+     * entry).
+     */
+    public boolean hasRawArchiveDigests() {
+        return rawArchives;
+    }
+
+    public boolean hasResourceDigest(Resource resource) {
+        return digests.containsKey(resource.getPath());
+    }
+
     public String getResourceDigest(Resource resource) {
         if (!digests.containsKey(resource.getPath())) {
             throw new NoSuchElementException("no digest present for resource " + resource.getPath());
@@ -99,9 +364,92 @@ public final class Digests {
         return digests.get(resource.getPath());
     }
 
+    /**
+     * Returns the {@link #FAST_ALGORITHM} digest of the given resource, or <code>null</code> if
+     * the digests do not record it.
+     */
+    public String getFastDigest(Resource resource) {
+        return getAttribute(resource, FAST_ATTRIBUTE);
+    }
+
+    /**
+     * Returns the size in bytes of the given resource as recorded when the digests were created,
+     * or <code>-1</code> if the digests do not record its size.
+     */
+    public long getResourceSize(Resource resource) {
+        String size = getAttribute(resource, SIZE_ATTRIBUTE);
+        try {
+            return (size == null) ? -1L : Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+
+    /**
+     * Returns the size in bytes of the precompressed copy of the given resource, or
+     * <code>-1</code> if no such copy was published.
+     */
+    public long getCompressedSize(Resource resource) {
+        String size = getAttribute(resource, COMPRESSED_ATTRIBUTE);
+        try {
+            return (size == null) ? -1L : Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Returns the size in bytes of the block signature of the given resource, or <code>-1</code>
+     * if no signature was published.
+     */
+    public long getBlockSignatureSize(Resource resource) {
+        String size = getAttribute(resource, BLOCKS_ATTRIBUTE);
+        try {
+            return (size == null) ? -1L : Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Returns the root digest of the chunk tree of the given resource (see {@link ChunkTree}), or
+     * <code>null</code> if no tree was published.
+     */
+    public String getChunkRoot(Resource resource) {
+        return getAttribute(resource, CHUNKS_ATTRIBUTE);
+    }
+
+    /**
+     * Returns the path (relative to the appbase) of the bundle that contains the given resource,
+     * or <code>null</code> if the resource was not bundled.
+     */
+    public String getBundle(Resource resource) {
+        String bundle = getAttribute(resource, BUNDLE_ATTRIBUTE);
+        int idx = (bundle == null) ? -1 : bundle.lastIndexOf(BUNDLE_OFFSET_SEPARATOR);
+        return (idx <= 0 || getBundleOffset(resource) < 0) ? null : bundle.substring(0, idx);
+    }
+
+    /**
+     * Returns the position of the given resource within its bundle (see {@link #getBundle}), or
+     * <code>-1</code> if the resource was not bundled.
+     */
+    public long getBundleOffset(Resource resource) {
+        String bundle = getAttribute(resource, BUNDLE_ATTRIBUTE);
+        int idx = (bundle == null) ? -1 : bundle.lastIndexOf(BUNDLE_OFFSET_SEPARATOR);
+        try {
+            return (idx < 0) ? -1L : Long.parseLong(bundle.substring(idx + 1));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
 
     public String getContents() {
         StringBuilder sb = new StringBuilder();
+        if (hasHeader()) {
+            appendDigest(sb, ALGORITHM_KEY, algorithm.getName());
+            appendDigest(sb, ARCHIVES_KEY, rawArchives ? RAW_ARCHIVES : ENTRY_ARCHIVES);
+        }
         for (Map.Entry<String, String> entry : digests.entrySet()) {
             appendDigest(sb, entry.getKey(), entry.getValue());
         }
@@ -122,12 +470,15 @@ public final class Digests {
         if (o == null || getClass() != o.getClass()) return false;
 
         Digests digests = (Digests) o;
-        return this.digests.equals(digests.digests) && metaDigest.equals(digests.metaDigest);
+        return algorithm == digests.algorithm && rawArchives == digests.rawArchives &&
+               this.digests.equals(digests.digests) &&
+               metaDigest.equals(digests.metaDigest);
     }
 
     @Override
     public int hashCode() {
-        int result = digests.hashCode();
+        int result = algorithm.hashCode();
+        result = 31 * result + digests.hashCode();
         result = 31 * result + metaDigest.hashCode();
         return result;
     }
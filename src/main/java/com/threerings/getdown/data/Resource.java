@@ -6,6 +6,7 @@
 package com.threerings.getdown.data;
 
 import com.samskivert.util.FileUtil;
+import com.threerings.getdown.util.ValidationIndex;
 
 import java.io.File;
 import java.io.IOException;
@@ -26,7 +27,7 @@ public class Resource {
     private final String path;
     private final File localFile;
     private final URL remoteUrl;
-    private final File marker;
+    private final ValidationIndex index;
 
 
     public static Resource create(File appdir, URL appbase, String path, boolean unpack) throws MalformedURLException {
@@ -34,15 +35,16 @@ public class Resource {
     }
 
     public static Resource create(ResourceType type, File appdir, URL appbase, String path) throws MalformedURLException {
-        return new Resource(type, path, new File(appdir, path).getAbsoluteFile(), new URL(appbase, path));
+        return new Resource(type, path, new File(appdir, path).getAbsoluteFile(), new URL(appbase, path),
+                            ValidationIndex.get(appdir));
     }
 
-    private Resource(ResourceType type, String path, File local, URL remote) {
+    private Resource(ResourceType type, String path, File local, URL remote, ValidationIndex index) {
         this.type = type;
         this.path = path;
         this.localFile = local;
         this.remoteUrl = remote;
-        marker = new File(localFile.getAbsolutePath() + "v");
+        this.index = index;
     }
 
     /**
@@ -89,41 +91,62 @@ public class Resource {
     }
 
     /**
-     * Returns true if this resource has an associated "validated" marker
-     * file.
+     * Returns true if this resource is noted as validated in the {@link ValidationIndex} of its
+     * application directory (and its file hasn't changed since).
      */
     public final boolean isMarkedValid ()
     {
-        if (!localFile.exists()) {
-            clearMarker();
-            return false;
-        }
-        return marker.exists();
+        return isMarkedValid(null);
+    }
+
+    /**
+     * Returns true if this resource is noted as validated against the supplied digest (or an
+     * unknown one) in the {@link ValidationIndex} of its application directory (and its file
+     * hasn't changed since).
+     */
+    public final boolean isMarkedValid (String digest)
+    {
+        return index.isValid(path, localFile, digest);
+    }
+
+    /**
+     * Returns true if this resource was noted as validated against the given digest in the {@link
+     * ValidationIndex} of its application directory, even if its file has changed since.
+     */
+    public final boolean wasMarkedValid (String digest)
+    {
+        return index.wasValidated(path, digest);
     }
 
     /**
-     * Creates a "validated" marker file for this resource to indicate
-     * that its MD5 hash has been computed and compared with the value in
-     * the digest file.
+     * Notes that this resource has been validated (its digest has been computed and compared with
+     * the value in the digest file, and it has been unpacked if need be).
      *
-     * @throws IOException if we fail to create the marker file.
+     * @throws IOException if we fail to update the validation index.
      */
     public final void markAsValid ()
         throws IOException
     {
-        marker.createNewFile();
+        markAsValid(null);
+    }
+
+    /**
+     * Notes that this resource has been validated against the supplied digest.
+     *
+     * @throws IOException if we fail to update the validation index.
+     */
+    public final void markAsValid (String digest)
+        throws IOException
+    {
+        index.markValid(path, localFile, digest);
     }
 
     /**
-     * Removes any "validated" marker file associated with this resource.
+     * Notes that this resource is no longer known to be valid.
      */
     public final void clearMarker ()
     {
-        if (marker.exists()) {
-            if (!marker.delete()) {
-                log.warning("Failed to erase marker file '" + marker + "'.");
-            }
-        }
+        index.clear(path);
     }
 
    public boolean unpack (File target) {
@@ -78,6 +78,32 @@ public class SysProps
         return getInteger("connect_timeout");
     }
 
+    /** Specifies the time (in seconds) after which a download that has stopped receiving data is
+     * abandoned (and retried). Downloads of resources time out after thirty seconds by default.
+     * Usage: {@code -Dread_timeout=N}. */
+    public static int readTimeout () {
+        return getInteger("read_timeout");
+    }
+
+    /** If true, Getdown exposes its download metrics via JMX while it is running (they are also
+     * written to {@code metrics.json} in the appdir when it is done). Usage: {@code -Djmx}. */
+    public static boolean jmx () {
+        return getBoolean("jmx");
+    }
+
+    /** Specifies the maximum number of resources to download concurrently, overriding the value
+     * of {@code max_concurrent_downloads} in {@code getdown.txt}. Usage:
+     * {@code -Dmax_concurrent_downloads=N}. */
+    public static int maxConcurrentDownloads () {
+        return getInteger("max_concurrent_downloads");
+    }
+
+    /** Specifies the number of threads with which to verify resources, overriding the value of
+     * {@code verify_threads} in {@code getdown.txt}. Usage: {@code -Dverify_threads=N}. */
+    public static int verifyThreads () {
+        return getInteger("verify_threads");
+    }
+
     public static String proxyPort() {
         return getString("http.proxyPort");
     }
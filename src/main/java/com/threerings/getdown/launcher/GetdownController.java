@@ -13,8 +13,12 @@ import com.samskivert.text.MessageUtil;
 import com.samskivert.util.RunAnywhere;
 import com.samskivert.util.StringUtil;
 import com.threerings.getdown.data.*;
+import com.threerings.getdown.net.DownloadMetrics;
 import com.threerings.getdown.net.Downloader;
 import com.threerings.getdown.net.HTTPDownloader;
+import com.threerings.getdown.net.KeepAliveHTTPDownloader;
+import com.threerings.getdown.net.MirrorSelector;
+import com.threerings.getdown.net.ResourceCache;
 import com.threerings.getdown.tools.Patcher;
 import com.threerings.getdown.util.*;
 
@@ -234,6 +238,7 @@ public abstract class GetdownController extends Thread
         log.info("Checking whether we need to use a proxy...");
         try {
             _ifc = _app.init(true);
+            configureConnectionPool();
         } catch (IOException ioe) {
             // no worries
         }
@@ -297,6 +302,9 @@ public abstract class GetdownController extends Thread
     protected void getdown ()
     {
         SysProps.logProxyInfo(log);
+        if (SysProps.jmx()) {
+            _metrics.register();
+        }
 
         try {
             // first parses our application deployment file
@@ -310,9 +318,13 @@ public abstract class GetdownController extends Thread
                 // now force our UI to be recreated with the updated info
                 createInterface(true);
             }
+            configureConnectionPool();
             if (!_app.lockForUpdates()) {
                 throw new MultipleGetdownRunning();
             }
+            // nothing is pending until we launch early (a pending list left behind by a run that
+            // was killed while downloading would otherwise hold up the app forever)
+            DeferredDownloads.setPending(_app.getAppdir(), Collections.<String>emptyList());
 
             // Update the config modtime so a sleeping getdown will notice the change.
             File config = _app.getConfigResource().getLocalFile();
@@ -429,6 +441,24 @@ public abstract class GetdownController extends Thread
                     return;
                 }
 
+                // if we may launch before everything is in, download what's needed to launch
+                // first, and the rest once the app is running
+                List<Resource> deferred = getDeferrable(failures);
+                if (!deferred.isEmpty() && deferred.size() == failures.size()) {
+                    log.info("Launch-critical resources verified, launching early.",
+                             "deferred", deferred.size());
+                    List<String> paths = new ArrayList<String>();
+                    for (Resource rsrc : deferred) {
+                        paths.add(rsrc.getPath());
+                    }
+                    DeferredDownloads.setPending(_app.getAppdir(), paths);
+                    _deferred = deferred;
+                    _app.lockForUpdates();
+                    launch();
+                    return;
+                }
+                failures.removeAll(deferred);
+
                 try {
                     // if any of our resources have already been marked valid this is not a first
                     // time install and we don't want to enable tracking
@@ -471,6 +501,13 @@ public abstract class GetdownController extends Thread
             // error message
             fail(msg);
             _app.releaseLock();
+
+        } finally {
+            // this is the only place we finish up our metrics, whether or not we launched
+            writeMetrics();
+            if (_launched) {
+                exit(0);
+            }
         }
     }
 
@@ -688,7 +725,9 @@ public abstract class GetdownController extends Thread
         };
 
         // start the download and wait for it to complete
-        Downloader dl = new HTTPDownloader(resources, obs);
+        Downloader dl = createDownloader(resources, obs);
+        // go easy on the user's connection when updating in the background
+        configureDownloader(dl, LaunchUtil.shouldInstallSilently());
         if (!dl.download()) {
             if (Thread.interrupted()) {
                 throw new InterruptedException("m.applet_stopped");
@@ -697,6 +736,193 @@ public abstract class GetdownController extends Thread
         }
     }
 
+    /**
+     * Downloads the resources we deferred in order to launch the app sooner, now that it is
+     * running. Nobody is watching, so failures are merely logged: whatever doesn't make it will
+     * be downloaded the next time we're run.
+     */
+    protected void downloadDeferred (List<Resource> resources)
+    {
+        log.info("Downloading deferred resources", "count", resources.size());
+        List<String> pending = new ArrayList<String>();
+        for (Resource rsrc : resources) {
+            pending.add(rsrc.getPath());
+        }
+        Thread watcher = null;
+        try {
+            Downloader dl = createDownloader(resources, null);
+            // don't compete with the app for the user's connection, while it's running
+            configureDownloader(dl, true);
+            watcher = watchApp(dl);
+            dl.download();
+
+            // verify (and unpack) what we downloaded, letting the app have each resource as soon
+            // as it checks out rather than once they all have
+            Set<Resource> unpacked = new HashSet<Resource>();
+            List<Resource> failures = new ArrayList<Resource>();
+            for (Resource rsrc : resources) {
+                if (_app.verifyResource(rsrc, unpacked)) {
+                    pending.remove(rsrc.getPath());
+                    DeferredDownloads.setPending(_app.getAppdir(), pending);
+                } else {
+                    failures.add(rsrc);
+                }
+            }
+            if (!failures.isEmpty()) {
+                log.warning("Failed to download deferred resources", "failures", failures);
+            }
+        } catch (Exception e) {
+            log.warning("Failed to download deferred resources", e);
+        } finally {
+            if (watcher != null) {
+                watcher.interrupt();
+            }
+            // let the app know that it has all it's going to get
+            DeferredDownloads.setPending(_app.getAppdir(), Collections.<String>emptyList());
+        }
+        if (!pending.isEmpty()) {
+            log.info("Deferred resources will be downloaded next time", "pending", pending);
+        }
+    }
+
+    /**
+     * Lifts the background bandwidth limit of the supplied downloader once the app we launched
+     * exits, as the download then no longer competes with anything the user is doing.
+     *
+     * @return the thread that waits for the app to exit (which should be interrupted once the
+     * download is done), or null if we have no app process to wait for.
+     */
+    protected Thread watchApp (final Downloader dl)
+    {
+        final Process proc = _appProcess;
+        if (proc == null) {
+            return null;
+        }
+        Thread watcher = new Thread("Getdown-app-watcher") {
+            @Override public void run () {
+                try {
+                    proc.waitFor();
+                } catch (InterruptedException ie) {
+                    return; // the download finished first
+                }
+                log.info("Application exited, no longer throttling background downloads");
+                dl.setMaxBandwidth(_app.getMaxBandwidth(false));
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+        return watcher;
+    }
+
+    /**
+     * Applies our configuration to the supplied downloader.
+     *
+     * @param background whether the download happens in the background (while the user is doing
+     * something else), in which case the download is throttled more aggressively.
+     */
+    protected void configureDownloader (Downloader dl, boolean background)
+    {
+        dl.setDigests(_app.getDigests());
+        dl.setMetrics(_metrics);
+        if (_app.getMaxConcurrentDownloads() > 0) {
+            dl.setMaxConcurrentDownloads(_app.getMaxConcurrentDownloads());
+        }
+        if (_app.getSegmentThreshold() >= 0) {
+            dl.setSegmentThreshold(_app.getSegmentThreshold());
+        }
+        dl.setMaxBandwidth(_app.getMaxBandwidth(background));
+        File cacheDir = _app.getResourceCacheDir();
+        if (cacheDir != null) {
+            long cacheSize = _app.getResourceCacheSize();
+            dl.setResourceCache(new ResourceCache(
+                cacheDir, (cacheSize > 0) ? cacheSize : ResourceCache.DEFAULT_MAX_SIZE));
+        }
+    }
+
+    /**
+     * Sizes the JVM's pool of persistent connections if our application downloads over them. The
+     * JVM reads this setting once, when it first pools a connection, so this is called as soon as
+     * our config has been read and before we first talk to the server (which means that a change
+     * to the setting takes effect on the run after the one that downloads it).
+     */
+    protected void configureConnectionPool ()
+    {
+        if (_app.useKeepAliveDownloads()) {
+            KeepAliveHTTPDownloader.configureConnectionPool(
+                KeepAliveHTTPDownloader.DEFAULT_POOLED_CONNECTIONS);
+        }
+    }
+
+    /**
+     * Creates the downloader used to download the supplied resources.
+     */
+    protected Downloader createDownloader (List<Resource> resources, Downloader.Observer obs)
+    {
+        HTTPDownloader dl = _app.useKeepAliveDownloads() ?
+            new KeepAliveHTTPDownloader(resources, obs) : new HTTPDownloader(resources, obs);
+        MirrorSelector mirrors = getMirrors();
+        if (mirrors != null) {
+            dl.setMirrors(mirrors);
+        }
+        return dl;
+    }
+
+    /**
+     * Returns the selector that spreads our downloads across our application's mirrors, or null
+     * if it has none. The mirrors are probed once per run (or again if an update moved us to a
+     * new appbase), and the ranking (and what we learned of failing mirrors) is shared by all of
+     * our downloaders.
+     */
+    protected MirrorSelector getMirrors ()
+    {
+        List<URL> mirrors = _app.getMirrors();
+        if (mirrors.isEmpty()) {
+            return null;
+        }
+        String key = _app.getAppbase() + " " + mirrors;
+        if (_mirrors == null || !key.equals(_mirrorsKey)) {
+            // find out which of our mirrors are up, and how fast they are
+            _mirrors = new MirrorSelector(_app.getAppbase(), mirrors);
+            _mirrors.probe(_app.getConfigResource().getPath());
+            _mirrorsKey = key;
+        }
+        return _mirrors;
+    }
+
+    /**
+     * Writes a summary of what we've done (and how long it took) to the appdir, so that slow
+     * updates can be looked into after the fact.
+     */
+    protected void writeMetrics ()
+    {
+        _metrics.finish();
+        File file = _app.getLocalPath(DownloadMetrics.SUMMARY_FILE);
+        try {
+            _metrics.writeSummary(file);
+        } catch (IOException ioe) {
+            log.warning("Failed to write metrics", "file", file, "error", ioe);
+        }
+    }
+
+    /**
+     * Returns the resources among those that need downloading that the app can do without at
+     * launch, or an empty list if we may not launch the app early.
+     */
+    protected List<Resource> getDeferrable (List<Resource> failures)
+    {
+        List<Resource> deferrable = new ArrayList<Resource>();
+        // we need to stick around after launching to download the rest
+        if (!_app.allowEarlyLaunch() || !LaunchUtil.shouldLaunch() || invokeDirect()) {
+            return deferrable;
+        }
+        for (Resource rsrc : failures) {
+            if (!_app.isLaunchCritical(rsrc)) {
+                deferrable.add(rsrc);
+            }
+        }
+        return deferrable;
+    }
+
     /**
      * Called to launch the application if everything is determined to be ready to go.
      */
@@ -738,6 +964,8 @@ public abstract class GetdownController extends Thread
                     proc = _app.createProcess(false);
                 }
 
+                _appProcess = proc;
+
                 // close standard in to avoid choking standard out of the launched process
                 proc.getInputStream().close();
                 // close standard out, since we're not going to write to anything to it anyway
@@ -777,9 +1005,17 @@ public abstract class GetdownController extends Thread
                 }
             }
 
+            // now that the app is up and running, fetch whatever it could do without
+            if (_deferred != null) {
+                disposeContainer();
+                List<Resource> deferred = _deferred;
+                _deferred = null;
+                downloadDeferred(deferred);
+            }
+
             // pump the percent up to 100%
             setStatus(null, 100, -1L, false);
-            exit(0);
+            _launched = true;
             if (_playAgain != null && _playAgain.isEnabled()) {
                 // wait a little time before showing the button
                 Timer timer = new Timer("playAgain", true);
@@ -955,6 +1191,8 @@ public abstract class GetdownController extends Thread
      */
     protected void setStep (Step step)
     {
+        _metrics.enterStep(step);
+
         int finalPercent = -1;
         for (Integer perc : _ifc.stepPercentages.get(step)) {
             if (perc > _stepMaxPercent) {
@@ -1112,6 +1350,24 @@ public abstract class GetdownController extends Thread
     protected long _startup;
 
     protected boolean _enableTracking = true;
+
+    /** Records the time spent on each step and each download. */
+    protected DownloadMetrics _metrics = new DownloadMetrics();
+
+    /** The resources we've yet to download after launching the app early, or null. */
+    protected List<Resource> _deferred;
+
+    /** Whether we launched the app, in which case we exit once we've wrapped up. */
+    protected boolean _launched;
+
+    /** The process in which we launched the app, if we launched it in its own process. */
+    protected Process _appProcess;
+
+    /** The mirrors from which we download, once probed, and the appbase and mirror URLs for
+     * which they were probed. */
+    protected MirrorSelector _mirrors;
+    protected String _mirrorsKey;
+
     protected int _reportedProgress = 0;
 
     /** Number of minutes to wait after startup before beginning any real heavy lifting. */
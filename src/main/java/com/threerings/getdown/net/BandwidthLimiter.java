@@ -0,0 +1,104 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+/**
+ * Limits the rate at which data is downloaded, across all of the transfers that share it, using a
+ * token bucket: tokens (bytes) accrue at the configured rate, up to one second's worth, and each
+ * transfer spends tokens for the data it reads, waiting whenever the bucket runs dry. The rate
+ * may be changed at any time, for example to stop throttling an update that the user is now
+ * waiting on.
+ */
+public class BandwidthLimiter
+{
+    /**
+     * Creates a limiter allowing the specified number of bytes per second, or an unlimited rate
+     * if the supplied value is zero (or less).
+     */
+    public BandwidthLimiter (long bytesPerSecond)
+    {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes the number of bytes per second allowed by this limiter; zero (or less) removes the
+     * limit. Transfers waiting on the limiter are adjusted immediately.
+     */
+    public synchronized void setRate (long bytesPerSecond)
+    {
+        refill(System.nanoTime());
+        _rate = Math.max(0L, bytesPerSecond);
+        _tokens = Math.min(_tokens, _rate);
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of bytes per second allowed by this limiter, or zero if it is unlimited.
+     */
+    public synchronized long getRate ()
+    {
+        return _rate;
+    }
+
+    /**
+     * Accounts for the transfer of the specified number of bytes, blocking until the transfer is
+     * allowed by our rate. A transfer larger than the tokens in the bucket puts the bucket into
+     * debt, which subsequent transfers must wait out, so callers may read as much as they like
+     * at once and the average rate still comes out right.
+     */
+    public synchronized void acquire (long bytes)
+        throws InterruptedException
+    {
+        refill(System.nanoTime());
+        if (_rate <= 0) {
+            return;
+        }
+        _tokens -= bytes;
+        while (_rate > 0 && _tokens < 0) {
+            // wait until we've accrued enough tokens to pay off our debt (or our rate changes)
+            long waitMillis = Math.max(1L, (-_tokens * 1000L) / _rate);
+            wait(Math.min(waitMillis, MAX_WAIT));
+            refill(System.nanoTime());
+        }
+    }
+
+    /**
+     * Adds the tokens accrued since our last refill.
+     */
+    protected void refill (long now)
+    {
+        if (_rate <= 0) {
+            _tokens = 0L;
+            _lastRefill = now;
+            return;
+        }
+        long elapsed = now - _lastRefill;
+        long accrued = (elapsed / NANOS_PER_SECOND) * _rate +
+            ((elapsed % NANOS_PER_SECOND) * _rate) / NANOS_PER_SECOND;
+        if (accrued > 0) {
+            // the bucket holds at most a second's worth of tokens
+            _tokens = Math.min(_rate, _tokens + accrued);
+            // otherwise only account for the time that turned into whole tokens, lest we lose
+            // the remainder when we're called in quick succession
+            _lastRefill = (_tokens == _rate) ? now :
+                _lastRefill + (accrued * NANOS_PER_SECOND) / _rate;
+        }
+    }
+
+    /** The number of bytes per second we allow, or zero for no limit. */
+    protected long _rate;
+
+    /** The number of bytes that may be transferred without waiting (negative when in debt). */
+    protected long _tokens;
+
+    /** The time (in nanoseconds) at which we last added tokens to the bucket. */
+    protected long _lastRefill;
+
+    /** The longest we'll wait before checking our bucket again. */
+    protected static final long MAX_WAIT = 250L;
+
+    protected static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+}
@@ -0,0 +1,275 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import com.samskivert.io.StreamUtil;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.BlockSignature;
+import com.threerings.getdown.util.DigestsUtil;
+import com.threerings.getdown.util.FileUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Updates our existing copy of a resource to its new version by downloading only the blocks of
+ * the new version that our copy lacks. The {@link BlockSignature} published next to the resource
+ * tells us which blocks we already have (wherever they are in our copy); the new version is then
+ * assembled from those blocks and the missing ones, which are requested with HTTP range requests.
+ * The assembled file is verified against its digest before it replaces our copy.
+ */
+public class BlockSyncDownload
+{
+    /**
+     * Creates a block sync of the supplied resource from the supplied URL (that of the resource,
+     * or of a mirror of it).
+     *
+     * @param size the expected size of the new version of the resource.
+     */
+    public BlockSyncDownload (HTTPDownloader downloader, Resource rsrc, URL url, long size)
+    {
+        _downloader = downloader;
+        _rsrc = rsrc;
+        _url = url;
+        _size = size;
+    }
+
+    /**
+     * Updates the resource, blocking until done.
+     *
+     * @return true if the resource was updated, false if our copy has nothing in common with the
+     * new version (in which case it should simply be downloaded).
+     * @throws IOException if the update failed, in which case the resource may still be
+     * downloaded the usual way.
+     */
+    public boolean download ()
+        throws IOException
+    {
+        File local = _rsrc.getLocalFile();
+        BlockSignature sig = fetchSignature();
+        if (sig.getLength() != _size) {
+            throw new IOException("Block signature of " + _url + " is out of date " +
+                                  "[length=" + sig.getLength() + ", expected=" + _size + "]");
+        }
+        long[] found = sig.match(local);
+        long reused = 0L;
+        for (int ii = 0; ii < found.length; ii++) {
+            if (found[ii] >= 0) {
+                reused += sig.getBlockLength(ii);
+            }
+        }
+        if (reused == 0L) {
+            return false;
+        }
+        log.info("Updating resource block by block", "url", _url, "size", _size,
+                 "reused", reused);
+
+        // assemble the new version next to our copy, digesting it as we go if we can
+        File temp = new File(local.getPath() + SYNC_SUFFIX);
+        Digests digests = _downloader._digests;
+        MessageDigest md = DigestsUtil.createStreamingDigest(_rsrc, digests);
+        FileChannel source = null, out = null;
+        boolean complete = false;
+        try {
+            source = new FileInputStream(local).getChannel();
+            out = new FileOutputStream(temp).getChannel();
+            for (int block = 0; block < found.length; ) {
+                if (found[block] >= 0) {
+                    copy(source, found[block], sig.getBlockLength(block), out, md);
+                    _done += sig.getBlockLength(block);
+                    block++;
+                } else {
+                    // fetch the whole run of missing blocks at once
+                    int end = block;
+                    while (end < found.length && found[end] < 0) {
+                        end++;
+                    }
+                    long start = sig.getBlockStart(block);
+                    fetch(start, sig.getBlockStart(end - 1) + sig.getBlockLength(end - 1), out,
+                          md);
+                    block = end;
+                }
+                _downloader.updateObserver(_rsrc, _done, _size);
+            }
+            complete = true;
+        } finally {
+            StreamUtil.close(source);
+            StreamUtil.close(out);
+            if (!complete) {
+                temp.delete();
+            }
+        }
+
+        if (md != null) {
+            String digest = DigestsUtil.finishStreamingDigest(md);
+            if (!digest.equals(digests.getResourceDigest(_rsrc))) {
+                temp.delete();
+                throw new IOException("Block sync of " + _url + " does not match its " +
+                                      "digest [got=" + digest + "]");
+            }
+        } else if (!DigestsUtil.validateResourceDigest(_rsrc, temp, digests)) {
+            temp.delete();
+            throw new IOException("Block sync of " + _url + " failed verification");
+        }
+        if (!FileUtil.renameTo(temp, local)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " into place");
+        }
+        _downloader.noteVerified(_rsrc);
+        if (!_rsrc.shouldUnpack()) {
+            // we've verified it before moving it into place, so there's no need to do so again
+            // (archives still need to be unpacked though)
+            _rsrc.markAsValid(digests.getResourceDigest(_rsrc));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes we actually downloaded (as opposed to reused).
+     */
+    public long getFetched ()
+    {
+        return _fetched;
+    }
+
+    /**
+     * Downloads the block signature of our resource.
+     */
+    protected BlockSignature fetchSignature ()
+        throws IOException
+    {
+        URL url = new URL(_url.toString() + Digests.BLOCKS_SUFFIX);
+        URLConnection conn = _downloader.openConnection(url);
+        conn.connect();
+        if (conn instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection)conn).getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                _downloader.releaseConnection(conn);
+                throw new IOException("Unable to download block signature " + url + ": " + code);
+            }
+        }
+        InputStream in = conn.getInputStream();
+        try {
+            return BlockSignature.read(in);
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Copies a block of our existing copy to the new version.
+     */
+    protected void copy (FileChannel source, long position, int length, FileChannel out,
+                         MessageDigest md)
+        throws IOException
+    {
+        ByteBuffer buffer = BufferPool.acquire();
+        try {
+            long end = position + length;
+            while (position < end) {
+                buffer.limit((int)Math.min(buffer.capacity(), end - position));
+                int read = source.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Local copy of " + _rsrc + " changed while updating it");
+                }
+                position += read;
+                write(buffer, out, md);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Downloads the supplied range of the new version.
+     *
+     * @param end the position after the last byte of the range.
+     */
+    protected void fetch (long start, long end, FileChannel out, MessageDigest md)
+        throws IOException
+    {
+        URLConnection conn = _downloader.openConnection(_url);
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + (end-1));
+        conn.connect();
+        if (!(conn instanceof HttpURLConnection) ||
+            ((HttpURLConnection)conn).getResponseCode() != HttpURLConnection.HTTP_PARTIAL ||
+            PartialDownload.getRangeStart(conn.getHeaderField("Content-Range")) != start) {
+            _downloader.releaseConnection(conn);
+            throw new IOException("Server does not serve ranges of " + _url);
+        }
+
+        ReadableByteChannel in = null;
+        ByteBuffer buffer = BufferPool.acquire();
+        try {
+            in = Channels.newChannel(conn.getInputStream());
+            long position = start;
+            while (position < end) {
+                buffer.limit((int)Math.min(buffer.capacity(), end - position));
+                int read = in.read(buffer);
+                if (read == -1) {
+                    throw new IOException("Range of " + _url + " ended prematurely " +
+                                          "[at=" + position + ", end=" + end + "]");
+                }
+                _downloader.throttle(read);
+                position += read;
+                _fetched += read;
+                _done += read;
+                write(buffer, out, md);
+                if (position - _reported >= HTTPDownloader.PROGRESS_GRANULARITY) {
+                    _downloader.updateObserver(_rsrc, _done, _size);
+                    _reported = position;
+                }
+            }
+        } finally {
+            StreamUtil.close(in);
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Writes the contents of the supplied (filled) buffer to our new version, and clears it.
+     */
+    protected static void write (ByteBuffer buffer, FileChannel out, MessageDigest md)
+        throws IOException
+    {
+        buffer.flip();
+        if (md != null) {
+            md.update(buffer.duplicate());
+        }
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    protected HTTPDownloader _downloader;
+    protected Resource _rsrc;
+    protected URL _url;
+    protected long _size;
+
+    /** The bytes of the new version we have so far, and those we had to download. */
+    protected long _done, _fetched;
+
+    /** The position at which we last reported our progress. */
+    protected long _reported;
+
+    /** The suffix of the file in which we assemble the new version. */
+    protected static final String SYNC_SUFFIX = "_sync";
+}
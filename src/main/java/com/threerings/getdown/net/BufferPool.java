@@ -0,0 +1,51 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Maintains a pool of (large, direct) buffers used to transfer downloaded data to disk. Direct
+ * buffers are expensive to allocate and are not promptly reclaimed by the garbage collector, so
+ * we hang onto them and hand them out to each transfer in turn.
+ */
+public class BufferPool
+{
+    /** The size of the buffers in the pool. */
+    public static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Obtains a cleared buffer from the pool, allocating a new one if none is available. The
+     * buffer must be returned via {@link #release} once the caller is done with it.
+     */
+    public static ByteBuffer acquire ()
+    {
+        ByteBuffer buffer = _pool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained via {@link #acquire} to the pool.
+     */
+    public static void release (ByteBuffer buffer)
+    {
+        if (buffer != null && _pool.size() < MAX_POOLED) {
+            _pool.offer(buffer);
+        }
+    }
+
+    /** The buffers not currently in use. */
+    protected static final ConcurrentLinkedQueue<ByteBuffer> _pool =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** The maximum number of idle buffers we keep around. */
+    protected static final int MAX_POOLED = 16;
+}
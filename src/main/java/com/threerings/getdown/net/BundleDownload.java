@@ -0,0 +1,236 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import com.samskivert.io.StreamUtil;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.DigestsUtil;
+import com.threerings.getdown.util.FileUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Downloads several small resources at once from the bundle into which the digester copied them
+ * (one after another). Rather than issuing a request per resource, we request the spans of the
+ * bundle that contain the resources we need (or the whole bundle, if the server doesn't serve
+ * ranges) and extract the resources as they come in. Each resource is verified against its own
+ * digest; any resource that we fail to extract is left to be downloaded on its own.
+ */
+public class BundleDownload
+{
+    /**
+     * Creates a download of the supplied resources from the bundle at the supplied URL.
+     */
+    public BundleDownload (HTTPDownloader downloader, URL url, List<Resource> rsrcs)
+    {
+        _downloader = downloader;
+        _url = url;
+        _members = new ArrayList<Resource>(rsrcs);
+    }
+
+    /**
+     * Downloads our resources, blocking until done.
+     *
+     * @return the resources that were downloaded (and verified).
+     * @throws DownloadAbortedException if the download was aborted (other failures merely leave
+     * resources to be downloaded on their own).
+     */
+    public List<Resource> download ()
+        throws IOException
+    {
+        final Digests digests = _downloader._digests;
+        Collections.sort(_members, new Comparator<Resource>() {
+            public int compare (Resource r1, Resource r2) {
+                long o1 = digests.getBundleOffset(r1), o2 = digests.getBundleOffset(r2);
+                return (o1 < o2) ? -1 : ((o1 > o2) ? 1 : 0);
+            }
+        });
+
+        // request the members in spans, skipping the gaps between them unless those are small
+        List<Resource> done = new ArrayList<Resource>();
+        int first = 0;
+        while (first < _members.size()) {
+            int last = first;
+            while (last + 1 < _members.size() &&
+                   digests.getBundleOffset(_members.get(last + 1)) - getEnd(_members.get(last)) <=
+                   MAX_GAP) {
+                last++;
+            }
+            try {
+                fetch(_members.subList(first, last + 1), done);
+            } catch (DownloadAbortedException dae) {
+                throw dae;
+            } catch (IOException ioe) {
+                // whatever we didn't get will be downloaded on its own
+                log.warning("Failed to download resources from bundle", "url", _url,
+                            "error", ioe);
+            }
+            first = last + 1;
+        }
+        return done;
+    }
+
+    /**
+     * Fetches the span of our bundle that contains the supplied (consecutive) members.
+     */
+    protected void fetch (List<Resource> members, List<Resource> done)
+        throws IOException
+    {
+        Digests digests = _downloader._digests;
+        long start = digests.getBundleOffset(members.get(0));
+        long end = getEnd(members.get(members.size() - 1));
+
+        URLConnection conn = _downloader.openConnection(_url);
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + (end-1));
+        conn.connect();
+        // if the server ignores our range request, we'll just have to skip to our span
+        long position = 0L;
+        if (conn instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection)conn).getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                position = PartialDownload.getRangeStart(conn.getHeaderField("Content-Range"));
+            } else if (code != HttpURLConnection.HTTP_OK) {
+                _downloader.releaseConnection(conn);
+                throw new IOException("Unable to download bundle " + _url + ": " + code);
+            }
+        }
+        if (position < 0 || position > start) {
+            _downloader.releaseConnection(conn);
+            throw new IOException("Unexpected response for bundle " + _url);
+        }
+
+        log.info("Downloading resources from bundle", "url", _url, "count", members.size(),
+                 "start", start, "end", end);
+        InputStream in = conn.getInputStream();
+        try {
+            for (Resource rsrc : members) {
+                long offset = digests.getBundleOffset(rsrc);
+                position += skip(in, offset - position);
+                byte[] data = new byte[(int)digests.getResourceSize(rsrc)];
+                position += read(in, data);
+                if (extract(rsrc, data)) {
+                    done.add(rsrc);
+                }
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Verifies the supplied data against the digest of the supplied resource and, if it matches,
+     * moves it into place.
+     *
+     * @return true if the resource was extracted, false if the data did not match its digest.
+     */
+    protected boolean extract (Resource rsrc, byte[] data)
+        throws IOException
+    {
+        MessageDigest md = DigestsUtil.createStreamingDigest(rsrc, _downloader._digests);
+        md.update(data);
+        String digest = DigestsUtil.finishStreamingDigest(md);
+        if (!digest.equals(_downloader._digests.getResourceDigest(rsrc))) {
+            log.warning("Bundled resource does not match its digest", "rsrc", rsrc,
+                        "bundle", _url, "got", digest);
+            return false;
+        }
+
+        File target = rsrc.getLocalFile();
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        File temp = new File(target.getPath() + BUNDLE_SUFFIX);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+        } finally {
+            StreamUtil.close(out);
+        }
+        if (!FileUtil.renameTo(temp, target)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " into place");
+        }
+        // we've verified it, so there's no need to do so again
+        rsrc.markAsValid(_downloader._digests.getResourceDigest(rsrc));
+        _downloader.updateObserver(rsrc, data.length, data.length);
+        return true;
+    }
+
+    /**
+     * Returns the position in our bundle just after the supplied member.
+     */
+    protected long getEnd (Resource rsrc)
+    {
+        Digests digests = _downloader._digests;
+        return digests.getBundleOffset(rsrc) + digests.getResourceSize(rsrc);
+    }
+
+    /**
+     * Skips the supplied number of bytes of the supplied stream.
+     */
+    protected long skip (InputStream in, long count)
+        throws IOException
+    {
+        byte[] buffer = new byte[(int)Math.min(count, SKIP_BUFFER_SIZE)];
+        long skipped = 0L;
+        while (skipped < count) {
+            int read = in.read(buffer, 0, (int)Math.min(buffer.length, count - skipped));
+            if (read < 0) {
+                throw new IOException("Bundle " + _url + " ended prematurely");
+            }
+            _downloader.throttle(read);
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    /**
+     * Fills the supplied array from the supplied stream.
+     */
+    protected int read (InputStream in, byte[] data)
+        throws IOException
+    {
+        int have = 0;
+        while (have < data.length) {
+            int read = in.read(data, have, data.length - have);
+            if (read < 0) {
+                throw new IOException("Bundle " + _url + " ended prematurely");
+            }
+            _downloader.throttle(read);
+            have += read;
+        }
+        return have;
+    }
+
+    protected HTTPDownloader _downloader;
+    protected URL _url;
+    protected List<Resource> _members;
+
+    /** The largest gap between two members that we download rather than skip with a new
+     * request. */
+    protected static final long MAX_GAP = 64 * 1024L;
+
+    /** The suffix of the file to which a member is written before being moved into place. */
+    protected static final String BUNDLE_SUFFIX = "_bundle";
+
+    protected static final int SKIP_BUFFER_SIZE = 16 * 1024;
+}
@@ -0,0 +1,254 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import com.samskivert.io.StreamUtil;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.ChunkTree;
+import com.threerings.getdown.util.DigestsUtil;
+import com.threerings.getdown.util.FileUtil;
+import com.threerings.getdown.util.ResourceVerifier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Repairs our copy of a resource (one that we validated before, but that has since failed
+ * verification, say because of a bad sector) by downloading only its corrupt chunks. The {@link
+ * ChunkTree} published next to the resource is checked against the root recorded in our (signed)
+ * digests, which tells us exactly which chunks of our copy are corrupt; those are requested with
+ * HTTP range requests, checked as they come in and written into a copy of our copy. The repaired
+ * copy is verified against its digest before it replaces our copy, which is left alone if the
+ * repair fails.
+ */
+public class ChunkRepairDownload
+{
+    /**
+     * Creates a repair of the supplied resource from the supplied URL (that of the resource, or of
+     * a mirror of it).
+     *
+     * @param size the expected size of the resource.
+     * @param root the root digest of the resource's chunk tree.
+     */
+    public ChunkRepairDownload (HTTPDownloader downloader, Resource rsrc, URL url, long size,
+                                String root)
+    {
+        _downloader = downloader;
+        _rsrc = rsrc;
+        _url = url;
+        _size = size;
+        _root = root;
+    }
+
+    /**
+     * Repairs the resource, blocking until done.
+     *
+     * @return true if the resource was repaired, false if none of our copy is usable (in which
+     * case it should simply be downloaded).
+     * @throws IOException if the repair failed, in which case the resource may still be downloaded
+     * the usual way.
+     */
+    public boolean download ()
+        throws IOException
+    {
+        File local = _rsrc.getLocalFile();
+        ChunkTree tree = fetchTree();
+        if (!tree.getRoot().equals(_root)) {
+            throw new IOException("Chunk tree of " + _url + " does not match its digest");
+        }
+        if (tree.getLength() != _size) {
+            throw new IOException("Chunk tree of " + _url + " is out of date " +
+                                  "[length=" + tree.getLength() + ", expected=" + _size + "]");
+        }
+        List<Integer> corrupt = tree.findCorrupt(local, ResourceVerifier.getDefaultThreads());
+        if (corrupt.size() == tree.getChunkCount()) {
+            return false;
+        }
+        log.info("Repairing resource chunk by chunk", "url", _url, "size", _size,
+                 "chunks", tree.getChunkCount(), "corrupt", corrupt.size());
+
+        _done = _size;
+        for (int chunk : corrupt) {
+            _done -= tree.getChunkLength(chunk);
+        }
+        File temp = new File(local.getPath() + REPAIR_SUFFIX);
+        boolean complete = false;
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel out = raf.getChannel();
+            copy(local, out);
+            // fetch each run of consecutive corrupt chunks at once
+            for (int ii = 0; ii < corrupt.size(); ) {
+                int end = ii + 1;
+                while (end < corrupt.size() && corrupt.get(end) == corrupt.get(end - 1) + 1) {
+                    end++;
+                }
+                fetch(tree, corrupt.get(ii), corrupt.get(end - 1) + 1, out);
+                ii = end;
+            }
+            complete = true;
+        } finally {
+            StreamUtil.close(raf);
+            if (!complete) {
+                temp.delete();
+            }
+        }
+
+        // the chunks add up to the resource, but make sure the digester agrees
+        Digests digests = _downloader._digests;
+        if (!DigestsUtil.validateResourceDigest(_rsrc, temp, digests)) {
+            temp.delete();
+            throw new IOException("Chunk repair of " + _url + " failed verification");
+        }
+        if (!FileUtil.renameTo(temp, local)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " into place");
+        }
+        _downloader.noteVerified(_rsrc);
+        if (!_rsrc.shouldUnpack()) {
+            // there's no need to verify it again (archives still need to be unpacked though)
+            _rsrc.markAsValid(digests.getResourceDigest(_rsrc));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes we actually downloaded.
+     */
+    public long getFetched ()
+    {
+        return _fetched;
+    }
+
+    /**
+     * Copies (at most our size's worth of) the supplied file to the start of the supplied
+     * channel.
+     */
+    protected void copy (File source, FileChannel out)
+        throws IOException
+    {
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            long length = Math.min(in.size(), _size), position = 0L;
+            while (position < length) {
+                position += in.transferTo(position, length - position, out);
+            }
+            out.truncate(length);
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Downloads the chunk tree of our resource.
+     */
+    protected ChunkTree fetchTree ()
+        throws IOException
+    {
+        URL url = new URL(_url.toString() + Digests.CHUNKS_SUFFIX);
+        URLConnection conn = _downloader.openConnection(url);
+        conn.connect();
+        if (conn instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection)conn).getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                _downloader.releaseConnection(conn);
+                throw new IOException("Unable to download chunk tree " + url + ": " + code);
+            }
+        }
+        InputStream in = conn.getInputStream();
+        try {
+            return ChunkTree.read(in);
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Downloads the supplied (consecutive) chunks, checking each against the tree before writing
+     * it over our copy.
+     *
+     * @param end the index after that of the last chunk.
+     */
+    protected void fetch (ChunkTree tree, int first, int end, FileChannel out)
+        throws IOException
+    {
+        long start = tree.getChunkStart(first);
+        long last = tree.getChunkStart(end - 1) + tree.getChunkLength(end - 1);
+        URLConnection conn = _downloader.openConnection(_url);
+        conn.setRequestProperty("Range", "bytes=" + start + "-" + (last-1));
+        conn.connect();
+        if (!(conn instanceof HttpURLConnection) ||
+            ((HttpURLConnection)conn).getResponseCode() != HttpURLConnection.HTTP_PARTIAL ||
+            PartialDownload.getRangeStart(conn.getHeaderField("Content-Range")) != start) {
+            _downloader.releaseConnection(conn);
+            throw new IOException("Server does not serve ranges of " + _url);
+        }
+
+        InputStream in = conn.getInputStream();
+        try {
+            byte[] data = new byte[tree.getChunkSize()];
+            for (int chunk = first; chunk < end; chunk++) {
+                int length = tree.getChunkLength(chunk);
+                read(in, data, length);
+                if (!tree.matches(chunk, data, length)) {
+                    throw new IOException("Chunk " + chunk + " of " + _url +
+                                          " does not match its digest");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                long position = tree.getChunkStart(chunk);
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                _done += length;
+                _downloader.updateObserver(_rsrc, _done, _size);
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Fills the first <code>length</code> bytes of the supplied array from the supplied stream.
+     */
+    protected void read (InputStream in, byte[] data, int length)
+        throws IOException
+    {
+        int have = 0;
+        while (have < length) {
+            int read = in.read(data, have, length - have);
+            if (read < 0) {
+                throw new IOException("Range of " + _url + " ended prematurely");
+            }
+            _downloader.throttle(read);
+            have += read;
+            _fetched += read;
+        }
+    }
+
+    protected HTTPDownloader _downloader;
+    protected Resource _rsrc;
+    protected URL _url;
+    protected long _size;
+    protected String _root;
+
+    /** The bytes of the resource we have so far, and those we had to download. */
+    protected long _done, _fetched;
+
+    /** The suffix of the file in which we repair our copy. */
+    protected static final String REPAIR_SUFFIX = "_repair";
+}
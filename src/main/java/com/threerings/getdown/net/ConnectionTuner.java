@@ -0,0 +1,113 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+/**
+ * Decides how many concurrent connections a {@link Downloader} should use, based on the
+ * throughput observed while downloading. Starts with a small number of connections and adds
+ * connections as long as each addition yields a meaningful increase in throughput, backing off
+ * again when it does not.
+ */
+public class ConnectionTuner
+{
+    /**
+     * Creates a tuner that will never allow more than the specified number of connections.
+     */
+    public ConnectionTuner (int maxConnections)
+    {
+        _max = Math.max(1, maxConnections);
+        _limit = Math.min(_max, INITIAL_CONNECTIONS);
+    }
+
+    /**
+     * Returns the number of connections that should currently be in use.
+     */
+    public int getLimit ()
+    {
+        return _limit;
+    }
+
+    /**
+     * Returns the maximum number of connections this tuner will allow.
+     */
+    public int getMaxConnections ()
+    {
+        return _max;
+    }
+
+    /**
+     * Informs the tuner of the number of bytes transferred during the most recent sampling
+     * interval.
+     *
+     * @return the number of connections that should be used from now on.
+     */
+    public int sample (long bytes, long elapsedMillis)
+    {
+        if (elapsedMillis <= 0) {
+            return _limit;
+        }
+        double rate = (bytes * 1000d) / elapsedMillis;
+
+        if (_lastRate < 0) {
+            // this is our first sample, so we have nothing to compare to; just try for more
+            _lastRate = rate;
+            return grow();
+        }
+
+        if (_probing) {
+            // we added a connection during the last interval, keep it only if it paid for itself
+            _probing = false;
+            if (rate >= _lastRate * (1 + MIN_GAIN)) {
+                _lastRate = rate;
+                return grow();
+            }
+            _limit = Math.max(1, _limit - 1);
+            _hold = HOLD_SAMPLES;
+            _lastRate = rate;
+            return _limit;
+        }
+
+        // we're holding steady; every so often, probe again in case conditions have changed
+        _lastRate = rate;
+        if (--_hold <= 0) {
+            return grow();
+        }
+        return _limit;
+    }
+
+    protected int grow ()
+    {
+        if (_limit < _max) {
+            _limit++;
+            _probing = true;
+        }
+        return _limit;
+    }
+
+    /** The maximum number of connections we'll allow. */
+    protected int _max;
+
+    /** The number of connections currently allowed. */
+    protected int _limit;
+
+    /** The throughput (in bytes per second) observed during the previous interval. */
+    protected double _lastRate = -1;
+
+    /** Whether we added a connection during the previous interval. */
+    protected boolean _probing;
+
+    /** The number of intervals to wait before probing for more connections again. */
+    protected int _hold;
+
+    /** The number of connections with which we start. */
+    protected static final int INITIAL_CONNECTIONS = 2;
+
+    /** The fractional throughput increase required to justify an additional connection. */
+    protected static final double MIN_GAIN = 0.05;
+
+    /** The number of intervals to hold steady after an unsuccessful probe. */
+    protected static final int HOLD_SAMPLES = 5;
+}
@@ -0,0 +1,337 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import com.samskivert.io.StreamUtil;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.data.Step;
+import com.threerings.getdown.util.FileUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Records where the time goes while Getdown updates an application: the time spent in each
+ * {@link Step} and, for each resource downloaded, the time taken to connect and receive the
+ * response, the bytes transferred and the throughput achieved, the number of retries and the time
+ * spent verifying the data. A summary is written to a JSON file once Getdown is done, and the
+ * metrics may also be exposed via JMX while Getdown is running.
+ *
+ * <p> Resources are recorded once per download attempt, never per chunk of data, so keeping
+ * metrics costs next to nothing.
+ */
+public class DownloadMetrics implements DownloadMetricsMBean
+{
+    /** The name of the file (in the appdir) to which the summary is written. */
+    public static final String SUMMARY_FILE = "metrics.json";
+
+    /**
+     * Notes that Getdown has moved on to the supplied step.
+     */
+    public synchronized void enterStep (Step step)
+    {
+        long now = System.nanoTime();
+        closeStep(now);
+        _step = step;
+        _stepStart = now;
+    }
+
+    /**
+     * Notes that Getdown has finished working (for now), so that the time spent on the current
+     * step is accounted for.
+     */
+    public synchronized void finish ()
+    {
+        closeStep(System.nanoTime());
+        _step = null;
+    }
+
+    /**
+     * Records a successful download of the supplied resource.
+     *
+     * @param connect the time (in nanos) taken to resolve the server and connect to it, or -1 if
+     * not known.
+     * @param response the time (in nanos) from connecting until the response arrived, or -1 if
+     * not known.
+     * @param bytes the number of bytes transferred.
+     * @param transfer the time (in nanos) taken to transfer those bytes.
+     */
+    public void noteTransfer (Resource rsrc, long connect, long response, long bytes,
+                              long transfer)
+    {
+        ResourceStats stats = getStats(rsrc);
+        synchronized (stats) {
+            stats.connect = connect;
+            stats.response = response;
+            stats.bytes += bytes;
+            stats.transfer += transfer;
+        }
+    }
+
+    /**
+     * Records that the supplied resource was copied from the resource cache.
+     */
+    public void noteCached (Resource rsrc)
+    {
+        ResourceStats stats = getStats(rsrc);
+        synchronized (stats) {
+            stats.cached = true;
+        }
+    }
+
+    /**
+     * Records that a failed attempt to download the supplied resource is being retried.
+     */
+    public void noteRetry (Resource rsrc)
+    {
+        ResourceStats stats = getStats(rsrc);
+        synchronized (stats) {
+            stats.retries++;
+        }
+    }
+
+    /**
+     * Records the time (in nanos) spent verifying the supplied resource.
+     */
+    public void noteVerification (Resource rsrc, long nanos)
+    {
+        ResourceStats stats = getStats(rsrc);
+        synchronized (stats) {
+            stats.verify += nanos;
+        }
+    }
+
+    // from interface DownloadMetricsMBean
+    public synchronized String getCurrentStep ()
+    {
+        return (_step == null) ? null : _step.name();
+    }
+
+    // from interface DownloadMetricsMBean
+    public synchronized int getResourceCount ()
+    {
+        return _resources.size();
+    }
+
+    // from interface DownloadMetricsMBean
+    public long getBytesDownloaded ()
+    {
+        long bytes = 0L;
+        for (ResourceStats stats : getAllStats()) {
+            synchronized (stats) {
+                bytes += stats.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    // from interface DownloadMetricsMBean
+    public int getRetries ()
+    {
+        int retries = 0;
+        for (ResourceStats stats : getAllStats()) {
+            synchronized (stats) {
+                retries += stats.retries;
+            }
+        }
+        return retries;
+    }
+
+    // from interface DownloadMetricsMBean
+    public String getSummary ()
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\n  \"started\": ").append(_started);
+        buf.append(",\n  \"elapsed_ms\": ").append(toMillis(System.nanoTime() - _startNanos));
+
+        buf.append(",\n  \"steps\": {");
+        synchronized (this) {
+            String sep = "";
+            for (Map.Entry<Step, Long> entry : _steps.entrySet()) {
+                long nanos = entry.getValue();
+                if (entry.getKey() == _step) {
+                    nanos += System.nanoTime() - _stepStart;
+                }
+                buf.append(sep).append("\n    ");
+                appendString(buf, entry.getKey().name()).append(": ").append(toMillis(nanos));
+                sep = ",";
+            }
+        }
+        buf.append("\n  }");
+
+        long bytes = 0L;
+        int retries = 0;
+        StringBuilder rbuf = new StringBuilder();
+        String sep = "";
+        for (ResourceStats stats : getAllStats()) {
+            synchronized (stats) {
+                bytes += stats.bytes;
+                retries += stats.retries;
+                rbuf.append(sep).append("\n    {\"path\": ");
+                appendString(rbuf, stats.path);
+                rbuf.append(", \"cached\": ").append(stats.cached);
+                rbuf.append(", \"bytes\": ").append(stats.bytes);
+                rbuf.append(", \"connect_ms\": ").append(toMillis(stats.connect));
+                rbuf.append(", \"response_ms\": ").append(toMillis(stats.response));
+                rbuf.append(", \"transfer_ms\": ").append(toMillis(stats.transfer));
+                rbuf.append(", \"bytes_per_sec\": ").append(
+                    (stats.transfer <= 0) ? -1L : stats.bytes * 1000000000L / stats.transfer);
+                rbuf.append(", \"retries\": ").append(stats.retries);
+                rbuf.append(", \"verify_ms\": ").append(toMillis(stats.verify)).append("}");
+            }
+            sep = ",";
+        }
+        buf.append(",\n  \"bytes\": ").append(bytes);
+        buf.append(",\n  \"retries\": ").append(retries);
+        buf.append(",\n  \"resources\": [").append(rbuf).append("\n  ]\n}\n");
+        return buf.toString();
+    }
+
+    /**
+     * Writes our summary to the supplied file, replacing whatever summary was written previously.
+     * The summary is written next to the file and then moved into place, so that a reader (or a
+     * crash) never sees half a summary.
+     */
+    public void writeSummary (File file)
+        throws IOException
+    {
+        File temp = new File(file.getPath() + "_new");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            out.write(getSummary());
+        } catch (IOException ioe) {
+            StreamUtil.close(out);
+            temp.delete();
+            throw ioe;
+        } finally {
+            StreamUtil.close(out);
+        }
+        if (!FileUtil.renameTo(temp, file)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Exposes these metrics via JMX, replacing any previously registered metrics. Failure to do
+     * so is logged, but otherwise ignored.
+     */
+    public void register ()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            log.warning("Failed to register download metrics with JMX", "error", e);
+        }
+    }
+
+    /**
+     * Returns the record for the supplied resource, creating it if need be.
+     */
+    protected synchronized ResourceStats getStats (Resource rsrc)
+    {
+        ResourceStats stats = _resources.get(rsrc.getPath());
+        if (stats == null) {
+            _resources.put(rsrc.getPath(), stats = new ResourceStats(rsrc.getPath()));
+        }
+        return stats;
+    }
+
+    /**
+     * Returns a snapshot of the records of all of our resources.
+     */
+    protected synchronized List<ResourceStats> getAllStats ()
+    {
+        return new ArrayList<ResourceStats>(_resources.values());
+    }
+
+    /**
+     * Adds the time spent on our current step (if any) to its total.
+     */
+    protected void closeStep (long now)
+    {
+        if (_step != null) {
+            Long total = _steps.get(_step);
+            _steps.put(_step, ((total == null) ? 0L : total) + now - _stepStart);
+        }
+    }
+
+    protected static long toMillis (long nanos)
+    {
+        return (nanos < 0) ? -1L : nanos / 1000000L;
+    }
+
+    protected static StringBuilder appendString (StringBuilder buf, String value)
+    {
+        buf.append('"');
+        for (int ii = 0; ii < value.length(); ii++) {
+            char c = value.charAt(ii);
+            switch (c) {
+            case '"': buf.append("\\\""); break;
+            case '\\': buf.append("\\\\"); break;
+            case '\n': buf.append("\\n"); break;
+            case '\r': buf.append("\\r"); break;
+            case '\t': buf.append("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    buf.append(String.format("\\u%04x", (int)c));
+                } else {
+                    buf.append(c);
+                }
+            }
+        }
+        return buf.append('"');
+    }
+
+    /** What we know about a single resource. */
+    protected static class ResourceStats
+    {
+        public final String path;
+        public boolean cached;
+        public long connect = -1L, response = -1L, transfer, verify;
+        public long bytes;
+        public int retries;
+
+        public ResourceStats (String path) {
+            this.path = path;
+        }
+    }
+
+    /** The time at which we started recording. */
+    protected final long _started = System.currentTimeMillis(), _startNanos = System.nanoTime();
+
+    /** The total time (in nanos) spent in each step so far. */
+    protected final Map<Step, Long> _steps = new EnumMap<Step, Long>(Step.class);
+
+    /** The step we're currently on, or null, and the time (in nanos) at which we entered it. */
+    protected Step _step;
+    protected long _stepStart;
+
+    /** Our records of the resources we've downloaded, in order of download. */
+    protected final Map<String, ResourceStats> _resources =
+        new LinkedHashMap<String, ResourceStats>();
+
+    /** The name under which our metrics are registered with JMX. */
+    protected static final String MBEAN_NAME = "com.threerings.getdown:type=DownloadMetrics";
+}
@@ -0,0 +1,27 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+/**
+ * The view of {@link DownloadMetrics} exposed via JMX.
+ */
+public interface DownloadMetricsMBean
+{
+    /** Returns the step on which Getdown is currently working, or null. */
+    public String getCurrentStep ();
+
+    /** Returns the number of resources downloaded (or copied from the resource cache) so far. */
+    public int getResourceCount ();
+
+    /** Returns the number of bytes downloaded so far. */
+    public long getBytesDownloaded ();
+
+    /** Returns the number of failed download attempts that were retried. */
+    public int getRetries ();
+
+    /** Returns a JSON summary of everything recorded so far. */
+    public String getSummary ();
+}
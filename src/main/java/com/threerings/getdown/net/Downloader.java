@@ -5,27 +5,56 @@
 
 package com.threerings.getdown.net;
 
+import com.threerings.getdown.data.Digests;
 import com.threerings.getdown.data.Resource;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.threerings.getdown.Log.log;
 
 /**
- * Handles the download of a collection of files, first issuing HTTP head requests to obtain size
- * information and then downloading the files individually, reporting progress back via a callback
- * interface.
+ * Handles the download of a collection of files, first determining their size (from the digests
+ * file, or failing that by issuing HTTP head requests) and then downloading the files, reporting
+ * progress back via a callback interface.
+ * Files are downloaded over several concurrent connections (largest files first, so that the
+ * connections all finish at about the same time); the number of connections in use is adjusted to
+ * the observed throughput by a {@link ConnectionTuner}.
  */
 public abstract class Downloader extends Thread
 {
+    /** The default maximum number of concurrent downloads. */
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 4;
+
+    /** The default number of attempts made to download each resource. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /** The default size in bytes above which a file is downloaded in segments. */
+    public static final long DEFAULT_SEGMENT_THRESHOLD = 32 * 1024 * 1024L;
+
     /**
      * An interface used to communicate status back to an external entity.  <em>Note:</em> these
-     * methods are all called on the download thread, so implementors must take care to only
-     * execute thread-safe code or simply pass a message to the AWT thread, for example.
+     * methods are all called on the download thread (the thread that called {@link #download}, not
+     * one of the threads transferring the individual files), so implementors must take care to
+     * only execute thread-safe code or simply pass a message to the AWT thread, for example.
      */
     public interface Observer
     {
@@ -70,6 +99,82 @@ public abstract class Downloader extends Thread
         _obs = obs;
     }
 
+    /**
+     * Configures the maximum number of files that will be downloaded concurrently. A value of one
+     * downloads the files sequentially on the download thread.
+     */
+    public void setMaxConcurrentDownloads (int maxConcurrent)
+    {
+        _maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * Configures the size in bytes above which a single file is downloaded in several segments
+     * over concurrent connections (as many as our limit on concurrent connections leaves
+     * available at the time). Zero disables segmented downloads.
+     */
+    public void setSegmentThreshold (long threshold)
+    {
+        _segmentThreshold = Math.max(0L, threshold);
+    }
+
+    /**
+     * Configures the number of times we try to download a single resource before giving up on the
+     * whole download. Failed attempts are retried after a (randomized, growing) delay, and resume
+     * where the failed attempt left off if the server allows it.
+     *
+     * @param maxAttempts the attempts allowed for each resource (across all of the mirrors it
+     * may be downloaded from).
+     * @param retryBudget the retries allowed across all of our resources, so that a server which
+     * has gone away entirely doesn't keep us retrying every one of them, or -1 to allow one
+     * retry for every ten resources (but at least {@link #MIN_RETRY_BUDGET}).
+     */
+    public void setMaxAttempts (int maxAttempts, int retryBudget)
+    {
+        _maxAttempts = Math.max(1, maxAttempts);
+        _retryBudget.set(retryBudget);
+    }
+
+    /**
+     * Limits the rate at which this downloader downloads (across all of its connections) to the
+     * specified number of bytes per second, or removes the limit if the value is zero. This may
+     * be called at any time, including while the download is in progress.
+     */
+    public void setMaxBandwidth (long bytesPerSecond)
+    {
+        if (_limiter != null) {
+            _limiter.setRate(bytesPerSecond);
+        } else if (bytesPerSecond > 0) {
+            _limiter = new BandwidthLimiter(bytesPerSecond);
+        }
+    }
+
+    /**
+     * Supplies the digests of the resources being downloaded. The sizes recorded therein spare us
+     * from issuing a HEAD request for each resource before we can start downloading.
+     */
+    public void setDigests (Digests digests)
+    {
+        _digests = digests;
+    }
+
+    /**
+     * Configures a cache of resources shared with other applications, which is checked before
+     * downloading each resource and to which downloaded resources are added.
+     */
+    public void setResourceCache (ResourceCache cache)
+    {
+        _cache = cache;
+    }
+
+    /**
+     * Configures the metrics to which our downloads are reported, if any.
+     */
+    public void setMetrics (DownloadMetrics metrics)
+    {
+        _metrics = metrics;
+    }
+
     /**
      * This method is invoked as the downloader thread and performs the actual downloading.
      */
@@ -87,7 +192,7 @@ public abstract class Downloader extends Thread
      */
     public boolean download ()
     {
-        Resource current = null;
+        _downloadThread = Thread.currentThread();
         try {
             // let the observer know that we're computing download size
             if (_obs != null) {
@@ -95,19 +200,42 @@ public abstract class Downloader extends Thread
             }
 
             // first compute the total size of our download
-            for (Resource resource : _resources) {
-                discoverSize(resource);
+            discoverSizes(_resources);
+            if (_retryBudget.get() < 0) {
+                _retryBudget.set(Math.max(MIN_RETRY_BUDGET, _resources.size() / 10));
             }
 
-            long totalSize = sum(_sizes.values());
-            log.info("Downloading " + totalSize + " bytes...");
+            log.info("Downloading " + _totalSize.get() + " bytes...");
 
             // make a note of the time at which we started the download
             _start = System.currentTimeMillis();
-
-            // now actually download the files
-            for (Resource resource : _resources) {
-                download(resource);
+            _throughput.sample(0L, _start);
+
+            // now actually download the files, largest first so that our connections all finish
+            // at about the same time rather than one straggling along with a huge file at the end
+            List<Resource> queue = new ArrayList<Resource>(downloadBundled(_resources));
+            Collections.sort(queue, new Comparator<Resource>() {
+                public int compare (Resource r1, Resource r2) {
+                    long s1 = _sizes.get(r1), s2 = _sizes.get(r2);
+                    return (s1 < s2) ? 1 : ((s1 > s2) ? -1 : 0);
+                }
+            });
+            if (_maxConcurrent <= 1 || queue.size() <= 1) {
+                // we're the one active connection, which a segmented download may add to
+                synchronized (_queueLock) {
+                    _active = 1;
+                    _limit = _maxConcurrent;
+                }
+                for (Resource resource : queue) {
+                    _current = resource;
+                    download(resource);
+                }
+            } else {
+                downloadConcurrently(queue);
+            }
+            if (_cache != null) {
+                // make room for whatever we added to the cache
+                _cache.trim();
             }
 
             // finally report our download completion if we did not already do so when downloading
@@ -123,7 +251,7 @@ public abstract class Downloader extends Thread
 
         } catch (Exception e) {
             if (_obs != null) {
-                _obs.downloadFailed(current, e);
+                _obs.downloadFailed(_current, e);
             } else {
                 log.warning("Observer failed.", e);
             }
@@ -131,13 +259,257 @@ public abstract class Downloader extends Thread
         return true;
     }
 
+    /**
+     * Downloads the supplied resources using a pool of worker threads, while this thread keeps the
+     * observer informed of our progress and tunes the number of active connections.
+     */
+    protected void downloadConcurrently (List<Resource> queue)
+        throws IOException
+    {
+        _queue = new LinkedList<Resource>(queue);
+        _remaining = queue.size();
+        final ConnectionTuner tuner = new ConnectionTuner(Math.min(_maxConcurrent, queue.size()));
+        _limit = tuner.getLimit();
+
+        ExecutorService workers = Executors.newFixedThreadPool(
+            tuner.getMaxConnections(), createThreadFactory("Downloader"));
+        for (int ii = 0; ii < tuner.getMaxConnections(); ii++) {
+            workers.execute(new Runnable() {
+                public void run () {
+                    Resource rsrc;
+                    while ((rsrc = takeResource()) != null) {
+                        try {
+                            download(rsrc);
+                            finishResource(rsrc, null);
+                        } catch (Exception e) {
+                            finishResource(rsrc, e);
+                        }
+                    }
+                }
+            });
+        }
+
+        try {
+            long lastSample = System.currentTimeMillis(), lastBytes = 0L;
+            while (true) {
+                synchronized (_queueLock) {
+                    if (_failure == null && _remaining > 0) {
+                        try {
+                            _queueLock.wait(UPDATE_DELAY);
+                        } catch (InterruptedException ie) {
+                            // the applet interrupts us when it stops, so abort the download
+                            Thread.currentThread().interrupt();
+                            throw new DownloadAbortedException();
+                        }
+                    }
+                    if (_failure != null) {
+                        _current = _failed;
+                        if (_failure instanceof IOException) {
+                            throw (IOException)_failure;
+                        }
+                        throw (IOException)new IOException(
+                            "Failed to download " + _failed).initCause(_failure);
+                    }
+                    if (_remaining == 0) {
+                        break;
+                    }
+                }
+
+                // let the observer know how we're doing
+                if (_obs != null) {
+                    reportProgress(false);
+                }
+
+                // adjust our connection count to the observed throughput
+                long now = System.currentTimeMillis();
+                if (now - lastSample >= TUNE_INTERVAL) {
+                    long bytes = _totalDownloaded.get();
+                    int limit = tuner.sample(bytes - lastBytes, now - lastSample);
+                    synchronized (_queueLock) {
+                        if (limit != _limit) {
+                            log.debug("Adjusting concurrent downloads", "from", _limit, "to", limit);
+                            _limit = limit;
+                            _queueLock.notifyAll();
+                        }
+                    }
+                    lastSample = now;
+                    lastBytes = bytes;
+                }
+            }
+
+        } finally {
+            // if we're bailing out early, stop any transfers that are still in progress
+            synchronized (_queueLock) {
+                _queue.clear();
+                _queueLock.notifyAll();
+            }
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Called by a worker thread to obtain the next resource to download. Blocks while the maximum
+     * number of concurrent downloads are active.
+     *
+     * @return the resource to download or null if there is nothing left for this worker to do.
+     */
+    protected Resource takeResource ()
+    {
+        synchronized (_queueLock) {
+            while (_active >= _limit && !_queue.isEmpty()) {
+                try {
+                    _queueLock.wait();
+                } catch (InterruptedException ie) {
+                    return null;
+                }
+            }
+            if (_queue.isEmpty()) {
+                return null;
+            }
+            _active++;
+            return _queue.removeFirst();
+        }
+    }
+
+    /**
+     * Called by a worker thread when it has finished downloading a resource.
+     *
+     * @param failure the exception that caused the download to fail, or null if it succeeded.
+     */
+    protected void finishResource (Resource rsrc, Exception failure)
+    {
+        synchronized (_queueLock) {
+            _active--;
+            _remaining--;
+            if (failure != null && _failure == null) {
+                _failure = failure;
+                _failed = rsrc;
+            }
+            _queueLock.notifyAll();
+        }
+    }
+
+    /**
+     * Claims up to the supplied number of connections in addition to the one through which the
+     * calling thread is downloading, as far as our current limit on active connections allows
+     * (as tuned to the observed throughput). Does not block.
+     *
+     * @return the number of connections claimed, which must be returned via {@link
+     * #releaseConnections} when they are no longer in use.
+     */
+    protected int claimConnections (int wanted)
+    {
+        synchronized (_queueLock) {
+            int claimed = Math.max(0, Math.min(wanted, _limit - _active));
+            _active += claimed;
+            return claimed;
+        }
+    }
+
+    /**
+     * Returns connections obtained via {@link #claimConnections}.
+     */
+    protected void releaseConnections (int count)
+    {
+        if (count > 0) {
+            synchronized (_queueLock) {
+                _active -= count;
+                _queueLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Determines the sizes of the supplied resources. Sizes recorded in our digests are used as
+     * is; the remaining resources are checked with the server, concurrently if we're allowed to
+     * download concurrently.
+     */
+    protected void discoverSizes (List<Resource> resources)
+        throws IOException
+    {
+        List<Resource> unknown = new ArrayList<Resource>();
+        for (Resource rsrc : resources) {
+            long size = (_digests == null) ? -1L : _digests.getResourceSize(rsrc);
+            if (size >= 0) {
+                setSize(rsrc, size);
+            } else {
+                unknown.add(rsrc);
+            }
+        }
+        if (unknown.isEmpty()) {
+            return;
+        }
+
+        log.info("Checking size of " + unknown.size() + " of " + resources.size() + " resources.");
+        if (_maxConcurrent <= 1 || unknown.size() == 1) {
+            for (Resource rsrc : unknown) {
+                _current = rsrc;
+                discoverSize(rsrc);
+            }
+            _current = null;
+            return;
+        }
+
+        ExecutorService checkers = Executors.newFixedThreadPool(
+            Math.min(_maxConcurrent, unknown.size()), createThreadFactory("Downloader-size"));
+        try {
+            List<Future<Void>> checks = new ArrayList<Future<Void>>();
+            for (final Resource rsrc : unknown) {
+                checks.add(checkers.submit(new Callable<Void>() {
+                    public Void call () throws IOException {
+                        discoverSize(rsrc);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> check : checks) {
+                try {
+                    check.get();
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof IOException) {
+                        throw (IOException)ee.getCause();
+                    }
+                    throw (IOException)new IOException("Failed to check size").initCause(
+                        ee.getCause());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new DownloadAbortedException();
+                }
+            }
+        } finally {
+            checkers.shutdownNow();
+        }
+    }
+
     /**
      * Notes the amount of data needed to download the given resource..
      */
     protected void discoverSize (Resource rsrc)
         throws IOException
     {
-        _sizes.put(rsrc, Math.max(checkSize(rsrc), 0L));
+        setSize(rsrc, Math.max(checkSize(rsrc), 0L));
+    }
+
+    /**
+     * Records the size of the supplied resource, keeping our total size up to date.
+     */
+    protected void setSize (Resource rsrc, long size)
+    {
+        Long old = _sizes.put(rsrc, size);
+        _totalSize.addAndGet(size - ((old == null) ? 0L : old));
+    }
+
+    /**
+     * Downloads those of the supplied resources that can be downloaded together with others (from
+     * a bundle of small resources, say), if the protocol supports that. This is called on the
+     * download thread, before the remaining resources are downloaded one by one.
+     *
+     * @return the resources that remain to be downloaded.
+     */
+    protected List<Resource> downloadBundled (List<Resource> rsrcs)
+        throws IOException
+    {
+        return rsrcs;
     }
 
     /**
@@ -159,7 +531,116 @@ public abstract class Downloader extends Thread
                             "Download will certainly fail.");
             }
         }
-        doDownload(rsrc);
+
+        // if another application already downloaded this very file, copy it from the cache
+        boolean cacheable = (_cache != null && _digests != null &&
+                             _digests.hasResourceDigest(rsrc));
+        if (cacheable && _cache.fetch(rsrc, _digests)) {
+            if (_metrics != null) {
+                _metrics.noteCached(rsrc);
+            }
+            long size = rsrc.getLocalFile().length();
+            updateObserver(rsrc, size, size);
+            return;
+        }
+
+        _verified.remove(rsrc);
+        downloadWithRetries(rsrc);
+        // only share what we know to be good (a copy we couldn't verify as it came in will be
+        // verified later, but we'd have to read it again to cache it)
+        if (cacheable && _verified.remove(rsrc)) {
+            _cache.store(rsrc, _digests);
+        }
+    }
+
+    /**
+     * Notes that the supplied resource was checked against its digest as it was downloaded (and
+     * before it was moved into place), which makes it fit to be added to our cache.
+     */
+    protected void noteVerified (Resource rsrc)
+    {
+        _verified.add(rsrc);
+    }
+
+    /**
+     * Downloads the supplied resource, retrying failed attempts (after a delay) as long as we
+     * have attempts left for the resource and retries left in our budget.
+     */
+    protected void downloadWithRetries (Resource rsrc)
+        throws IOException
+    {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                doDownload(rsrc);
+                return;
+            } catch (DownloadAbortedException dae) {
+                throw dae;
+            } catch (IOException ioe) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new DownloadAbortedException();
+                }
+                if (attempt >= _maxAttempts || _retryBudget.getAndDecrement() <= 0) {
+                    throw ioe;
+                }
+                long delay = getRetryDelay(attempt);
+                if (_metrics != null) {
+                    _metrics.noteRetry(rsrc);
+                }
+                log.warning("Failed to download resource, will retry", "rsrc", rsrc,
+                            "attempt", attempt, "delay", delay, "error", ioe);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new DownloadAbortedException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time (in millis) to wait before making another attempt at a download that
+     * failed the supplied number of times. The delay doubles with each failure, and is randomized
+     * so that our (and other clients') connections don't all come back at the same moment.
+     */
+    protected long getRetryDelay (int failures)
+    {
+        long delay = Math.min(MAX_RETRY_DELAY, _retryDelay << Math.min(failures - 1, 16));
+        double jitter;
+        synchronized (_random) {
+            jitter = _random.nextDouble();
+        }
+        return delay / 2 + (long)(jitter * delay / 2);
+    }
+
+    /**
+     * Returns true if the supplied resource is large enough to be worth downloading in several
+     * segments at once (see {@link SegmentedDownload}).
+     */
+    protected boolean shouldSegment (Resource rsrc)
+    {
+        Long size = _sizes.get(rsrc);
+        return _segmentThreshold > 0 && _maxConcurrent > 1 && size != null &&
+            size >= _segmentThreshold;
+    }
+
+    /**
+     * Called by the protocol-specific downloaders when they've read the specified number of
+     * bytes, blocking as long as needed to keep us within our bandwidth limit.
+     */
+    protected void throttle (long bytes)
+        throws IOException
+    {
+        BandwidthLimiter limiter = _limiter;
+        if (limiter == null) {
+            return;
+        }
+        try {
+            limiter.acquire(bytes);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new DownloadAbortedException();
+        }
     }
 
     /**
@@ -179,31 +660,53 @@ public abstract class Downloader extends Thread
         throws IOException
     {
         // update the actual size for this resource (but don't let it shrink)
-        _sizes.put(rsrc, actualSize = Math.max(actualSize, _sizes.get(rsrc)));
+        Long size = _sizes.get(rsrc);
+        actualSize = Math.max(actualSize, (size == null) ? 0L : size);
+        if (size == null || actualSize != size) {
+            setSize(rsrc, actualSize);
+        }
 
         // update the current downloaded size for said resource; don't allow the downloaded bytes
         // to exceed the original claimed size of the resource, otherwise our progress will get
-        // booched and we'll end up back on the Daily WTF: http://tinyurl.com/29wt4oq
-        _downloaded.put(rsrc, Math.min(actualSize, currentSize));
+        // booched and we'll end up back on the Daily WTF: http://tinyurl.com/29wt4oq; we apply
+        // the difference to our running total, which stays consistent with the per-resource
+        // counts even when several threads report on the same resource
+        long downloaded = Math.min(actualSize, currentSize);
+        Long old = _downloaded.put(rsrc, downloaded);
+        _totalDownloaded.addAndGet(downloaded - ((old == null) ? 0L : old));
+
+        // if we're downloading on the download thread, notify the observer directly; otherwise
+        // the download thread will take care of it while it waits for our workers
+        if (Thread.currentThread() == _downloadThread) {
+            reportProgress(false);
+        } else if (Thread.currentThread().isInterrupted()) {
+            // we've been cancelled by the download thread
+            throw new DownloadAbortedException();
+        }
+    }
 
-        // notify the observer if it's been sufficiently long since our last notification
+    /**
+     * Notifies the observer of our progress if it's been sufficiently long since our last
+     * notification (or if forced to do so). Must only be called on the download thread.
+     */
+    protected void reportProgress (boolean force)
+        throws IOException
+    {
         long now = System.currentTimeMillis();
-        if ((now - _lastUpdate) >= UPDATE_DELAY) {
+        if (force || (now - _lastUpdate) >= UPDATE_DELAY) {
             _lastUpdate = now;
 
-            // total up our current and total bytes
-            long downloaded = sum(_downloaded.values());
-            long totalSize = sum(_sizes.values());
-
-            // compute our bytes per second
-            long secs = (now - _start) / 1000L;
-            long bps = (secs == 0) ? 0 : (downloaded / secs);
+            long downloaded = _totalDownloaded.get();
+            long totalSize = _totalSize.get();
 
             // compute our percentage completion
             int pctdone = (totalSize == 0) ? 0 : (int)((downloaded * 100f) / totalSize);
 
-            // estimate our time remaining
-            long remaining = (bps <= 0 || totalSize == 0) ? -1 : (totalSize - downloaded) / bps;
+            // estimate our time remaining from our recent throughput
+            _throughput.sample(downloaded, now);
+            _bytesPerSecond = _throughput.getBytesPerSecond();
+            long remaining = (totalSize == 0) ? -1 :
+                _throughput.getRemaining(totalSize - downloaded);
 
             // make sure we only report 100% exactly once
             if (pctdone < 100 || !_complete) {
@@ -212,19 +715,22 @@ public abstract class Downloader extends Thread
                     throw new DownloadAbortedException();
                 }
             }
-        }   
+        }
     }
 
     /**
-     * Sums the supplied values.
+     * Creates a factory for the daemon threads used to download and check resources.
      */
-    protected static long sum (Iterable<Long> values)
+    protected static ThreadFactory createThreadFactory (final String prefix)
     {
-        long acc = 0L;
-        for (Long value : values) {
-            acc += value;
-        }
-        return acc;
+        return new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, prefix + "-" + (++_count));
+                thread.setDaemon(true);
+                return thread;
+            }
+            protected int _count;
+        };
     }
 
     /**
@@ -237,22 +743,82 @@ public abstract class Downloader extends Thread
     protected List<Resource> _resources;
 
     /** The reported sizes of our resources. */
-    protected Map<Resource, Long> _sizes = new HashMap<Resource, Long>();
+    protected Map<Resource, Long> _sizes = new ConcurrentHashMap<Resource, Long>();
 
     /** The bytes downloaded for each resource. */
-    protected Map<Resource, Long> _downloaded = new HashMap<Resource, Long>();
+    protected Map<Resource, Long> _downloaded = new ConcurrentHashMap<Resource, Long>();
+
+    /** The sums of {@link #_sizes} and {@link #_downloaded}, maintained as they change. */
+    protected final AtomicLong _totalSize = new AtomicLong(), _totalDownloaded = new AtomicLong();
 
     /** The observer with whom we are communicating. */
     protected Observer _obs;
 
-    /** Used while downloading. */
-    protected byte[] _buffer = new byte[4096];
+    /** The digests of our resources, if available, used to look up their sizes. */
+    protected Digests _digests;
+
+    /** The maximum number of files we'll download concurrently. */
+    protected int _maxConcurrent = DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+
+    /** The number of attempts we make to download each resource. */
+    protected int _maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /** The number of retries we may still make across all resources, or -1 if not yet set. */
+    protected final AtomicInteger _retryBudget = new AtomicInteger(-1);
+
+    /** The delay (in millis) before the first retry of a failed download. */
+    protected long _retryDelay = INITIAL_RETRY_DELAY;
+
+    /** Randomizes our retry delays. */
+    protected final Random _random = new Random();
+
+    /** The size above which files are downloaded in segments, or zero to never do so. */
+    protected long _segmentThreshold = DEFAULT_SEGMENT_THRESHOLD;
+
+    /** Limits our bandwidth, or null if we may download as fast as we can. */
+    protected volatile BandwidthLimiter _limiter;
+
+    /** The cache of resources shared with other applications, or null. */
+    protected ResourceCache _cache;
+
+    /** The resources verified by their download, which have yet to be added to our cache. */
+    protected final Set<Resource> _verified =
+        Collections.synchronizedSet(new HashSet<Resource>());
+
+    /** The metrics to which we report our downloads, or null. */
+    protected DownloadMetrics _metrics;
+
+    /** The thread on which {@link #download} was called. */
+    protected Thread _downloadThread;
+
+    /** The resource being downloaded when a failure occurred (for reporting to the observer). */
+    protected Resource _current;
+
+    /** Guards our download queue and the bookkeeping of our worker threads. */
+    protected final Object _queueLock = new Object();
+
+    /** The resources still waiting to be downloaded by our worker threads. */
+    protected LinkedList<Resource> _queue;
+
+    /** The number of resources that have not yet been completely downloaded. */
+    protected int _remaining;
+
+    /** The number of connections currently active (one per download, plus those claimed by
+     * segmented downloads), and the number that may be active. */
+    protected int _active, _limit;
+
+    /** The first failure reported by one of our workers, and the resource that failed. */
+    protected Exception _failure;
+    protected Resource _failed;
 
     /** The time at which the file transfer began. */
     protected long _start;
 
-    /** The current transfer rate in bytes per second. */
-    protected long _bytesPerSecond;
+    /** Estimates our transfer rate (and thus the time remaining) on the download thread. */
+    protected ThroughputEstimator _throughput = new ThroughputEstimator(THROUGHPUT_WINDOW);
+
+    /** The current transfer rate in bytes per second, or -1 if not yet known. */
+    protected long _bytesPerSecond = -1L;
 
     /** The time at which the last progress update was posted to the progress observer. */
     protected long _lastUpdate;
@@ -263,4 +829,19 @@ public abstract class Downloader extends Thread
     /** The delay in milliseconds between notifying progress observers of file download
      * progress. */
     protected static final long UPDATE_DELAY = 500L;
+
+    /** The interval in milliseconds at which we adjust the number of concurrent downloads. */
+    protected static final long TUNE_INTERVAL = 1000L;
+
+    /** The delay (in millis) before the first retry of a failed download. */
+    protected static final long INITIAL_RETRY_DELAY = 1000L;
+
+    /** The longest we wait (in millis) before retrying a failed download. */
+    protected static final long MAX_RETRY_DELAY = 30 * 1000L;
+
+    /** The smallest number of retries we allow across all resources. */
+    protected static final int MIN_RETRY_BUDGET = 5;
+
+    /** The time (in millis) over which we average our throughput to estimate time remaining. */
+    protected static final long THROUGHPUT_WINDOW = 5000L;
 }
@@ -6,15 +6,28 @@
 package com.threerings.getdown.net;
 
 import com.samskivert.io.StreamUtil;
+import com.threerings.getdown.data.Digests;
 import com.threerings.getdown.data.Resource;
 import com.threerings.getdown.util.ConnectionUtil;
+import com.threerings.getdown.util.DigestsUtil;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import static com.threerings.getdown.Log.log;
 
@@ -32,75 +45,496 @@ public class HTTPDownloader extends Downloader
     protected long checkSize (Resource rsrc)
         throws IOException
     {
-        URLConnection conn = ConnectionUtil.open(rsrc.getRemote());
-        try {
-            // if we're accessing our data via HTTP, we only need a HEAD request
-            if (conn instanceof HttpURLConnection) {
-                HttpURLConnection hcon = (HttpURLConnection)conn;
-                hcon.setRequestMethod("HEAD");
-                hcon.connect();
-                // make sure we got a satisfactory response code
-                if (hcon.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                    throw new IOException("Unable to check up-to-date for " +
-                                          rsrc.getRemote() + ": " + hcon.getResponseCode());
-                }
+        URLConnection conn = openConnection(rsrc.getRemote());
+        // if we're accessing our data via HTTP, we only need a HEAD request
+        if (conn instanceof HttpURLConnection) {
+            HttpURLConnection hcon = (HttpURLConnection)conn;
+            hcon.setRequestMethod("HEAD");
+            hcon.connect();
+            // make sure we got a satisfactory response code
+            int code = hcon.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                releaseConnection(conn);
+                throw new IOException("Unable to check up-to-date for " +
+                                      rsrc.getRemote() + ": " + code);
             }
+        }
+        try {
             return conn.getContentLength();
-
         } finally {
             // let it be known that we're done with this connection
             conn.getInputStream().close();
         }
     }
 
+    @Override
+    protected List<Resource> downloadBundled (List<Resource> rsrcs)
+        throws IOException
+    {
+        if (_digests == null) {
+            return rsrcs;
+        }
+
+        // group the resources that we can fetch from bundles by bundle
+        Map<String, List<Resource>> bundles = new LinkedHashMap<String, List<Resource>>();
+        for (Resource rsrc : rsrcs) {
+            String bundle = _digests.getBundle(rsrc);
+            String remote = rsrc.getRemote().toString();
+            if (bundle == null || rsrc.shouldUnpack() || !_digests.hasResourceDigest(rsrc) ||
+                _digests.getResourceSize(rsrc) < 0 || !remote.endsWith(rsrc.getPath())) {
+                continue;
+            }
+            // bundles live relative to the appbase, as do the resources themselves
+            String url = remote.substring(0, remote.length() - rsrc.getPath().length()) + bundle;
+            List<Resource> members = bundles.get(url);
+            if (members == null) {
+                bundles.put(url, members = new ArrayList<Resource>());
+            }
+            members.add(rsrc);
+        }
+
+        List<Resource> remaining = new ArrayList<Resource>(rsrcs);
+        for (Map.Entry<String, List<Resource>> entry : bundles.entrySet()) {
+            // a lone resource may as well be downloaded on its own
+            if (entry.getValue().size() < MIN_BUNDLED) {
+                continue;
+            }
+            _current = entry.getValue().get(0);
+            remaining.removeAll(
+                new BundleDownload(this, new URL(entry.getKey()), entry.getValue()).download());
+        }
+        _current = null;
+        return remaining;
+    }
+
+    /**
+     * Configures the mirrors from which resources are downloaded. Each attempt at downloading a
+     * resource goes to the mirror that the selector deems best at the time, so that a failed
+     * attempt is retried (as allowed by our attempts and retry budget) from the next best mirror.
+     */
+    public void setMirrors (MirrorSelector mirrors)
+    {
+        _mirrors = mirrors;
+    }
+
+    /**
+     * Opens a connection to the supplied URL.
+     */
+    protected URLConnection openConnection (URL url)
+        throws IOException
+    {
+        URLConnection conn = ConnectionUtil.open(url);
+        if (conn.getReadTimeout() == 0) {
+            // a stalled transfer should fail, so that we can retry it (perhaps from another
+            // mirror) rather than wait forever
+            conn.setReadTimeout((int)STALL_TIMEOUT);
+        }
+        return conn;
+    }
+
+    /**
+     * Called when we're abandoning a connection before (or without) reading its response body,
+     * for example because the server responded with an error. The JVM only returns a connection
+     * to its pool of persistent (keep-alive) connections if its response has been read in its
+     * entirety, so rather than drop the connection (and make the next download pay for a new TCP
+     * and TLS handshake), we read and discard the response if it is reasonably small.
+     */
+    protected void releaseConnection (URLConnection conn)
+    {
+        if (!(conn instanceof HttpURLConnection)) {
+            return;
+        }
+
+        HttpURLConnection hcon = (HttpURLConnection)conn;
+        InputStream in = null;
+        try {
+            in = (hcon.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) ?
+                hcon.getErrorStream() : hcon.getInputStream();
+            if (in == null || drain(in, getMaxDrain())) {
+                // the connection has been returned to the pool (or was never usable anyway)
+                return;
+            }
+        } catch (IOException ioe) {
+            log.debug("Failed to drain connection", "url", conn.getURL(), "error", ioe);
+        } finally {
+            StreamUtil.close(in);
+        }
+
+        // the response is too large to be worth reading, so give up on this connection
+        hcon.disconnect();
+    }
+
+    /**
+     * Returns the most data we'll read and discard in order to keep a connection alive.
+     */
+    protected long getMaxDrain ()
+    {
+        return MAX_DRAIN;
+    }
+
+    /**
+     * Reads and discards the remainder of the supplied stream, unless it is longer than the
+     * supplied limit.
+     *
+     * @return true if the stream was read to its end.
+     */
+    protected static boolean drain (InputStream in, long limit)
+        throws IOException
+    {
+        byte[] buffer = new byte[4096];
+        long drained = 0L;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            drained += read;
+            if (drained > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void downloadWithRetries (Resource rsrc)
+        throws IOException
+    {
+        try {
+            super.downloadWithRetries(rsrc);
+        } finally {
+            _triedMirrors.remove(rsrc);
+        }
+    }
+
     @Override
     protected void doDownload (Resource rsrc)
         throws IOException
     {
+        if (_mirrors == null) {
+            download(rsrc, rsrc.getRemote(), false);
+            return;
+        }
+
+        // this is a single attempt: the selector passes over the mirrors that already failed to
+        // deliver this resource (until we've tried them all), so our caller's retries fail over
+        // to the other mirrors
+        List<URL> tried = _triedMirrors.get(rsrc);
+        if (tried == null) {
+            _triedMirrors.put(rsrc, tried = new ArrayList<URL>());
+        }
+        URL mirror = _mirrors.select(tried);
+        if (mirror == null) {
+            throw new IOException("No mirror available from which to download " + rsrc.getRemote());
+        }
+        for (URL url : tried) {
+            // (URL.equals would resolve the hosts, so we compare the URLs as strings)
+            if (url.toString().equals(mirror.toString())) {
+                // every mirror has had a go, so start another round
+                tried.clear();
+                break;
+            }
+        }
+        boolean success = false;
+        try {
+            // if we'll verify the resource as it comes in, we can pick up where another mirror
+            // left off
+            boolean verified = (_digests != null && _digests.hasResourceDigest(rsrc) &&
+                                DigestsUtil.isDigestedRaw(rsrc, _digests));
+            download(rsrc, _mirrors.getMirrorURL(rsrc.getRemote(), mirror), verified);
+            success = true;
+        } catch (DownloadAbortedException dae) {
+            // don't hold our being cancelled against the mirror
+            success = true;
+            throw dae;
+        } catch (IOException ioe) {
+            if (Thread.currentThread().isInterrupted()) {
+                success = true;
+                throw new DownloadAbortedException();
+            }
+            log.info("Failed to download resource from mirror", "rsrc", rsrc, "mirror", mirror);
+            tried.add(mirror);
+            throw ioe;
+        } finally {
+            _mirrors.release(mirror, success);
+        }
+    }
+
+    /**
+     * Downloads the supplied resource from the supplied URL.
+     *
+     * @param anyMirror whether we may resume data downloaded from another mirror (which we may
+     * only do if the resource is verified as it is downloaded).
+     */
+    protected void download (Resource rsrc, URL remote, boolean anyMirror)
+        throws IOException
+    {
+        // if our copy of the resource was validated against its current digest but has been
+        // corrupted since (rather than being an old version), and the digester published the
+        // resource's chunk tree, download only the chunks that are corrupt
+        long start = System.nanoTime();
+        if (_digests != null && _digests.hasResourceDigest(rsrc) &&
+            _digests.getChunkRoot(rsrc) != null && _digests.getResourceSize(rsrc) >= 0 &&
+            rsrc.getLocalFile().isFile() &&
+            rsrc.wasMarkedValid(_digests.getResourceDigest(rsrc))) {
+            ChunkRepairDownload repair = new ChunkRepairDownload(
+                this, rsrc, remote, _digests.getResourceSize(rsrc), _digests.getChunkRoot(rsrc));
+            try {
+                if (repair.download()) {
+                    if (_metrics != null) {
+                        _metrics.noteTransfer(rsrc, -1L, -1L, repair.getFetched(),
+                                              System.nanoTime() - start);
+                    }
+                    return;
+                }
+            } catch (DownloadAbortedException dae) {
+                throw dae;
+            } catch (IOException ioe) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new DownloadAbortedException();
+                }
+                log.info("Failed to repair resource chunk by chunk", "rsrc", rsrc, "error", ioe);
+            }
+        }
+
+        // if we have an old copy of the resource and the digester published a signature of its
+        // blocks, download only the blocks that changed
+        start = System.nanoTime();
+        if (_digests != null && _digests.hasResourceDigest(rsrc) &&
+            _digests.getBlockSignatureSize(rsrc) >= 0 && rsrc.getLocalFile().isFile()) {
+            BlockSyncDownload sync = new BlockSyncDownload(
+                this, rsrc, remote, _digests.getResourceSize(rsrc));
+            try {
+                if (sync.download()) {
+                    if (_metrics != null) {
+                        _metrics.noteTransfer(rsrc, -1L, -1L, sync.getFetched(),
+                                              System.nanoTime() - start);
+                    }
+                    return;
+                }
+            } catch (DownloadAbortedException dae) {
+                throw dae;
+            } catch (IOException ioe) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new DownloadAbortedException();
+                }
+                log.info("Failed to update resource block by block, downloading it in full",
+                         "rsrc", rsrc, "error", ioe);
+            }
+        }
+
+        // fetch large files over several connections at once, if the server lets us and we have
+        // connections to spare (they count against the same limit as our other downloads)
+        start = System.nanoTime();
+        int extra = shouldSegment(rsrc) ? claimConnections(_maxConcurrent - 1) : 0;
+        try {
+            if (extra > 0 && new SegmentedDownload(
+                    this, rsrc, remote, _sizes.get(rsrc), extra + 1).download()) {
+                if (_metrics != null) {
+                    _metrics.noteTransfer(rsrc, -1L, -1L, _sizes.get(rsrc),
+                                          System.nanoTime() - start);
+                }
+                return;
+            }
+        } finally {
+            releaseConnections(extra);
+        }
+
+        // if the digester published a compressed copy of the resource, download that instead
+        URL url = remote;
+        boolean sibling = (_digests != null && _digests.getCompressedSize(rsrc) >= 0);
+        if (sibling) {
+            url = new URL(url.toString() + Digests.COMPRESSED_SUFFIX);
+        }
+
+        // pick up where a previous attempt left off, if we can (we can't resume a compressed
+        // copy, as we only know how much of the uncompressed data we have)
+        PartialDownload partial = new PartialDownload(rsrc.getLocalFile());
+        long offset = sibling ? 0L :
+            (anyMirror ? partial.getMirrorResumeOffset(url) : partial.getResumeOffset(url));
+
         // download the resource from the specified URL
-        URLConnection conn = ConnectionUtil.open(rsrc.getRemote());
+        start = System.nanoTime();
+        URLConnection conn = openConnection(url);
+        partial.configure(conn, offset);
+        if (offset == 0 && !sibling) {
+            ConnectionUtil.acceptCompressed(conn);
+        }
         conn.connect();
+        long connected = System.nanoTime();
 
         // make sure we got a satisfactory response code
         if (conn instanceof HttpURLConnection) {
             HttpURLConnection hcon = (HttpURLConnection)conn;
-            if (hcon.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                throw new IOException("Unable to download resource " + rsrc.getRemote() + ": " +
-                                      hcon.getResponseCode());
+            int code = hcon.getResponseCode();
+            if (offset > 0 && code == HTTP_RANGE_NOT_SATISFIABLE) {
+                // our partial data doesn't match what's on the server; start over
+                log.info("Discarding unusable partial download", "url", url, "offset", offset);
+                releaseConnection(conn);
+                partial.discard();
+                download(rsrc, remote, anyMirror);
+                return;
+            }
+            if (code != HttpURLConnection.HTTP_OK &&
+                !(offset > 0 && code == HttpURLConnection.HTTP_PARTIAL)) {
+                releaseConnection(conn);
+                throw new IOException("Unable to download resource " + url + ": " + code);
             }
         }
+        long responded = System.nanoTime();
 
-        long actualSize = conn.getContentLength();
-        log.info("Downloading resource", "url", rsrc.getRemote(), "size", actualSize);
-        InputStream in = null;
-        FileOutputStream out = null;
-        long currentSize = 0L;
-        try {
-            in = conn.getInputStream();
-            out = new FileOutputStream(rsrc.getLocalFile());
-            int read;
+        // if the server ignored our range request, we'll be receiving the whole file again
+        offset = partial.getResponseOffset(conn, offset);
+        boolean compressed = sibling || ConnectionUtil.isCompressed(conn);
+        long actualSize;
+        if (compressed) {
+            // the content length is that of the compressed data, which is of no use to us
+            actualSize = (_digests == null) ? -1L : _digests.getResourceSize(rsrc);
+        } else {
+            long length = getContentLength(conn);
+            actualSize = (length < 0) ? -1L : offset + length;
+        }
+        log.info("Downloading resource", "url", url, "size", actualSize, "resumeAt", offset,
+                 "compressed", compressed);
+        // if we know what the resource should digest to, digest it as it comes in so that we
+        // needn't read it back in again to validate it
+        MessageDigest md = (_digests != null && _digests.hasResourceDigest(rsrc)) ?
+            DigestsUtil.createStreamingDigest(rsrc, _digests) : null;
 
-            // TODO: look to see if we have a download info file
-            // containing info on potentially partially downloaded data;
-            // if so, use a "Range: bytes=HAVE-" header.
+        ReadableByteChannel in = null;
+        FileChannel out = null;
+        ByteBuffer buffer = BufferPool.acquire();
+        long currentSize = offset, reported = offset, verifying = 0L;
+        boolean complete = false;
+        try {
+            InputStream stream = conn.getInputStream();
+            if (compressed) {
+                stream = new GZIPInputStream(stream, BufferPool.BUFFER_SIZE);
+            }
+            in = Channels.newChannel(stream);
+            out = partial.open(conn, offset, actualSize);
+            if (md != null && offset > 0) {
+                long digestStart = System.nanoTime();
+                partial.digest(md, offset);
+                verifying += System.nanoTime() - digestStart;
+            }
 
             // read in the file data
-            while ((read = in.read(_buffer)) != -1) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (read == 0) {
+                    continue;
+                }
+                throttle(read);
                 // write it out to our local copy
-                out.write(_buffer, 0, read);
+                buffer.flip();
+                if (md != null) {
+                    long digestStart = System.nanoTime();
+                    md.update(buffer.duplicate());
+                    verifying += System.nanoTime() - digestStart;
+                }
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+                currentSize += read;
+                partial.noteWritten(currentSize);
 
                 // if we have no observer, then don't bother computing download statistics
                 if (_obs == null) {
                     continue;
                 }
 
-                // note that we've downloaded some data
-                currentSize += read;
+                // note that we've downloaded some data, but don't bother doing so for every
+                // little chunk that trickles in
+                if (currentSize - reported >= PROGRESS_GRANULARITY) {
+                    updateObserver(rsrc, currentSize, actualSize);
+                    reported = currentSize;
+                }
+            }
+            complete = true;
+            if (_obs != null && reported != currentSize) {
                 updateObserver(rsrc, currentSize, actualSize);
             }
         } finally {
             StreamUtil.close(in);
             StreamUtil.close(out);
+            BufferPool.release(buffer);
+            if (!complete) {
+                // make a note of what we have so that the next attempt can resume from there
+                partial.save();
+            }
+        }
+
+        long transferred = System.nanoTime();
+
+        if (actualSize >= 0 && currentSize != actualSize) {
+            partial.save();
+            throw new IOException("Download of " + url + " ended prematurely " +
+                                  "[got=" + currentSize + ", expected=" + actualSize + "]");
+        }
+        // only move the file into place if it is the file we expected
+        if (md != null) {
+            String digest = DigestsUtil.finishStreamingDigest(md);
+            verifying += System.nanoTime() - transferred;
+            if (!digest.equals(_digests.getResourceDigest(rsrc))) {
+                partial.discard();
+                throw new IOException("Downloaded " + url + " does not match its " +
+                                      "digest [got=" + digest + "]");
+            }
         }
+        partial.complete();
+        if (md != null) {
+            noteVerified(rsrc);
+        }
+        if (_metrics != null) {
+            _metrics.noteTransfer(rsrc, connected - start, responded - connected,
+                                  currentSize - offset, transferred - responded);
+            if (md != null) {
+                _metrics.noteVerification(rsrc, verifying);
+            }
+        }
+        if (md != null && !rsrc.shouldUnpack()) {
+            // we've verified it as we downloaded it, so there's no need to do so again (archives
+            // still need to be unpacked though)
+            rsrc.markAsValid(_digests.getResourceDigest(rsrc));
+        }
+    }
+
+    /**
+     * Returns the length of the content returned by the supplied connection, which may exceed
+     * the range of {@link URLConnection#getContentLength}.
+     */
+    protected static long getContentLength (URLConnection conn)
+    {
+        String length = conn.getHeaderField("Content-Length");
+        if (length != null) {
+            try {
+                return Long.parseLong(length.trim());
+            } catch (NumberFormatException nfe) {
+                // fall through and let the connection have a go
+            }
+        }
+        return conn.getContentLength();
     }
+
+    /** The mirrors from which we download, or null if we download from the appbase alone. */
+    protected MirrorSelector _mirrors;
+
+    /** The mirrors that failed to deliver each of the resources we're downloading. */
+    protected Map<Resource, List<URL>> _triedMirrors =
+        Collections.synchronizedMap(new HashMap<Resource, List<URL>>());
+
+    /** The number of bytes we transfer between updates of our observer. */
+    protected static final long PROGRESS_GRANULARITY = 64 * 1024L;
+
+    /** The time (in millis) after which we give up on a server that has stopped sending data,
+     * unless otherwise configured via {@link com.threerings.getdown.data.SysProps#readTimeout}. */
+    protected static final long STALL_TIMEOUT = 30 * 1000L;
+
+    /** The most data we'll read and discard in order to keep a connection alive. */
+    protected static final long MAX_DRAIN = 64 * 1024L;
+
+    /** The fewest resources we download from a bundle (rather than one by one). */
+    protected static final int MIN_BUNDLED = 2;
+
+    /** Not defined by {@link HttpURLConnection}, sadly. */
+    protected static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 }
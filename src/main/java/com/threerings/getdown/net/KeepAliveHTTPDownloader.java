@@ -0,0 +1,56 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import com.threerings.getdown.data.Resource;
+
+import java.util.List;
+
+/**
+ * An {@link HTTPDownloader} for deployments of many small files, which takes greater pains to
+ * hold on to its persistent (keep-alive) connections, so that each file does not incur a new TCP
+ * (and TLS) handshake. It will read and discard larger unwanted responses than a plain downloader
+ * (see {@link #releaseConnection}) and it relies on the JVM's connection pool having been sized
+ * to hold the connections of all of our concurrent downloads (see {@link
+ * #configureConnectionPool}).
+ */
+public class KeepAliveHTTPDownloader extends HTTPDownloader
+{
+    /** The default number of idle persistent connections the JVM keeps per server. */
+    public static final int DEFAULT_POOLED_CONNECTIONS = 16;
+
+    public KeepAliveHTTPDownloader (List<Resource> resources, Observer obs)
+    {
+        super(resources, obs);
+    }
+
+    /**
+     * Configures the number of idle connections the JVM keeps open to each server, unless the
+     * user has already done so. The JVM reads this setting once, when it first pools a
+     * connection, so this must be called before we talk to any server. The JVM's default of five
+     * is too small to hold on to the connections of all of our concurrent downloads.
+     */
+    public static void configureConnectionPool (int connections)
+    {
+        if (System.getProperty(MAX_CONNECTIONS_PROPERTY) == null) {
+            System.setProperty(MAX_CONNECTIONS_PROPERTY, String.valueOf(connections));
+        }
+    }
+
+    @Override
+    protected long getMaxDrain ()
+    {
+        return KEEP_ALIVE_MAX_DRAIN;
+    }
+
+    /** The most data we'll read and discard in order to keep a connection alive. Reading this
+     * much over an established connection still costs less than a handshake with a distant
+     * server. */
+    protected static final long KEEP_ALIVE_MAX_DRAIN = 512 * 1024L;
+
+    /** The system property via which the JVM's connection pool is configured. */
+    protected static final String MAX_CONNECTIONS_PROPERTY = "http.maxConnections";
+}
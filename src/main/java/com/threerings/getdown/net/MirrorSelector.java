@@ -0,0 +1,296 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import com.samskivert.io.StreamUtil;
+import com.threerings.getdown.util.ConnectionUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Chooses among several servers (mirrors) that host identical copies of an application. The
+ * mirrors are first probed concurrently, which measures the latency of each and the throughput
+ * with which it delivers a small sample of data. Downloads are then spread across the mirrors
+ * that responded, in proportion to their speed, and a mirror that repeatedly fails is avoided
+ * for the rest of the session. The mirrors need not be trusted: every resource is verified
+ * against the digests obtained from the primary appbase, whichever mirror served it.
+ */
+public class MirrorSelector
+{
+    /**
+     * Creates a selector for the supplied appbase and its mirrors.
+     *
+     * @param appbase the (versioned) appbase from which our resource URLs were created.
+     * @param mirrors the (versioned) URLs at which the contents of the appbase are mirrored.
+     */
+    public MirrorSelector (URL appbase, List<URL> mirrors)
+    {
+        _appbase = appbase;
+        _mirrors.add(new Mirror(appbase));
+        for (URL url : mirrors) {
+            if (!url.toString().equals(appbase.toString())) {
+                _mirrors.add(new Mirror(url));
+            }
+        }
+    }
+
+    /**
+     * Probes all of our mirrors at once by downloading (the start of) the file at the supplied
+     * path, relative to the appbase. Mirrors that fail to deliver it within a reasonable time are
+     * considered unhealthy. If all of them fail, they are all given the benefit of the doubt.
+     */
+    public void probe (final String path)
+    {
+        ExecutorService probers = Executors.newFixedThreadPool(
+            _mirrors.size(), Downloader.createThreadFactory("Downloader-probe"));
+        try {
+            List<Future<Void>> probes = new ArrayList<Future<Void>>();
+            for (final Mirror mirror : _mirrors) {
+                probes.add(probers.submit(new Callable<Void>() {
+                    public Void call () throws IOException {
+                        probe(mirror, new URL(mirror.url, path));
+                        return null;
+                    }
+                }));
+            }
+
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+            for (int ii = 0; ii < probes.size(); ii++) {
+                Mirror mirror = _mirrors.get(ii);
+                try {
+                    long wait = Math.max(1L, deadline - System.currentTimeMillis());
+                    probes.get(ii).get(wait, TimeUnit.MILLISECONDS);
+                    log.info("Probed mirror", "url", mirror.url, "latency", mirror.latency,
+                             "throughput", mirror.throughput);
+                } catch (Exception e) {
+                    log.info("Mirror failed probe", "url", mirror.url, "error", e);
+                    synchronized (this) {
+                        mirror.failures = MAX_FAILURES;
+                    }
+                }
+            }
+        } finally {
+            probers.shutdownNow();
+        }
+
+        synchronized (this) {
+            if (getHealthyCount() == 0) {
+                for (Mirror mirror : _mirrors) {
+                    mirror.failures = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of mirrors that we have not given up on.
+     */
+    public synchronized int getHealthyCount ()
+    {
+        int count = 0;
+        for (Mirror mirror : _mirrors) {
+            if (mirror.failures < MAX_FAILURES) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Selects the mirror from which to download the next resource: the healthy mirror that we
+     * expect to serve it soonest, given its speed and the number of downloads already in
+     * progress from it. The caller must report the outcome of the download via {@link #release}.
+     *
+     * @return the base URL of the mirror, or null if all of our mirrors have failed.
+     */
+    public URL select ()
+    {
+        return select(Collections.<URL>emptyList());
+    }
+
+    /**
+     * Selects the mirror from which to retry the download of a resource, as {@link #select()}
+     * does, but passing over the supplied mirrors (those that already failed to deliver the
+     * resource) unless every healthy mirror has been tried.
+     *
+     * @return the base URL of the mirror, or null if all of our mirrors have failed.
+     */
+    public synchronized URL select (Collection<URL> exclude)
+    {
+        Set<String> excluded = new HashSet<String>();
+        for (URL url : exclude) {
+            excluded.add(url.toString());
+        }
+        Mirror best = select(excluded);
+        if (best == null && !excluded.isEmpty()) {
+            best = select(Collections.<String>emptySet());
+        }
+        if (best == null) {
+            return null;
+        }
+        best.active++;
+        return best.url;
+    }
+
+    /**
+     * Returns the healthy mirror, other than the supplied ones, that we expect to serve a
+     * resource soonest, or null if there is none.
+     */
+    protected Mirror select (Set<String> excluded)
+    {
+        Mirror best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (Mirror mirror : _mirrors) {
+            if (mirror.failures >= MAX_FAILURES || excluded.contains(mirror.url.toString())) {
+                continue;
+            }
+            double cost = mirror.getCost() * (mirror.active + 1) * (mirror.failures + 1);
+            if (cost < bestCost) {
+                best = mirror;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Reports the outcome of a download from a mirror obtained from {@link #select}.
+     */
+    public synchronized void release (URL url, boolean success)
+    {
+        for (Mirror mirror : _mirrors) {
+            if (mirror.url.toString().equals(url.toString())) {
+                mirror.active = Math.max(0, mirror.active - 1);
+                if (success) {
+                    mirror.failures = 0;
+                } else if (++mirror.failures == MAX_FAILURES) {
+                    log.warning("Giving up on mirror", "url", url);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the URL at which the supplied mirror hosts the file at the supplied URL (which is
+     * relative to the primary appbase).
+     */
+    public URL getMirrorURL (URL remote, URL mirror)
+        throws MalformedURLException
+    {
+        String base = _appbase.toString(), url = remote.toString();
+        if (mirror.toString().equals(base) || !url.startsWith(base)) {
+            return remote;
+        }
+        return new URL(mirror, url.substring(base.length()));
+    }
+
+    /**
+     * Measures the latency and throughput with which the supplied mirror delivers the supplied
+     * file (or at least the first part of it).
+     */
+    protected void probe (Mirror mirror, URL url)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        URLConnection conn = ConnectionUtil.open(url);
+        conn.setConnectTimeout((int)PROBE_TIMEOUT);
+        conn.setReadTimeout((int)PROBE_TIMEOUT);
+        conn.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE-1));
+        InputStream in = null;
+        try {
+            in = conn.getInputStream();
+            if (conn instanceof HttpURLConnection) {
+                int code = ((HttpURLConnection)conn).getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Unexpected response " + code + " from " + url);
+                }
+            }
+            long firstByte = System.nanoTime();
+            byte[] buffer = new byte[8192];
+            long received = 0L;
+            int read;
+            while (received < PROBE_SIZE && (read = in.read(buffer)) != -1) {
+                received += read;
+            }
+            long elapsed = System.nanoTime() - firstByte;
+            synchronized (this) {
+                mirror.latency = (firstByte - start) / NANOS_PER_MILLI;
+                // a small file may arrive in one gulp, which tells us nothing about throughput
+                mirror.throughput = (elapsed > NANOS_PER_MILLI) ?
+                    received * 1000L * NANOS_PER_MILLI / elapsed : 0L;
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /** What we know about a single mirror. */
+    protected static class Mirror
+    {
+        public final URL url;
+
+        /** The time (in millis) the mirror took to respond to our probe. */
+        public long latency;
+
+        /** The bytes per second with which the mirror delivered our probe, or zero if unknown. */
+        public long throughput;
+
+        /** The number of downloads in progress from this mirror. */
+        public int active;
+
+        /** The number of consecutive downloads from this mirror that failed. */
+        public int failures;
+
+        public Mirror (URL url) {
+            this.url = url;
+        }
+
+        /** Estimates the time (in millis) it will take this mirror to serve a typical file. */
+        public double getCost () {
+            double cost = Math.max(1L, latency);
+            if (throughput > 0) {
+                cost += TYPICAL_SIZE * 1000d / throughput;
+            }
+            return cost;
+        }
+    }
+
+    protected URL _appbase;
+    protected List<Mirror> _mirrors = new ArrayList<Mirror>();
+
+    /** The number of consecutive failures after which we stop using a mirror. */
+    protected static final int MAX_FAILURES = 2;
+
+    /** The longest we wait for our mirrors to respond to our probes. */
+    protected static final long PROBE_TIMEOUT = 5000L;
+
+    /** The amount of data we request from each mirror when probing it. */
+    protected static final long PROBE_SIZE = 64 * 1024L;
+
+    /** The size of the file for which we estimate the cost of using a mirror. */
+    protected static final long TYPICAL_SIZE = 256 * 1024L;
+
+    protected static final long NANOS_PER_MILLI = 1000L * 1000L;
+}
@@ -0,0 +1,533 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.StringUtil;
+import com.threerings.getdown.util.FileUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Tracks the partially downloaded data of a single file so that an interrupted transfer can be
+ * resumed where it left off. The data is written to a <code>.part</code> file next to the target
+ * file and a small sidecar file records the URL, the validators (ETag and Last-Modified) reported
+ * by the server and the number of bytes safely written (the data is forced to disk before the
+ * record is updated, so the record never vouches for data that was lost). On the next attempt the transfer is
+ * resumed with a <code>Range</code> request that is conditional on the validators (via
+ * <code>If-Range</code>), so that a changed file on the server is downloaded from scratch. A
+ * file downloaded in several segments at once (see {@link SegmentedDownload}) records the
+ * progress of each segment instead.
+ */
+public class PartialDownload
+{
+    /** The suffix appended to a file's name while it is being downloaded. */
+    public static final String PART_SUFFIX = ".part";
+
+    /** The suffix appended to the part file's name for our sidecar record. */
+    public static final String INFO_SUFFIX = ".info";
+
+    /**
+     * Creates a partial download record for the supplied target file.
+     */
+    public PartialDownload (File target)
+    {
+        _target = target;
+        _part = new File(target.getPath() + PART_SUFFIX);
+        _info = new File(_part.getPath() + INFO_SUFFIX);
+    }
+
+    /**
+     * Returns the file into which the data is downloaded.
+     */
+    public File getPartFile ()
+    {
+        return _part;
+    }
+
+    /**
+     * Returns the offset at which a download of the supplied URL can be resumed, or zero if we
+     * have nothing (usable) on disk.
+     */
+    public long getResumeOffset (URL url)
+    {
+        Properties info = load(url);
+        if (info == null || info.getProperty(SEGMENTS) != null) {
+            return 0L;
+        }
+        try {
+            // the part file is allocated at its full size, so its length says nothing about how
+            // much data made it to disk (we only record data that has been forced to disk), but
+            // a part file shorter than the record has been tampered with
+            return Math.min(Long.parseLong(info.getProperty(WRITTEN, "0")), _part.length());
+        } catch (NumberFormatException nfe) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Returns the offset at which a download of the supplied URL can be resumed, accepting data
+     * downloaded from another mirror of the same file, or zero if we have nothing (usable) on
+     * disk. The validators of one server say nothing about another server's copy, so data from
+     * another mirror is resumed unconditionally: this is only safe if the completed file is
+     * verified against its digest.
+     */
+    public long getMirrorResumeOffset (URL url)
+    {
+        long offset = getResumeOffset(url);
+        Properties info;
+        if (offset > 0 || (info = readInfo()) == null || info.getProperty(SEGMENTS) != null) {
+            return offset;
+        }
+        try {
+            offset = Math.min(Long.parseLong(info.getProperty(WRITTEN, "0")), _part.length());
+        } catch (NumberFormatException nfe) {
+            return 0L;
+        }
+        _etag = null;
+        _lastModified = null;
+        return offset;
+    }
+
+    /**
+     * Returns true if we have data on disk from a (single stream) download of any mirror of our
+     * file, which a segmented download would otherwise overwrite.
+     */
+    public boolean hasStreamedData ()
+    {
+        Properties info = readInfo();
+        if (info == null || info.getProperty(SEGMENTS) != null) {
+            return false;
+        }
+        try {
+            return Long.parseLong(info.getProperty(WRITTEN, "0")) > 0 && _part.length() > 0;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the segments of a segmented download of the supplied URL that remain to be
+     * downloaded, or null if we have no (usable) segmented download on disk. Each segment is
+     * represented by a two element array containing the position of the next byte to download and
+     * the position just past the end of the segment.
+     */
+    public long[][] getResumeSegments (URL url, long total)
+    {
+        Properties info = load(url);
+        if (info == null || info.getProperty(SEGMENTS) == null || _part.length() != total ||
+            !String.valueOf(total).equals(info.getProperty(TOTAL))) {
+            return null;
+        }
+        try {
+            String[] segs = info.getProperty(SEGMENTS).split(",");
+            long[][] segments = new long[segs.length][];
+            for (int ii = 0; ii < segs.length; ii++) {
+                String[] bounds = segs[ii].split("-");
+                segments[ii] = new long[] { Long.parseLong(bounds[0]), Long.parseLong(bounds[1]) };
+                if (segments[ii][0] > segments[ii][1] || segments[ii][1] > total) {
+                    return null;
+                }
+            }
+            return segments;
+        } catch (RuntimeException re) {
+            log.info("Ignoring invalid segmented download info", "file", _info, "error", re);
+            return null;
+        }
+    }
+
+    /**
+     * Configures the supplied connection to resume the download at the specified offset. Must be
+     * called before the connection is connected.
+     */
+    public void configure (URLConnection conn, long offset)
+    {
+        if (offset > 0 && conn instanceof HttpURLConnection) {
+            conn.setRequestProperty("Range", "bytes=" + offset + "-");
+            configureIfRange(conn);
+        }
+    }
+
+    /**
+     * Configures the supplied connection to only honor its range request if the file on the
+     * server is still the one we started downloading.
+     */
+    public void configureIfRange (URLConnection conn)
+    {
+        if (hasValidators()) {
+            conn.setRequestProperty("If-Range", StringUtil.isBlank(_etag) ? _lastModified : _etag);
+        }
+    }
+
+    /**
+     * Determines the offset at which the data returned by the supplied (connected) connection
+     * starts. This will be the requested offset if the server honored our range request and zero
+     * if it sent us the whole file.
+     *
+     * @exception IOException if the server responded with an unexpected range.
+     */
+    public long getResponseOffset (URLConnection conn, long requested)
+        throws IOException
+    {
+        if (requested == 0 || !(conn instanceof HttpURLConnection)) {
+            return 0L;
+        }
+        HttpURLConnection hcon = (HttpURLConnection)conn;
+        if (hcon.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            log.info("Server ignored range request, downloading from scratch",
+                     "url", conn.getURL(), "offset", requested, "rsp", hcon.getResponseCode());
+            return 0L;
+        }
+        long start = getRangeStart(conn.getHeaderField("Content-Range"));
+        if (start != requested) {
+            throw new IOException("Requested range starting at " + requested + " but got " +
+                                  conn.getHeaderField("Content-Range") + " for " + conn.getURL());
+        }
+        return start;
+    }
+
+    /**
+     * Prepares the part file to receive data starting at the supplied offset and records the
+     * validators reported by the server in the supplied (connected) connection. If the size of
+     * the file is known, the file is allocated at its full size up front, which spares the file
+     * system from repeatedly growing it (and helps it to lay the file out contiguously).
+     *
+     * @param total the size of the complete file, or <code>-1</code> if it is not known.
+     *
+     * @return a channel, positioned at the supplied offset, to which the downloaded data should
+     * be written.
+     */
+    public FileChannel open (URLConnection conn, long offset, long total)
+        throws IOException
+    {
+        recordValidators(conn, offset > 0);
+        _written = offset;
+        save();
+
+        RandomAccessFile raf = new RandomAccessFile(_part, "rw");
+        try {
+            // discard anything on disk past the point at which we're resuming (or the end of
+            // the file, if we know where that is)
+            raf.setLength(Math.max(offset, total));
+            FileChannel channel = raf.getChannel();
+            channel.position(offset);
+            _channel = channel;
+            return channel;
+        } catch (IOException ioe) {
+            raf.close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Prepares the part file to receive the supplied segments of a file of the specified size and
+     * records the validators reported by the server in the supplied (connected) connection. The
+     * file is allocated at its full size up front so that the segments can be written in place.
+     *
+     * @param resumed whether the segments are those of a previous attempt.
+     *
+     * @return a file to which the segments should be written (using positional writes).
+     */
+    public RandomAccessFile openSegmented (URLConnection conn, long total, long[][] segments,
+                                           boolean resumed)
+        throws IOException
+    {
+        recordValidators(conn, resumed);
+        _total = total;
+        _segments = segments;
+
+        RandomAccessFile raf = new RandomAccessFile(_part, "rw");
+        if (raf.length() != total) {
+            raf.setLength(total);
+        }
+        _channel = raf.getChannel();
+        save();
+        return raf;
+    }
+
+    /**
+     * Notes that the specified segment has been downloaded up to the supplied position. May be
+     * called concurrently for different segments.
+     */
+    public synchronized void noteSegmentWritten (int segment, long position)
+    {
+        _written += position - _segments[segment][0];
+        _segments[segment][0] = position;
+        if (_written - _saved >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /**
+     * Feeds the first <code>length</code> bytes of the part file to the supplied digest, so that
+     * a resumed download can be digested as a whole.
+     */
+    public void digest (MessageDigest md, long length)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(_part);
+        try {
+            byte[] buffer = new byte[8192];
+            long remaining = length;
+            int read;
+            while (remaining > 0 &&
+                   (read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1) {
+                md.update(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Notes that data up to the supplied offset has been written to the part file. The sidecar
+     * record is periodically updated so that we can resume from (about) this point.
+     */
+    public void noteWritten (long offset)
+    {
+        _written = offset;
+        if (offset - _saved >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /**
+     * Records the amount of data written so far. Called when a download fails so that the next
+     * attempt can pick up where we left off. The data is forced to disk first: if that fails, the
+     * record is left as it was.
+     */
+    public synchronized void save ()
+    {
+        if (_url == null) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException ioe) {
+            log.warning("Unable to force partial download to disk", "file", _part, "error", ioe);
+            return;
+        }
+        Properties info = new Properties();
+        info.setProperty(URL_KEY, _url.toString());
+        if (_etag != null) {
+            info.setProperty(ETAG, _etag);
+        }
+        if (_lastModified != null) {
+            info.setProperty(LAST_MODIFIED, _lastModified);
+        }
+        if (_segments == null) {
+            info.setProperty(WRITTEN, String.valueOf(_written));
+        } else {
+            StringBuilder segs = new StringBuilder();
+            for (long[] segment : _segments) {
+                if (segs.length() > 0) {
+                    segs.append(",");
+                }
+                segs.append(segment[0]).append("-").append(segment[1]);
+            }
+            info.setProperty(TOTAL, String.valueOf(_total));
+            info.setProperty(SEGMENTS, segs.toString());
+        }
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(_info);
+            info.store(out, null);
+            _saved = _written;
+        } catch (IOException ioe) {
+            log.warning("Unable to record partial download", "file", _info, "error", ioe);
+        } finally {
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * Forces the data written to the part file so far to disk. If the channel we handed out has
+     * already been closed, the part file is reopened to do so.
+     */
+    protected void sync ()
+        throws IOException
+    {
+        if (_written == 0 && _segments == null) {
+            return; // nothing to vouch for
+        }
+        FileChannel channel = _channel;
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.force(false);
+                return;
+            } catch (ClosedChannelException cce) {
+                // closed while we were at it, fall through and reopen the file
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(_part, "rw");
+        try {
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Moves the completely downloaded part file into place and removes our sidecar record.
+     */
+    public void complete ()
+        throws IOException
+    {
+        if (!FileUtil.renameTo(_part, _target)) {
+            throw new IOException("Unable to move " + _part + " to " + _target);
+        }
+        discard();
+    }
+
+    /**
+     * Removes the part file and our sidecar record.
+     */
+    public void discard ()
+    {
+        if (_part.exists() && !_part.delete()) {
+            log.warning("Failed to delete partial download", "file", _part);
+        }
+        if (_info.exists() && !_info.delete()) {
+            log.warning("Failed to delete partial download info", "file", _info);
+        }
+    }
+
+    /**
+     * Loads our sidecar record, returning null if there is none, if it records the download of a
+     * different URL or if it lacks the validators needed to safely resume the download.
+     */
+    protected Properties load (URL url)
+    {
+        Properties info = readInfo();
+        if (info == null || !url.toString().equals(info.getProperty(URL_KEY)) ||
+            (StringUtil.isBlank(info.getProperty(ETAG)) &&
+             StringUtil.isBlank(info.getProperty(LAST_MODIFIED)))) {
+            return null;
+        }
+        _etag = info.getProperty(ETAG);
+        _lastModified = info.getProperty(LAST_MODIFIED);
+        return info;
+    }
+
+    /**
+     * Reads our sidecar record, returning null if there is none (or no part file to go with it).
+     */
+    protected Properties readInfo ()
+    {
+        if (!_info.exists() || !_part.exists()) {
+            return null;
+        }
+        Properties info = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(_info);
+            info.load(in);
+            return info;
+        } catch (IOException ioe) {
+            log.info("Unable to read partial download info", "file", _info, "error", ioe);
+            return null;
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Notes the URL and validators of the supplied (connected) connection. When resuming, the
+     * validators we already have are kept if the server doesn't repeat them.
+     */
+    protected void recordValidators (URLConnection conn, boolean resumed)
+    {
+        _url = conn.getURL();
+        String etag = conn.getHeaderField("ETag");
+        String lastModified = conn.getHeaderField("Last-Modified");
+        if (!resumed || etag != null || lastModified != null) {
+            _etag = etag;
+            _lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Returns true if the server supplied an ETag or Last-Modified header with which we can make
+     * sure that the data we resume downloading belongs to the same file.
+     */
+    public boolean hasValidators ()
+    {
+        return !StringUtil.isBlank(_etag) || !StringUtil.isBlank(_lastModified);
+    }
+
+    /**
+     * Extracts the first byte position from a <code>Content-Range</code> header value, returning
+     * <code>-1</code> if the value could not be parsed.
+     */
+    protected static long getRangeStart (String contentRange)
+    {
+        return getRangeField(contentRange, 1);
+    }
+
+    /**
+     * Extracts the complete length from a <code>Content-Range</code> header value, returning
+     * <code>-1</code> if the value could not be parsed or the length is unknown.
+     */
+    protected static long getRangeTotal (String contentRange)
+    {
+        return getRangeField(contentRange, 2);
+    }
+
+    protected static long getRangeField (String contentRange, int group)
+    {
+        if (contentRange != null) {
+            Matcher m = CONTENT_RANGE.matcher(contentRange.trim());
+            if (m.matches() && !"*".equals(m.group(group))) {
+                return Long.parseLong(m.group(group));
+            }
+        }
+        return -1L;
+    }
+
+    protected File _target, _part, _info;
+    protected URL _url;
+    protected String _etag, _lastModified;
+    protected long _written, _saved;
+
+    /** The channel through which the part file is being written, if any. */
+    protected volatile FileChannel _channel;
+
+    /** The size of the file and the remaining segments, if this is a segmented download. */
+    protected long _total;
+    protected long[][] _segments;
+
+    protected static final String URL_KEY = "url";
+    protected static final String ETAG = "etag";
+    protected static final String LAST_MODIFIED = "last_modified";
+    protected static final String WRITTEN = "written";
+    protected static final String TOTAL = "total";
+    protected static final String SEGMENTS = "segments";
+
+    /** The number of bytes we write between updates of our sidecar record (each of which forces
+     * the data to disk, so this is kept large enough not to slow the download down). */
+    protected static final long SAVE_INTERVAL = 8 * 1024 * 1024L;
+
+    protected static final Pattern CONTENT_RANGE =
+        Pattern.compile("bytes\\s+(\\d+)-\\d+/(\\d+|\\*)");
+}
@@ -0,0 +1,318 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import com.samskivert.io.StreamUtil;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.DigestsUtil;
+import com.threerings.getdown.util.FileUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * A store of downloaded resources, keyed by their digest, which may be shared by all of the
+ * Getdown applications installed on a machine (and by several Getdown processes at once). Before
+ * downloading a resource, the downloader checks whether another application already downloaded
+ * a file with the same digest, and if so copies it into place rather than downloading it again.
+ *
+ * <p> Entries are only ever added by renaming a complete file into place, so readers never see
+ * a partially written entry, and every entry copied out of the cache is checked against its
+ * digest, so an entry that was evicted (or damaged) while we were copying it is merely a miss.
+ * The cache is kept below its maximum size by evicting its least recently used entries, under an
+ * exclusive lock on the cache directory.
+ */
+public class ResourceCache
+{
+    /** The default maximum size of the cache, in bytes. */
+    public static final long DEFAULT_MAX_SIZE = 2048 * 1024 * 1024L;
+
+    /**
+     * Creates a cache that stores its entries in the supplied directory, which is created if it
+     * does not already exist.
+     *
+     * @param maxSize the size (in bytes) beyond which we evict entries from the cache.
+     */
+    public ResourceCache (File dir, long maxSize)
+    {
+        _dir = dir;
+        _maxSize = maxSize;
+    }
+
+    /**
+     * Copies the cached copy of the supplied resource into place, if we have one.
+     *
+     * @return true if the resource was copied from the cache (and verified), false if it must be
+     * downloaded.
+     */
+    public boolean fetch (Resource rsrc, Digests digests)
+    {
+        String digest = digests.getResourceDigest(rsrc);
+        File entry = getEntry(digest);
+        if (digest == null || !entry.exists()) {
+            return false;
+        }
+
+        File target = rsrc.getLocalFile();
+        File temp = new File(target.getPath() + CACHE_SUFFIX);
+        try {
+            copy(entry, temp);
+            // make sure the copy is what we expect before it replaces whatever we have
+            if (!DigestsUtil.validateResourceDigest(rsrc, temp, digests)) {
+                log.info("Cached resource failed verification", "rsrc", rsrc, "entry", entry);
+                temp.delete();
+                // don't let a bad entry keep us from caching a good copy once we've downloaded it
+                entry.delete();
+                return false;
+            }
+            // note that we've used this entry, so that it is evicted last
+            entry.setLastModified(System.currentTimeMillis());
+            if (!FileUtil.renameTo(temp, target)) {
+                throw new IOException("Unable to move " + temp + " into place");
+            }
+        } catch (IOException ioe) {
+            log.info("Failed to copy resource from cache", "rsrc", rsrc, "entry", entry,
+                     "error", ioe);
+            temp.delete();
+            return false;
+        }
+
+        if (!rsrc.shouldUnpack()) {
+            // there's no need to verify it again (archives still need to be unpacked though)
+            try {
+                rsrc.markAsValid(digests.getResourceDigest(rsrc));
+            } catch (IOException ioe) {
+                log.info("Failed to mark cached resource as valid", "rsrc", rsrc, "error", ioe);
+            }
+        }
+        log.info("Copied resource from cache", "rsrc", rsrc, "size", target.length());
+        return true;
+    }
+
+    /**
+     * Adds the (freshly downloaded and verified) local copy of the supplied resource to the
+     * cache. Where the JVM and file system allow it, the entry is a hard link to the local copy,
+     * which costs no more than a directory entry; otherwise the local copy is copied. Failure to
+     * do so is logged, but otherwise ignored. The cache is not trimmed until {@link #trim} is
+     * called, which the downloader does once it has finished downloading.
+     */
+    public void store (Resource rsrc, Digests digests)
+    {
+        String digest = digests.getResourceDigest(rsrc);
+        File source = rsrc.getLocalFile();
+        if (digest == null || !source.exists() || source.length() > _maxSize) {
+            return;
+        }
+
+        File entry = getEntry(digest);
+        if (entry.exists()) {
+            return;
+        }
+
+        File temp = null;
+        try {
+            File parent = entry.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("Unable to create cache directory " + parent);
+            }
+            // a link is complete the moment it exists; if another process beat us to it, its
+            // copy is as good as ours
+            if (link(source, entry) || entry.exists()) {
+                return;
+            }
+            // write the entry to a temporary file and rename it into place, so that nobody ever
+            // sees a partial entry
+            temp = File.createTempFile(digest, TEMP_SUFFIX, parent);
+            copy(source, temp);
+            if (!temp.renameTo(entry) && !entry.exists()) {
+                throw new IOException("Unable to move " + temp + " into place");
+            }
+        } catch (IOException ioe) {
+            log.info("Failed to add resource to cache", "rsrc", rsrc, "entry", entry,
+                     "error", ioe);
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries from the cache until it is no larger than its
+     * maximum size.
+     */
+    public void trim ()
+    {
+        // several of our own threads may be storing resources at once, and file locks are held on
+        // behalf of the whole JVM, so we must also keep our threads from trimming simultaneously
+        synchronized (ResourceCache.class) {
+            RandomAccessFile lockFile = null;
+            FileLock lock = null;
+            try {
+                lockFile = new RandomAccessFile(new File(_dir, LOCK_FILE), "rw");
+                lock = lockFile.getChannel().lock();
+                evict();
+            } catch (IOException ioe) {
+                log.warning("Failed to trim resource cache", "dir", _dir, "error", ioe);
+            } finally {
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException ioe) {
+                        log.warning("Failed to release resource cache lock", "dir", _dir,
+                                    "error", ioe);
+                    }
+                }
+                StreamUtil.close(lockFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the file in which the resource with the supplied digest is stored. Entries are
+     * spread over subdirectories so that no one directory grows unreasonably large.
+     */
+    protected File getEntry (String digest)
+    {
+        String name = (digest == null) ? "" : digest;
+        return new File(new File(_dir, name.substring(0, Math.min(2, name.length()))), name);
+    }
+
+    /**
+     * Deletes entries, oldest first, until the cache fits within its maximum size. Must be
+     * called with the cache locked.
+     */
+    protected void evict ()
+    {
+        List<File> entries = new ArrayList<File>();
+        long size = 0L;
+        File[] dirs = _dir.listFiles();
+        for (File dir : (dirs == null) ? new File[0] : dirs) {
+            File[] files = dir.isDirectory() ? dir.listFiles() : null;
+            for (File file : (files == null) ? new File[0] : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    // clean up after processes that died while adding an entry
+                    if (file.lastModified() < System.currentTimeMillis() - STALE_TEMP_AGE) {
+                        file.delete();
+                    }
+                    continue;
+                }
+                entries.add(file);
+                size += file.length();
+            }
+        }
+        if (size <= _maxSize) {
+            return;
+        }
+
+        Collections.sort(entries, new Comparator<File>() {
+            public int compare (File f1, File f2) {
+                long m1 = f1.lastModified(), m2 = f2.lastModified();
+                return (m1 < m2) ? -1 : ((m1 > m2) ? 1 : 0);
+            }
+        });
+        for (File entry : entries) {
+            if (size <= _maxSize) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                size -= length;
+                log.info("Evicted resource from cache", "entry", entry, "size", length);
+            }
+        }
+    }
+
+    /**
+     * Creates a hard link to the supplied file, if the JVM can (which takes Java 7) and the file
+     * system supports it (the cache directory must be on the same volume as the file, for one).
+     * Note that linked files share their modification time, so noting the use of an entry also
+     * touches the linked copy, which merely means that the application that owns it validates
+     * it again.
+     *
+     * @return true if the link was created.
+     */
+    protected static boolean link (File source, File link)
+    {
+        if (CREATE_LINK == null) {
+            return false;
+        }
+        try {
+            CREATE_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(source));
+            return true;
+        } catch (Exception e) {
+            // not supported here, or the link already exists; either way we copy instead
+            return false;
+        }
+    }
+
+    /**
+     * Copies the contents of one file to another.
+     */
+    protected static void copy (File source, File dest)
+        throws IOException
+    {
+        FileChannel in = null, out = null;
+        try {
+            in = new FileInputStream(source).getChannel();
+            out = new FileOutputStream(dest).getChannel();
+            long size = in.size(), position = 0L;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        } finally {
+            StreamUtil.close(in);
+            StreamUtil.close(out);
+        }
+    }
+
+    /** The directory in which our entries are stored. */
+    protected File _dir;
+
+    /** The size (in bytes) beyond which we evict entries. */
+    protected long _maxSize;
+
+    /** The file we lock while trimming the cache. */
+    protected static final String LOCK_FILE = "cache.lock";
+
+    /** The suffix of entries that are still being written. */
+    protected static final String TEMP_SUFFIX = ".tmp";
+
+    /** The age (in millis) beyond which an entry that is still being written was abandoned. */
+    protected static final long STALE_TEMP_AGE = 24 * 60 * 60 * 1000L;
+
+    /** The suffix of a resource that is being copied out of the cache. */
+    protected static final String CACHE_SUFFIX = "_cache";
+
+    /** File.toPath and Files.createLink, if we're running on Java 7 or newer. */
+    protected static final Method TO_PATH, CREATE_LINK;
+    static {
+        Method toPath = null, createLink = null;
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            toPath = File.class.getMethod("toPath");
+            createLink = Class.forName("java.nio.file.Files").getMethod(
+                "createLink", pathClass, pathClass);
+        } catch (Exception e) {
+            // we're on Java 6, and will copy entries into the cache
+        }
+        TO_PATH = (createLink == null) ? null : toPath;
+        CREATE_LINK = (TO_PATH == null) ? null : createLink;
+    }
+}
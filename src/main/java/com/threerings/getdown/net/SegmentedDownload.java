@@ -0,0 +1,311 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import com.samskivert.io.StreamUtil;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.util.DigestsUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Downloads a single large file over several connections at once, each fetching a different byte
+ * range of the file. The ranges are written in place into a file preallocated at its full size,
+ * and the progress of each range is recorded (via {@link PartialDownload}) so that an interrupted
+ * download can be resumed. Once all ranges are in, the file as a whole is verified against its
+ * digest (if known) before it replaces the target file.
+ */
+public class SegmentedDownload
+{
+    /**
+     * Creates a segmented download of the supplied resource.
+     *
+     * @param downloader the downloader on whose behalf we download, which is kept informed of our
+     * progress.
+     * @param size the expected size of the resource.
+     * @param segments the number of connections over which to download (and the number of
+     * segments into which to split the download, unless we resume one split differently).
+     */
+    public SegmentedDownload (HTTPDownloader downloader, Resource rsrc, long size, int segments)
+    {
+        this(downloader, rsrc, rsrc.getRemote(), size, segments);
+    }
+
+    /**
+     * Creates a segmented download of the supplied resource from the supplied URL (that of a
+     * mirror of the resource, say).
+     */
+    public SegmentedDownload (HTTPDownloader downloader, Resource rsrc, URL url, long size,
+                              int segments)
+    {
+        _downloader = downloader;
+        _rsrc = rsrc;
+        _url = url;
+        _size = size;
+        _count = Math.max(1, segments);
+        _partial = new PartialDownload(rsrc.getLocalFile());
+    }
+
+    /**
+     * Downloads the resource, blocking until the download is complete.
+     *
+     * @return true if the resource was downloaded, false if the server does not support range
+     * requests for the resource (in which case it should be downloaded in one piece).
+     */
+    public boolean download ()
+        throws IOException
+    {
+        long[][] segments = _partial.getResumeSegments(_url, _size);
+        boolean resumed = (segments != null);
+        if (!resumed) {
+            // leave the data of an earlier single stream download for that download to resume
+            if (_partial.hasStreamedData()) {
+                log.info("Resuming earlier download, not segmenting it", "url", _url);
+                return false;
+            }
+            segments = split(_size, _count);
+        }
+
+        // note which segments remain to be downloaded and how much we already have
+        List<Integer> pending = new ArrayList<Integer>();
+        long remaining = 0L;
+        for (int ii = 0; ii < segments.length; ii++) {
+            if (segments[ii][0] < segments[ii][1]) {
+                pending.add(ii);
+            }
+            remaining += segments[ii][1] - segments[ii][0];
+        }
+        _done.set(_size - remaining);
+
+        if (pending.isEmpty()) {
+            // a previous attempt got everything but was interrupted before moving it into place
+            complete();
+            return true;
+        }
+
+        // the request for the first pending segment doubles as our check that the server supports
+        // range requests for this file
+        final int first = pending.get(0);
+        final URLConnection conn = openSegment(segments[first]);
+        if (!isPartial(conn, segments[first][0])) {
+            log.info("Server won't serve ranges, not segmenting download", "url", _url,
+                     "rsp", (conn instanceof HttpURLConnection) ?
+                     ((HttpURLConnection)conn).getResponseCode() : -1);
+            _downloader.releaseConnection(conn);
+            if (resumed) {
+                // the segments we saved are of no use to a single stream download
+                _partial.discard();
+            }
+            return false;
+        }
+
+        log.info("Downloading resource in segments", "url", _url, "size", _size,
+                 "segments", pending.size(), "resumed", resumed);
+        RandomAccessFile raf = _partial.openSegmented(conn, _size, segments, resumed);
+        final FileChannel channel = raf.getChannel();
+        final long[][] fsegments = segments;
+        ExecutorService workers = Executors.newFixedThreadPool(
+            Math.min(pending.size(), _count), Downloader.createThreadFactory("Downloader-segment"));
+        boolean complete = false;
+        try {
+            List<Future<Void>> fetches = new ArrayList<Future<Void>>();
+            for (final int segment : pending) {
+                fetches.add(workers.submit(new Callable<Void>() {
+                    public Void call () throws IOException {
+                        URLConnection sconn = conn;
+                        if (segment != first) {
+                            sconn = openSegment(fsegments[segment]);
+                            if (!isPartial(sconn, fsegments[segment][0])) {
+                                _downloader.releaseConnection(sconn);
+                                throw new IOException("Server stopped serving ranges for " + _url);
+                            }
+                        }
+                        fetch(sconn, segment, fsegments[segment][1], channel);
+                        return null;
+                    }
+                }));
+            }
+
+            // keep our downloader informed while we wait for our segments to come in
+            for (Future<Void> fetch : fetches) {
+                while (true) {
+                    try {
+                        fetch.get(Downloader.UPDATE_DELAY, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException te) {
+                        _downloader.updateObserver(_rsrc, _done.get(), _size);
+                    }
+                }
+            }
+            complete = true;
+
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException)ee.getCause();
+            }
+            throw (IOException)new IOException(
+                "Failed to download " + _url).initCause(ee.getCause());
+
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new DownloadAbortedException();
+
+        } finally {
+            workers.shutdownNow();
+            raf.close();
+            if (!complete) {
+                // make a note of what we have so that the next attempt can resume from there
+                _partial.save();
+            }
+        }
+
+        _downloader.updateObserver(_rsrc, _size, _size);
+        complete();
+        return true;
+    }
+
+    /**
+     * Opens a connection requesting the supplied segment.
+     */
+    protected URLConnection openSegment (long[] segment)
+        throws IOException
+    {
+        URLConnection conn = _downloader.openConnection(_url);
+        conn.setRequestProperty("Range", "bytes=" + segment[0] + "-" + (segment[1]-1));
+        _partial.configureIfRange(conn);
+        conn.connect();
+        return conn;
+    }
+
+    /**
+     * Returns true if the supplied connection is delivering the part of our file that starts at
+     * the specified position.
+     */
+    protected boolean isPartial (URLConnection conn, long start)
+        throws IOException
+    {
+        if (!(conn instanceof HttpURLConnection) ||
+            ((HttpURLConnection)conn).getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            return false;
+        }
+        String range = conn.getHeaderField("Content-Range");
+        return PartialDownload.getRangeStart(range) == start &&
+            PartialDownload.getRangeTotal(range) == _size;
+    }
+
+    /**
+     * Copies the data delivered by the supplied connection into its segment of our file.
+     */
+    protected void fetch (URLConnection conn, int segment, long end, FileChannel channel)
+        throws IOException
+    {
+        ReadableByteChannel in = null;
+        ByteBuffer buffer = BufferPool.acquire();
+        try {
+            in = Channels.newChannel(conn.getInputStream());
+            long position = _partial._segments[segment][0];
+            while (position < end) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new DownloadAbortedException();
+                }
+                // don't read past the end of our segment
+                buffer.limit((int)Math.min(buffer.capacity(), end - position));
+                int read = in.read(buffer);
+                if (read == -1) {
+                    throw new IOException("Segment of " + _url + " ended " +
+                                          "prematurely [at=" + position + ", end=" + end + "]");
+                }
+                _downloader.throttle(read);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                buffer.clear();
+                _done.addAndGet(read);
+                _partial.noteSegmentWritten(segment, position);
+            }
+        } finally {
+            StreamUtil.close(in);
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Verifies the downloaded file as a whole and moves it into place.
+     */
+    protected void complete ()
+        throws IOException
+    {
+        File part = _partial.getPartFile();
+        long length = part.length();
+        if (length != _size) {
+            _partial.discard();
+            throw new IOException("Segmented download of " + _url + " has wrong " +
+                                  "size [got=" + length + ", expected=" + _size + "]");
+        }
+        // the segments were fetched over separate connections, so make sure they add up to the
+        // file we expected before it replaces our copy
+        Digests digests = _downloader._digests;
+        if (digests != null && digests.hasResourceDigest(_rsrc) &&
+            !DigestsUtil.validateResourceDigest(_rsrc, part, digests)) {
+            _partial.discard();
+            throw new IOException("Segmented download of " + _url +
+                                  " failed verification");
+        }
+        _partial.complete();
+        if (digests != null && digests.hasResourceDigest(_rsrc)) {
+            _downloader.noteVerified(_rsrc);
+        }
+        if (digests != null && digests.hasResourceDigest(_rsrc) && !_rsrc.shouldUnpack()) {
+            // there's no need to verify it again (archives still need to be unpacked though)
+            _rsrc.markAsValid(digests.getResourceDigest(_rsrc));
+        }
+    }
+
+    /**
+     * Splits a file of the supplied size into the specified number of (roughly) equal segments.
+     */
+    protected static long[][] split (long size, int count)
+    {
+        long[][] segments = new long[count][];
+        for (int ii = 0; ii < count; ii++) {
+            segments[ii] = new long[] { ii * size / count, (ii+1) * size / count };
+        }
+        return segments;
+    }
+
+    protected HTTPDownloader _downloader;
+    protected Resource _rsrc;
+    protected URL _url;
+    protected long _size;
+    protected int _count;
+    protected PartialDownload _partial;
+
+    /** The number of bytes of our file that we have downloaded so far. */
+    protected AtomicLong _done = new AtomicLong();
+}
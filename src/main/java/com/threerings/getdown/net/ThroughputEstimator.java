@@ -0,0 +1,82 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+/**
+ * Estimates the current throughput of a download, and thus the time it will take to complete,
+ * from periodic samples of the number of bytes downloaded so far. The estimate is an exponentially
+ * weighted moving average, so that it follows changes in throughput within a few seconds: a stall
+ * early on doesn't leave us predicting an eternity long after the download has picked back up,
+ * and vice versa.
+ */
+public class ThroughputEstimator
+{
+    /**
+     * Creates an estimator whose estimate forgets samples older than (roughly) the specified
+     * number of milliseconds.
+     */
+    public ThroughputEstimator (long timeConstant)
+    {
+        _timeConstant = Math.max(1L, timeConstant);
+    }
+
+    /**
+     * Informs the estimator of the total number of bytes downloaded as of the supplied time (in
+     * millis). Samples should be taken at regular intervals.
+     */
+    public void sample (long downloaded, long now)
+    {
+        if (_lastTime < 0) {
+            // this is our first sample, so we have nothing to measure yet
+            _lastTime = now;
+            _lastBytes = downloaded;
+            return;
+        }
+        long elapsed = now - _lastTime;
+        if (elapsed <= 0) {
+            return;
+        }
+        double rate = Math.max(0L, downloaded - _lastBytes) * 1000d / elapsed;
+        if (_rate < 0) {
+            _rate = rate;
+        } else {
+            // weigh the new sample by the time it covers, so that irregular samples are fair
+            double alpha = 1 - Math.exp(-(double)elapsed / _timeConstant);
+            _rate += alpha * (rate - _rate);
+        }
+        _lastTime = now;
+        _lastBytes = downloaded;
+    }
+
+    /**
+     * Returns the estimated throughput in bytes per second, or -1 if we have no estimate yet.
+     */
+    public long getBytesPerSecond ()
+    {
+        return (_rate < 0) ? -1L : Math.round(_rate);
+    }
+
+    /**
+     * Returns the estimated time (in seconds) needed to download the supplied number of bytes, or
+     * -1 if that can't yet be determined (or data isn't currently arriving at all).
+     */
+    public long getRemaining (long bytes)
+    {
+        if (bytes <= 0) {
+            return 0L;
+        }
+        return (_rate < 1) ? -1L : (long)Math.ceil(bytes / _rate);
+    }
+
+    /** The time constant of our moving average, in millis. */
+    protected long _timeConstant;
+
+    /** Our current estimate in bytes per second, or -1 if we have none. */
+    protected double _rate = -1;
+
+    /** The time and byte count of our most recent sample. */
+    protected long _lastTime = -1L, _lastBytes;
+}
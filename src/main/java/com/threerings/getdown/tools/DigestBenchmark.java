@@ -0,0 +1,61 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.tools;
+
+import com.threerings.getdown.util.DigestAlgorithm;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Measures the throughput with which each of the digest algorithms (see {@link DigestAlgorithm})
+ * digests data, to help decide which to use for an application. The data is digested from memory,
+ * so this measures the cost of the algorithm itself rather than that of reading files.
+ */
+public class DigestBenchmark
+{
+    /**
+     * A command line entry point for the benchmark.
+     */
+    public static void main (String[] args)
+    {
+        int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_MEGABYTES;
+        byte[] data = new byte[BUFFER_SIZE];
+        new Random(0L).nextBytes(data);
+        long total = megabytes * 1024L * 1024L;
+
+        for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+            MessageDigest md = algorithm.createDigest();
+            // give the JIT a chance to do its thing before we start timing
+            digest(md, data, WARMUP_BYTES);
+            long start = System.nanoTime();
+            digest(md, data, total);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%-8s %8.1f MB/s", algorithm.getName(),
+                                             megabytes / seconds));
+        }
+    }
+
+    /**
+     * Digests the supplied number of bytes, taken from the supplied buffer over and over.
+     */
+    protected static byte[] digest (MessageDigest md, byte[] data, long total)
+    {
+        for (long done = 0L; done < total; done += data.length) {
+            md.update(data, 0, (int)Math.min(data.length, total - done));
+        }
+        return md.digest();
+    }
+
+    /** The number of megabytes digested by each algorithm, unless specified otherwise. */
+    protected static final int DEFAULT_MEGABYTES = 512;
+
+    /** The amount of data digested before timing starts. */
+    protected static final long WARMUP_BYTES = 64 * 1024L * 1024L;
+
+    /** The size of the buffer from which data is digested. */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+}
@@ -6,18 +6,37 @@
 package com.threerings.getdown.tools;
 
 import com.threerings.getdown.data.*;
+import com.threerings.getdown.util.BlockSignature;
+import com.threerings.getdown.util.ChunkTree;
 import com.threerings.getdown.util.ConfigUtil;
+import com.threerings.getdown.util.DigestAlgorithm;
+import com.threerings.getdown.util.DigestCache;
+import com.threerings.getdown.util.DigestSource;
 import com.threerings.getdown.util.DigestsUtil;
 import com.threerings.getdown.util.SecurityUtil;
 import com.threerings.getdown.util.VersionUtil;
 
+import com.samskivert.io.StreamUtil;
+
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * Handles the generation of the digest.txt file.
+ * Handles the generation of the digest.txt file (and of digests2.txt, which records digests
+ * computed with a better algorithm than MD5 for the clients that understand it).
  */
 public class Digester
 {
@@ -28,8 +47,44 @@ public class Digester
     public static void main (String[] args)
         throws IOException, GeneralSecurityException
     {
+        // strip off any options preceding our arguments
+        Options options = new Options();
+        int aidx = 0;
+        for (; aidx < args.length && args[aidx].startsWith("--"); aidx++) {
+            if (args[aidx].equals("--algorithm") && aidx + 1 < args.length) {
+                DigestAlgorithm algorithm = DigestAlgorithm.forName(args[++aidx]);
+                if (algorithm == null) {
+                    System.err.println("Unknown digest algorithm: " + args[aidx]);
+                    System.exit(255);
+                }
+                if (!algorithm.isCryptographic()) {
+                    System.err.println("Digest algorithm is not cryptographic: " + args[aidx]);
+                    System.exit(255);
+                }
+                options.algorithm(algorithm);
+            } else if (args[aidx].equals("--compress")) {
+                options.compress(true);
+            } else if (args[aidx].equals("--blocks")) {
+                options.blocks(true);
+            } else if (args[aidx].equals("--chunks")) {
+                options.chunks(true);
+            } else if (args[aidx].equals("--bundle")) {
+                options.bundle(true);
+            } else if (args[aidx].equals("--incremental")) {
+                options.incremental(true);
+            } else if (args[aidx].equals("--verify")) {
+                options.verify(true);
+            } else {
+                System.err.println("Unknown option: " + args[aidx]);
+                System.exit(255);
+            }
+        }
+        args = Arrays.asList(args).subList(aidx, args.length).toArray(new String[0]);
+
         if (args.length != 1 && args.length != 4) {
-            System.err.println("Usage: Digester app_dir [keystore_path password alias]");
+            System.err.println("Usage: Digester [--algorithm MD5|SHA-256] [--compress] " +
+                               "[--blocks] [--chunks] [--bundle] [--incremental] [--verify] " +
+                               "app_dir [keystore_path password alias]");
             System.exit(255);
         }
 
@@ -38,22 +93,131 @@ public class Digester
         String password = (args.length > 2) ? args[2] : "";
         String alias = (args.length > 3) ? args[3] : "";
 
-        writeDigests(appdir, keystore, password, alias);
+        writeDigests(appdir, keystore, password, alias, options);
+    }
+
+    /**
+     * The options with which the digest files are written. The defaults write MD5 and {@link
+     * #DEFAULT_ALGORITHM} digests of the resources, computed from scratch, and publish nothing
+     * else; each setter returns the options, so that they can be chained.
+     */
+    public static class Options
+    {
+        /**
+         * Sets whether to publish a gzipped copy (with the suffix {@link
+         * Digests#COMPRESSED_SUFFIX}) next to each resource that compresses well, which clients
+         * will download in place of the resource.
+         */
+        public Options compress (boolean compress)
+        {
+            _compress = compress;
+            return this;
+        }
+
+        /**
+         * Sets whether to publish a block signature (with the suffix {@link
+         * Digests#BLOCKS_SUFFIX}) next to each large resource, with which clients can update
+         * their copy of the resource by downloading only the blocks that changed.
+         */
+        public Options blocks (boolean blocks)
+        {
+            _blocks = blocks;
+            return this;
+        }
+
+        /**
+         * Sets whether to publish a chunk tree (with the suffix {@link Digests#CHUNKS_SUFFIX})
+         * next to each large resource, and record its root in the digests, so that clients can
+         * repair a corrupt copy of the resource by downloading only the corrupt chunks.
+         */
+        public Options chunks (boolean chunks)
+        {
+            _chunks = chunks;
+            return this;
+        }
+
+        /**
+         * Sets whether to copy the small resources of each resource group into a bundle (in the
+         * {@link #BUNDLE_DIR} directory), from which clients can download many of them at once.
+         */
+        public Options bundle (boolean bundle)
+        {
+            _bundle = bundle;
+            return this;
+        }
+
+        /**
+         * Sets the (cryptographic) algorithm of the digests written to digests2.txt. Older
+         * clients only understand MD5 digests, so those are always written to digest.txt as well
+         * (and only those, if MD5 is the algorithm requested).
+         */
+        public Options algorithm (DigestAlgorithm algorithm)
+        {
+            _algorithm = algorithm;
+            return this;
+        }
+
+        /**
+         * Sets whether to remember the digests of the resources in a {@link DigestCache} next to
+         * the application directory, so that the next run need only digest the resources that
+         * changed (according to their size and modification time).
+         */
+        public Options incremental (boolean incremental)
+        {
+            _incremental = incremental;
+            return this;
+        }
+
+        /**
+         * Sets whether to digest all resources anyway (refreshing the cache, and reporting any
+         * digests it had wrong). Implies an incremental run.
+         */
+        public Options verify (boolean verify)
+        {
+            _verify = verify;
+            return this;
+        }
+
+        protected boolean _compress, _blocks, _chunks, _bundle, _incremental, _verify;
+        protected DigestAlgorithm _algorithm = DEFAULT_ALGORITHM;
     }
 
     public static void writeDigests(File appdir, File keystore, String password, String alias) throws IOException, GeneralSecurityException {
-        Digests digests = createDigests(appdir);
+        writeDigests(appdir, keystore, password, alias, new Options());
+    }
+
+    /**
+     * Writes the digest files for the specified application directory with the supplied options.
+     */
+    public static void writeDigests(File appdir, File keystore, String password, String alias, Options options)
+        throws IOException, GeneralSecurityException {
+        boolean verify = options._verify, incremental = options._incremental || verify;
+        DigestAlgorithm algorithm = options._algorithm;
+        DigestCache cache = incremental ? new DigestCache(appdir, verify) : null;
+        List<Digests> digests = createDigests(appdir, options, (cache == null) ? DigestSource.COMPUTE : cache);
         PrivateKey key = null;
         if (keystore != null) {
             key = SecurityUtil.loadPrivateKey(keystore, password, alias);
         }
-        DigestsUtil.writeDigests(appdir, digests, key);
+        if (algorithm == DigestAlgorithm.MD5) {
+            // clients prefer digests2.txt, so we mustn't leave an old one lying around
+            DigestsUtil.deleteDigests2(appdir);
+        }
+        for (Digests d : digests) {
+            DigestsUtil.writeDigests(appdir, d, key);
+        }
+        if (cache != null) {
+            cache.save();
+            System.out.println("Reused " + cache.getReusedCount() + " cached digests" +
+                               (verify ? ", " + cache.getStaleCount() + " of which were stale" : "") + ".");
+        }
     }
 
     /**
-     * Creates a digest file in the specified application directory.
+     * Creates the digests of the specified application directory: the MD5 digests and, unless
+     * that's the requested algorithm, those computed with the requested algorithm.
      */
-    private static Digests createDigests(File appdir) throws IOException {
+    private static List<Digests> createDigests(File appdir, Options options, DigestSource source) throws IOException {
         // read the local configuration for all possible os-environments
         Configuration config = ConfigUtil.readConfigFile(appdir, false);
 
@@ -65,7 +229,184 @@ public class Digester
             srsrcs.addResources(ag.getResources(ResourceType.CONFIGURABLE_RESOURCES));
         }
 
+        if (options._compress) {
+            compress(config.getResources().getResources(ResourceType.CONFIGURABLE_RESOURCES));
+            for (ResourceGroup ag : config.getResources().getSubgroups()) {
+                compress(ag.getResources(ResourceType.CONFIGURABLE_RESOURCES));
+            }
+        }
+
+        if (options._blocks) {
+            writeSignatures(config.getResources().getResources(ResourceType.CONFIGURABLE_RESOURCES));
+            for (ResourceGroup ag : config.getResources().getSubgroups()) {
+                writeSignatures(ag.getResources(ResourceType.CONFIGURABLE_RESOURCES));
+            }
+        }
+
+        if (options._chunks) {
+            writeChunkTrees(config.getResources().getResources(ResourceType.CONFIGURABLE_RESOURCES));
+            for (ResourceGroup ag : config.getResources().getSubgroups()) {
+                writeChunkTrees(ag.getResources(ResourceType.CONFIGURABLE_RESOURCES));
+            }
+        }
 
-        return Digests.create(rsrcs, VersionUtil.getLocalVersion(appdir));
+        Map<String, String> bundles = new HashMap<String, String>();
+        if (options._bundle) {
+            writeBundle(appdir, "app", config.getResources().getResources(ResourceType.CONFIGURABLE_RESOURCES), bundles);
+            for (ResourceGroup ag : config.getResources().getSubgroups()) {
+                writeBundle(appdir, "aux-" + ag.getName(), ag.getResources(ResourceType.CONFIGURABLE_RESOURCES), bundles);
+            }
+        }
+
+        String version = VersionUtil.getLocalVersion(appdir);
+        List<Digests> digests = new ArrayList<Digests>();
+        Digests.Options dopts = new Digests.Options().compressed(options._compress).blocks(options._blocks).
+            chunks(options._chunks).bundles(bundles).source(source);
+        digests.add(Digests.create(rsrcs, version, dopts.algorithm(DigestAlgorithm.MD5)));
+        if (options._algorithm != DigestAlgorithm.MD5) {
+            digests.add(Digests.create(rsrcs, version, dopts.algorithm(options._algorithm)));
+        }
+        return digests;
+    }
+
+    /**
+     * Concatenates the small resources among those supplied into a bundle with the supplied name,
+     * noting the position of each in the bundle. Only resources that are used as is (not
+     * unpacked) are bundled, and there's no point in a bundle of fewer than two of them.
+     */
+    private static void writeBundle(File appdir, String name, Collection<Resource> rsrcs,
+                                    Map<String, String> bundles) throws IOException {
+        List<Resource> members = new ArrayList<Resource>();
+        for (Resource rsrc : rsrcs) {
+            File file = rsrc.getLocalFile();
+            if (!rsrc.shouldUnpack() && file.isFile() && file.length() <= MAX_BUNDLED_SIZE) {
+                members.add(rsrc);
+            }
+        }
+
+        String path = BUNDLE_DIR + name + BUNDLE_SUFFIX;
+        File target = new File(appdir, path);
+        if (members.size() < 2) {
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Unable to delete " + target);
+            }
+            return;
+        }
+
+        File dir = target.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        OutputStream out = new FileOutputStream(target);
+        try {
+            long offset = 0L;
+            for (Resource rsrc : members) {
+                InputStream in = new FileInputStream(rsrc.getLocalFile());
+                try {
+                    StreamUtil.copy(in, out);
+                } finally {
+                    StreamUtil.close(in);
+                }
+                bundles.put(rsrc.getPath(), path + "@" + offset);
+                offset += rsrc.getLocalFile().length();
+            }
+        } finally {
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * Writes the block signature of each of the supplied resources that is large enough to be
+     * worth updating block by block next to it (and removes any stale signature of the others).
+     */
+    private static void writeSignatures(Collection<Resource> rsrcs) throws IOException {
+        for (Resource rsrc : rsrcs) {
+            File source = rsrc.getLocalFile();
+            File target = new File(source.getPath() + Digests.BLOCKS_SUFFIX);
+            if (source.length() < MIN_BLOCKS_SIZE) {
+                if (target.exists() && !target.delete()) {
+                    throw new IOException("Unable to delete " + target);
+                }
+                continue;
+            }
+            BlockSignature sig = BlockSignature.compute(source, BlockSignature.DEFAULT_BLOCK_SIZE);
+            OutputStream out = new FileOutputStream(target);
+            try {
+                sig.write(out);
+            } finally {
+                StreamUtil.close(out);
+            }
+        }
     }
+
+    /**
+     * Writes the chunk tree of each of the supplied resources that is large enough to be worth
+     * repairing chunk by chunk next to it (and removes any stale tree of the others).
+     */
+    private static void writeChunkTrees(Collection<Resource> rsrcs) throws IOException {
+        for (Resource rsrc : rsrcs) {
+            File source = rsrc.getLocalFile();
+            File target = new File(source.getPath() + Digests.CHUNKS_SUFFIX);
+            if (source.length() < MIN_CHUNKS_SIZE) {
+                if (target.exists() && !target.delete()) {
+                    throw new IOException("Unable to delete " + target);
+                }
+                continue;
+            }
+            ChunkTree tree = ChunkTree.compute(source, ChunkTree.DEFAULT_CHUNK_SIZE,
+                                               Runtime.getRuntime().availableProcessors());
+            OutputStream out = new FileOutputStream(target);
+            try {
+                tree.write(out);
+            } finally {
+                StreamUtil.close(out);
+            }
+        }
+    }
+
+    /**
+     * Writes a gzipped copy of each of the supplied resources next to it, unless the resource
+     * doesn't compress well enough to be worth it.
+     */
+    private static void compress(Collection<Resource> rsrcs) throws IOException {
+        for (Resource rsrc : rsrcs) {
+            File source = rsrc.getLocalFile();
+            File target = new File(source.getPath() + Digests.COMPRESSED_SUFFIX);
+            InputStream in = new FileInputStream(source);
+            OutputStream out = null;
+            try {
+                out = new GZIPOutputStream(new FileOutputStream(target));
+                StreamUtil.copy(in, out);
+            } finally {
+                StreamUtil.close(in);
+                StreamUtil.close(out);
+            }
+            if (target.length() > source.length() * MAX_COMPRESSED_RATIO) {
+                if (!target.delete()) {
+                    throw new IOException("Unable to delete " + target);
+                }
+            }
+        }
+    }
+
+    /** The algorithm of the digests written to digests2.txt, unless another is requested. */
+    public static final DigestAlgorithm DEFAULT_ALGORITHM = DigestAlgorithm.SHA256;
+
+    /** The largest compressed size (relative to the original) for which we publish a copy. */
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+
+    /** The directory (relative to the appdir) in which resource bundles are written. */
+    public static final String BUNDLE_DIR = "bundles/";
+
+    /** The suffix of resource bundles. */
+    private static final String BUNDLE_SUFFIX = ".bundle";
+
+    /** The largest resource that is added to a bundle. */
+    private static final long MAX_BUNDLED_SIZE = 32 * 1024L;
+
+    /** The smallest resource for which we publish a block signature. */
+    private static final long MIN_BLOCKS_SIZE = 1024 * 1024L;
+
+    /** The smallest resource for which we publish a chunk tree. */
+    private static final long MIN_CHUNKS_SIZE = 4 * ChunkTree.DEFAULT_CHUNK_SIZE;
 }
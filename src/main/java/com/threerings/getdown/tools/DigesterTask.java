@@ -8,6 +8,8 @@ package com.threerings.getdown.tools;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
 
+import com.threerings.getdown.util.DigestAlgorithm;
+
 import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -50,6 +52,64 @@ public class DigesterTask extends Task
         _storealias = alias;
     }
 
+    /**
+     * Sets whether to publish gzipped copies of the resources alongside them.
+     */
+    public void setCompress (boolean compress)
+    {
+        _compress = compress;
+    }
+
+    /**
+     * Sets whether to publish block signatures of the resources alongside them.
+     */
+    public void setBlocks (boolean blocks)
+    {
+        _blocks = blocks;
+    }
+
+    /**
+     * Sets whether to publish chunk trees of the resources alongside them.
+     */
+    public void setChunks (boolean chunks)
+    {
+        _chunks = chunks;
+    }
+
+    /**
+     * Sets whether to bundle the small resources of each resource group together.
+     */
+    public void setBundle (boolean bundle)
+    {
+        _bundle = bundle;
+    }
+
+    /**
+     * Sets the algorithm with which to compute the digests written to digests2.txt.
+     */
+    public void setAlgorithm (String algorithm)
+    {
+        _algorithm = algorithm;
+    }
+
+    /**
+     * Sets whether to remember the digests of the resources between builds, so that only the
+     * resources that changed need be digested.
+     */
+    public void setIncremental (boolean incremental)
+    {
+        _incremental = incremental;
+    }
+
+    /**
+     * Sets whether to digest all resources anyway, checking the digests remembered by previous
+     * incremental builds.
+     */
+    public void setVerify (boolean verify)
+    {
+        _verify = verify;
+    }
+
     /**
      * Performs the actual work of the task.
      */
@@ -70,8 +130,22 @@ public class DigesterTask extends Task
             }
         }
 
+        DigestAlgorithm algorithm = Digester.DEFAULT_ALGORITHM;
+        if (_algorithm != null) {
+            algorithm = DigestAlgorithm.forName(_algorithm);
+            if (algorithm == null) {
+                throw new BuildException("Unknown digest algorithm: " + _algorithm);
+            }
+            if (!algorithm.isCryptographic()) {
+                throw new BuildException("Digest algorithm is not cryptographic: " + _algorithm);
+            }
+        }
+
         try {
-            Digester.writeDigests(_appdir, _storepath, _storepass, _storealias);
+            Digester.writeDigests(_appdir, _storepath, _storepass, _storealias,
+                                  new Digester.Options().compress(_compress).blocks(_blocks).
+                                  chunks(_chunks).bundle(_bundle).algorithm(algorithm).
+                                  incremental(_incremental).verify(_verify));
         } catch (IOException ioe) {
             throw new BuildException("Error creating digest: " + ioe.getMessage(), ioe);
         } catch (GeneralSecurityException gse) {
@@ -90,4 +164,22 @@ public class DigesterTask extends Task
 
     /** The private key alias. */
     protected String _storealias;
+
+    /** Whether to publish gzipped copies of the resources. */
+    protected boolean _compress;
+
+    /** Whether to publish block signatures of the resources. */
+    protected boolean _blocks;
+
+    /** Whether to publish chunk trees of the resources. */
+    protected boolean _chunks;
+
+    /** Whether to bundle small resources together. */
+    protected boolean _bundle;
+
+    /** The name of the algorithm with which to compute digests2.txt, or null for the default. */
+    protected String _algorithm;
+
+    /** Whether to remember digests between builds, and whether to check them anyway. */
+    protected boolean _incremental, _verify;
 }
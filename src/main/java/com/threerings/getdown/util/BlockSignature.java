@@ -0,0 +1,425 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import com.samskivert.io.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The block signature of a file (in the manner of rsync and zsync): the file is split into blocks
+ * of a fixed size, and each block is described by a cheap rolling checksum and a strong digest.
+ * Given the signature of a new version of a file, a client can find the blocks that are unchanged
+ * in its copy of the old version (wherever they moved to) and need only download the rest.
+ *
+ * <p> A signature is published next to the file it describes (with the suffix {@link
+ * com.threerings.getdown.data.Digests#BLOCKS_SUFFIX}). It need not be trusted: the file assembled
+ * with its help is verified against the file's digest like any other download.
+ */
+public class BlockSignature
+{
+    /** The default size of the blocks into which files are split. */
+    public static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Computes the signature of the supplied file.
+     */
+    public static BlockSignature compute (File file, int blockSize)
+        throws IOException
+    {
+        BlockSignature sig = new BlockSignature(blockSize, file.length());
+        MessageDigest md = createDigest();
+        byte[] block = new byte[blockSize];
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            for (int ii = 0; ii < sig.getBlockCount(); ii++) {
+                int length = sig.getBlockLength(ii);
+                readFully(in, block, length);
+                sig._weak[ii] = weakChecksum(block, length);
+                md.update(block, 0, length);
+                sig._strong[ii] = md.digest();
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+        return sig;
+    }
+
+    /**
+     * Reads a signature written by {@link #write}.
+     */
+    public static BlockSignature read (InputStream in)
+        throws IOException
+    {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+        if (din.readInt() != MAGIC) {
+            throw new IOException("Not a block signature");
+        }
+        int version = din.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported block signature version " + version);
+        }
+        int blockSize = din.readInt();
+        long length = din.readLong();
+        if (blockSize <= 0 || length < 0 || (length + blockSize - 1) / blockSize > MAX_BLOCKS) {
+            throw new IOException("Invalid block signature [blockSize=" + blockSize +
+                                  ", length=" + length + "]");
+        }
+        BlockSignature sig = new BlockSignature(blockSize, length);
+        for (int ii = 0; ii < sig.getBlockCount(); ii++) {
+            sig._weak[ii] = din.readInt();
+            sig._strong[ii] = new byte[STRONG_LENGTH];
+            din.readFully(sig._strong[ii]);
+        }
+        return sig;
+    }
+
+    /**
+     * Writes this signature to the supplied stream (which is not closed).
+     */
+    public void write (OutputStream out)
+        throws IOException
+    {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeInt(_blockSize);
+        dout.writeLong(_length);
+        for (int ii = 0; ii < getBlockCount(); ii++) {
+            dout.writeInt(_weak[ii]);
+            dout.write(_strong[ii]);
+        }
+        dout.flush();
+    }
+
+    /**
+     * Returns the size of the blocks into which the file is split.
+     */
+    public int getBlockSize ()
+    {
+        return _blockSize;
+    }
+
+    /**
+     * Returns the length of the file described by this signature.
+     */
+    public long getLength ()
+    {
+        return _length;
+    }
+
+    /**
+     * Returns the number of blocks into which the file is split.
+     */
+    public int getBlockCount ()
+    {
+        return _weak.length;
+    }
+
+    /**
+     * Returns the position in the file at which the specified block starts.
+     */
+    public long getBlockStart (int block)
+    {
+        return (long)block * _blockSize;
+    }
+
+    /**
+     * Returns the length of the specified block (all blocks but the last are full size).
+     */
+    public int getBlockLength (int block)
+    {
+        return (int)Math.min(_blockSize, _length - getBlockStart(block));
+    }
+
+    /**
+     * Scans the supplied file for the blocks described by this signature.
+     *
+     * @return an array containing, for each block, the position in the supplied file at which a
+     * copy of that block was found, or -1 if it was not found.
+     */
+    public long[] match (File file)
+        throws IOException
+    {
+        long[] found = new long[getBlockCount()];
+        Arrays.fill(found, -1L);
+
+        // index our full size blocks by their weak checksums (a partial last block can only
+        // reasonably be found at the end of the file, so we check for it separately)
+        int full = (int)(_length / _blockSize);
+        Map<Integer, List<Integer>> index = new HashMap<Integer, List<Integer>>();
+        for (int ii = 0; ii < full; ii++) {
+            List<Integer> blocks = index.get(_weak[ii]);
+            if (blocks == null) {
+                index.put(_weak[ii], blocks = new ArrayList<Integer>(1));
+            }
+            blocks.add(ii);
+        }
+
+        MessageDigest md = createDigest();
+        if (full > 0) {
+            scan(file, index, found, md);
+        }
+        if (full < found.length) {
+            matchTail(file, full, found, md);
+        }
+        return found;
+    }
+
+    /**
+     * Slides a block-sized window over the supplied file one byte at a time, looking for blocks
+     * that match our full size blocks. The file is read in large chunks and the checksum rolled
+     * over those, and a (primitive) filter of the weak checksums in our index spares us consulting
+     * the index at every position of the file that is unlikely to hold a match.
+     */
+    protected void scan (File file, Map<Integer, List<Integer>> index, long[] found,
+                         MessageDigest md)
+        throws IOException
+    {
+        // size our filter so that it is sparsely populated (and thus rarely lets a miss through)
+        int bits = Math.max(MIN_FILTER_BITS, 32 - Integer.numberOfLeadingZeros(index.size() * 8));
+        int shift = 32 - bits;
+        BitSet filter = new BitSet(1 << bits);
+        for (int weak : index.keySet()) {
+            filter.set((weak * FILTER_MULTIPLIER) >>> shift);
+        }
+
+        int size = _blockSize;
+        // the window is data[start, start+size), and the data we've read extends to end
+        byte[] data = new byte[Math.max(SCAN_BUFFER_SIZE, 2 * size)];
+        InputStream in = new FileInputStream(file);
+        try {
+            int start = 0, end = 0, a = 0, b = 0;
+            long position = 0L;
+            boolean eof = false, fresh = true;
+            while (true) {
+                // make sure we have the window and the byte that follows it, if there is one
+                if (end - start <= size && !eof) {
+                    int have = end - start;
+                    System.arraycopy(data, start, data, 0, have);
+                    start = 0;
+                    int want = data.length - have;
+                    int read = read(in, data, have, want);
+                    end = have + read;
+                    eof = (read < want);
+                }
+                if (fresh) {
+                    if (end - start < size) {
+                        return;
+                    }
+                    a = b = 0;
+                    for (int ii = 0; ii < size; ii++) {
+                        int v = data[start + ii] & 0xFF;
+                        a += v;
+                        b += (size - ii) * v;
+                    }
+                    fresh = false;
+                }
+
+                int weak = ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+                if (filter.get((weak * FILTER_MULTIPLIER) >>> shift) &&
+                    matchWindow(data, start, position, index.get(weak), found, md)) {
+                    // skip past the block we found and start afresh with the next one
+                    start += size;
+                    position += size;
+                    fresh = true;
+                    continue;
+                }
+
+                // otherwise roll the window forward by one byte
+                if (start + size >= end) {
+                    return;
+                }
+                int prev = data[start] & 0xFF, next = data[start + size] & 0xFF;
+                start++;
+                position++;
+                a += next - prev;
+                b += a - size * prev;
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Checks the window of the supplied data that starts at the supplied offset against the
+     * supplied blocks (those whose weak checksum matches the window's, if any), noting the
+     * position of the window for those that match.
+     *
+     * @return true if any of the blocks matched.
+     */
+    protected boolean matchWindow (byte[] data, int offset, long position, List<Integer> blocks,
+                                   long[] found, MessageDigest md)
+    {
+        if (blocks == null) {
+            return false;
+        }
+        boolean matched = false;
+        byte[] strong = null;
+        for (int block : blocks) {
+            if (found[block] >= 0) {
+                continue;
+            }
+            if (strong == null) {
+                md.update(data, offset, _blockSize);
+                strong = md.digest();
+            }
+            if (Arrays.equals(strong, _strong[block])) {
+                found[block] = position;
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Looks for our (partial) last block at the end of the supplied file, and where it would be
+     * if the file had not changed length.
+     */
+    protected void matchTail (File file, int block, long[] found, MessageDigest md)
+        throws IOException
+    {
+        int length = getBlockLength(block);
+        long flength = file.length();
+        long[] candidates = { flength - length, getBlockStart(block) };
+        byte[] data = new byte[length];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            for (long position : candidates) {
+                if (position < 0 || position + length > flength) {
+                    continue;
+                }
+                raf.seek(position);
+                raf.readFully(data);
+                md.update(data);
+                if (Arrays.equals(md.digest(), _strong[block])) {
+                    found[block] = position;
+                    return;
+                }
+            }
+        } finally {
+            StreamUtil.close(raf);
+        }
+    }
+
+    /**
+     * Computes the weak (rolling) checksum of the first <code>length</code> bytes of the supplied
+     * data, as used by rsync.
+     */
+    protected static int weakChecksum (byte[] data, int length)
+    {
+        int a = 0, b = 0;
+        for (int ii = 0; ii < length; ii++) {
+            a += data[ii] & 0xFF;
+            b += (length - ii) * (data[ii] & 0xFF);
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    protected static MessageDigest createDigest ()
+    {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("JVM does not support MD5. Gurp!");
+        }
+    }
+
+    /**
+     * Reads as much of the supplied number of bytes as the stream has to offer.
+     *
+     * @return the number of bytes read.
+     */
+    protected static int read (InputStream in, byte[] data, int length)
+        throws IOException
+    {
+        return read(in, data, 0, length);
+    }
+
+    /**
+     * Reads as much of the supplied number of bytes (into the supplied data, starting at the
+     * supplied offset) as the stream has to offer.
+     *
+     * @return the number of bytes read.
+     */
+    protected static int read (InputStream in, byte[] data, int offset, int length)
+        throws IOException
+    {
+        int have = 0;
+        while (have < length) {
+            int read = in.read(data, offset + have, length - have);
+            if (read < 0) {
+                break;
+            }
+            have += read;
+        }
+        return have;
+    }
+
+    protected static void readFully (InputStream in, byte[] data, int length)
+        throws IOException
+    {
+        if (read(in, data, length) < length) {
+            throw new IOException("File changed while computing its block signature");
+        }
+    }
+
+    protected BlockSignature (int blockSize, long length)
+    {
+        _blockSize = blockSize;
+        _length = length;
+        int count = (int)((length + blockSize - 1) / blockSize);
+        _weak = new int[count];
+        _strong = new byte[count][];
+    }
+
+    protected int _blockSize;
+    protected long _length;
+
+    /** The weak (rolling) checksum and strong digest of each block. */
+    protected int[] _weak;
+    protected byte[][] _strong;
+
+    /** Identifies a block signature file ("GDBS"). */
+    protected static final int MAGIC = 0x47444253;
+
+    /** The version of our file format. */
+    protected static final int VERSION = 1;
+
+    /** The length of our strong (MD5) digests. */
+    protected static final int STRONG_LENGTH = 16;
+
+    /** The most blocks we'll accept in a signature, lest a bogus one exhaust our memory. */
+    protected static final long MAX_BLOCKS = 4 * 1024 * 1024L;
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The size of the chunks in which we read a file that we scan for blocks. */
+    protected static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+    /** The smallest filter of weak checksums (in bits of the filter's index) that we use. */
+    protected static final int MIN_FILTER_BITS = 16;
+
+    /** Spreads weak checksums (whose halves are sums of bytes, and thus poorly distributed) over
+     * our filter (the 32-bit golden ratio, as used for Fibonacci hashing). */
+    protected static final int FILTER_MULTIPLIER = 0x9E3779B9;
+}
@@ -0,0 +1,342 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.StringUtil;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A Merkle tree over the fixed size chunks of a file: each chunk is digested (with SHA-256), and
+ * pairs of digests are digested in turn up to a single root digest. The root is recorded in the
+ * (signed) digests of the resource, and the digests of the chunks are published next to it (with
+ * the suffix {@link com.threerings.getdown.data.Digests#CHUNKS_SUFFIX}); a client that checks the
+ * latter against the former can then tell exactly which chunks of its copy of the resource are
+ * corrupt, and download just those.
+ *
+ * <p> Leaves and inner nodes are digested with distinct prefixes (in the manner of RFC 6962), so
+ * that the digest of a chunk can't pass for that of a pair of nodes. A node without a sibling is
+ * carried up to the next level as is.
+ */
+public class ChunkTree
+{
+    /** The default size of the chunks into which files are split. */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Computes the tree of the supplied file, digesting its chunks on the supplied number of
+     * threads.
+     */
+    public static ChunkTree compute (File file, int chunkSize, int threads)
+        throws IOException
+    {
+        ChunkTree tree = new ChunkTree(chunkSize, file.length());
+        byte[][] leaves = tree.digestChunks(file, threads);
+        for (int ii = 0; ii < leaves.length; ii++) {
+            if (leaves[ii] == null) {
+                throw new IOException("File changed while computing its chunk tree");
+            }
+        }
+        tree._leaves = leaves;
+        return tree;
+    }
+
+    /**
+     * Reads a tree written by {@link #write}.
+     */
+    public static ChunkTree read (InputStream in)
+        throws IOException
+    {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+        if (din.readInt() != MAGIC) {
+            throw new IOException("Not a chunk tree");
+        }
+        int version = din.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported chunk tree version " + version);
+        }
+        int chunkSize = din.readInt();
+        long length = din.readLong();
+        if (chunkSize <= 0 || length < 0 || (length + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+            throw new IOException("Invalid chunk tree [chunkSize=" + chunkSize +
+                                  ", length=" + length + "]");
+        }
+        ChunkTree tree = new ChunkTree(chunkSize, length);
+        for (int ii = 0; ii < tree.getChunkCount(); ii++) {
+            tree._leaves[ii] = new byte[DIGEST_LENGTH];
+            din.readFully(tree._leaves[ii]);
+        }
+        return tree;
+    }
+
+    /**
+     * Reads the tree in the supplied file.
+     */
+    public static ChunkTree read (File file)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Writes this tree (its leaves, from which the rest is computed) to the supplied stream (which
+     * is not closed).
+     */
+    public void write (OutputStream out)
+        throws IOException
+    {
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeInt(_chunkSize);
+        dout.writeLong(_length);
+        for (byte[] leaf : _leaves) {
+            dout.write(leaf);
+        }
+        dout.flush();
+    }
+
+    /**
+     * Returns the (hex encoded) root digest of this tree.
+     */
+    public String getRoot ()
+    {
+        MessageDigest md = createDigest();
+        if (_leaves.length == 0) {
+            return StringUtil.hexlate(digestLeaf(md, new byte[0], 0));
+        }
+        byte[][] level = _leaves;
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int ii = 0; ii < parents.length; ii++) {
+                if (2 * ii + 1 < level.length) {
+                    md.update(NODE_PREFIX);
+                    md.update(level[2 * ii]);
+                    md.update(level[2 * ii + 1]);
+                    parents[ii] = md.digest();
+                } else {
+                    parents[ii] = level[2 * ii];
+                }
+            }
+            level = parents;
+        }
+        return StringUtil.hexlate(level[0]);
+    }
+
+    /**
+     * Returns the size of the chunks into which the file is split.
+     */
+    public int getChunkSize ()
+    {
+        return _chunkSize;
+    }
+
+    /**
+     * Returns the length of the file described by this tree.
+     */
+    public long getLength ()
+    {
+        return _length;
+    }
+
+    /**
+     * Returns the number of chunks into which the file is split.
+     */
+    public int getChunkCount ()
+    {
+        return _leaves.length;
+    }
+
+    /**
+     * Returns the position in the file at which the specified chunk starts.
+     */
+    public long getChunkStart (int chunk)
+    {
+        return (long)chunk * _chunkSize;
+    }
+
+    /**
+     * Returns the length of the specified chunk (all chunks but the last are full size).
+     */
+    public int getChunkLength (int chunk)
+    {
+        return (int)Math.min(_chunkSize, _length - getChunkStart(chunk));
+    }
+
+    /**
+     * Returns true if the supplied data (of the supplied length) is the specified chunk.
+     */
+    public boolean matches (int chunk, byte[] data, int length)
+    {
+        return length == getChunkLength(chunk) &&
+            Arrays.equals(digestLeaf(createDigest(), data, length), _leaves[chunk]);
+    }
+
+    /**
+     * Checks the chunks of the supplied file (our copy of the file described by this tree) on the
+     * supplied number of threads.
+     *
+     * @return the indices of the chunks that don't match (in ascending order), including those
+     * that lie beyond the end of the supplied file.
+     */
+    public List<Integer> findCorrupt (File file, int threads)
+        throws IOException
+    {
+        byte[][] actual = digestChunks(file, threads);
+        List<Integer> corrupt = new ArrayList<Integer>();
+        for (int ii = 0; ii < actual.length; ii++) {
+            if (actual[ii] == null || !Arrays.equals(actual[ii], _leaves[ii])) {
+                corrupt.add(ii);
+            }
+        }
+        return corrupt;
+    }
+
+    /**
+     * Digests the chunks of the supplied file (as they would be if it had our length), dividing
+     * them among the supplied number of threads.
+     *
+     * @return the digest of each chunk, or null for those the file is too short to contain.
+     */
+    protected byte[][] digestChunks (File file, int threads)
+        throws IOException
+    {
+        final byte[][] digests = new byte[getChunkCount()][];
+        final FileChannel channel = new FileInputStream(file).getChannel();
+        final int stride = Math.max(1, Math.min(threads, digests.length));
+        ExecutorService digesters = Executors.newFixedThreadPool(stride, new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "Chunk digester");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            // each thread takes every nth chunk, reading it with its own buffer
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int tt = 0; tt < stride; tt++) {
+                final int first = tt;
+                futures.add(digesters.submit(new Callable<Void>() {
+                    public Void call () throws IOException {
+                        MessageDigest md = createDigest();
+                        ByteBuffer buffer = ByteBuffer.allocate(_chunkSize);
+                        for (int ii = first; ii < digests.length; ii += stride) {
+                            if (readChunk(channel, ii, buffer)) {
+                                digests[ii] = digestLeaf(md, buffer.array(), buffer.limit());
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            throw (cause instanceof IOException) ? (IOException)cause :
+                (IOException)new IOException("Failed to digest chunks of " + file).initCause(cause);
+        } catch (InterruptedException ie) {
+            throw (IOException)new IOException("Interrupted digesting " + file).initCause(ie);
+        } finally {
+            digesters.shutdownNow();
+            StreamUtil.close(channel);
+        }
+        return digests;
+    }
+
+    /**
+     * Reads the specified chunk of the supplied file into the supplied buffer (with its limit set
+     * to the length of the chunk).
+     *
+     * @return false if the file ends before the chunk does.
+     */
+    protected boolean readChunk (FileChannel channel, int chunk, ByteBuffer buffer)
+        throws IOException
+    {
+        buffer.clear();
+        buffer.limit(getChunkLength(chunk));
+        long position = getChunkStart(chunk);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    protected static byte[] digestLeaf (MessageDigest md, byte[] data, int length)
+    {
+        md.update(LEAF_PREFIX);
+        md.update(data, 0, length);
+        return md.digest();
+    }
+
+    protected static MessageDigest createDigest ()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("JVM does not support SHA-256. Gurp!");
+        }
+    }
+
+    protected ChunkTree (int chunkSize, long length)
+    {
+        _chunkSize = chunkSize;
+        _length = length;
+        _leaves = new byte[(int)((length + chunkSize - 1) / chunkSize)][];
+    }
+
+    protected int _chunkSize;
+    protected long _length;
+
+    /** The digest of each chunk. */
+    protected byte[][] _leaves;
+
+    /** Identifies a chunk tree file ("GDCT"). */
+    protected static final int MAGIC = 0x47444354;
+
+    /** The version of our file format. */
+    protected static final int VERSION = 1;
+
+    /** The length of our (SHA-256) digests. */
+    protected static final int DIGEST_LENGTH = 32;
+
+    /** Prefix the data digested for leaves and for inner nodes, respectively. */
+    protected static final byte[] LEAF_PREFIX = { 0 }, NODE_PREFIX = { 1 };
+
+    /** The most chunks we'll accept in a tree, lest a bogus one exhaust our memory. */
+    protected static final long MAX_CHUNKS = 4 * 1024 * 1024L;
+}
@@ -37,7 +37,21 @@ public class ConfigUtil {
     }
 
     public static Configuration downloadConfigFile(File appdir, URL appbase) throws IOException {
-        ConnectionUtil.download(new File(appdir, CONFIG_FILE), new URL(appbase, CONFIG_FILE));
+        File configFile = new File(appdir, CONFIG_FILE);
+        // download next to our copy and move it into place once it's all there, so that a failed
+        // download doesn't leave us with a truncated config (nor the cache with a bogus timestamp)
+        File tmpConfig = new File(appdir, CONFIG_FILE + ".new");
+        // clear out anything left behind by a run that died mid-download
+        tmpConfig.delete();
+        try {
+            if (new MetadataCache(appdir).download(new URL(appbase, CONFIG_FILE), tmpConfig, configFile) &&
+                !FileUtil.renameTo(tmpConfig, configFile)) {
+                throw new IOException("Unable to move " + tmpConfig + " to " + configFile);
+            }
+        } finally {
+            // if we didn't move it into place, we don't want it
+            tmpConfig.delete();
+        }
         return readConfigFile(appdir, false);
     }
 
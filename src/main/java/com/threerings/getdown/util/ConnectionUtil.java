@@ -14,6 +14,7 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
+import java.util.zip.GZIPInputStream;
 
 public class ConnectionUtil
 {
@@ -32,6 +33,10 @@ public class ConnectionUtil
         if (timeout > 0) {
             conn.setConnectTimeout(timeout * 1000);
         }
+        int readTimeout = SysProps.readTimeout();
+        if (readTimeout > 0) {
+            conn.setReadTimeout(readTimeout * 1000);
+        }
 
         // If URL has a username:password@ before hostname, use HTTP basic auth
         String userInfo = url.getUserInfo();
@@ -47,11 +52,38 @@ public class ConnectionUtil
         return conn;
     }
 
+    /**
+     * Asks the server to compress the response to the supplied (not yet connected) connection,
+     * should it be so inclined. Use {@link #isCompressed} to find out whether it was.
+     */
+    public static void acceptCompressed(URLConnection conn) {
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+    }
+
+    /**
+     * Returns true if the server compressed the response to the supplied connection.
+     */
+    public static boolean isCompressed(URLConnection conn) {
+        return "gzip".equalsIgnoreCase(conn.getContentEncoding());
+    }
+
+    /**
+     * Returns the response body of the supplied connection, decompressing it if the server
+     * compressed it.
+     */
+    public static InputStream getInputStream(URLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        return isCompressed(conn) ? new GZIPInputStream(in) : in;
+    }
+
     public static File download(File target, URL url) throws IOException {
         InputStream in = null;
         OutputStream out = null;
         try {
-            in = open(url).getInputStream();
+            URLConnection conn = open(url);
+            // our metadata files are text and compress very well
+            acceptCompressed(conn);
+            in = getInputStream(conn);
             out = new FileOutputStream(target);
             StreamUtil.copy(in, out);
             return target;
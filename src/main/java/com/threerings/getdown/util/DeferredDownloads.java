@@ -0,0 +1,147 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.StringUtil;
+
+import java.io.*;
+import java.util.*;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Keeps track of the resources that Getdown is still downloading in the background after having
+ * launched the application early (see the {@code early_launch} configuration). An application
+ * that needs one of those resources can check whether it is available yet, or wait for it:
+ *
+ * <pre>
+ * if (!DeferredDownloads.waitFor(appdir, "media/intro.ogg", 60 * 1000L)) {
+ *     // skip the intro
+ * }
+ * </pre>
+ *
+ * A resource that the application had to wait for is noted as launch-critical, so that it is
+ * downloaded before the application is launched the next time around.
+ */
+public final class DeferredDownloads {
+    /* for internal use & tests only */
+    static final String PENDING_FILE_NAME = "pending.txt";
+    static final String CRITICAL_FILE_NAME = "critical.txt";
+
+    /**
+     * Returns the paths of the resources that are still being downloaded in the background.
+     */
+    public static Set<String> getPending(File appdir) {
+        return readPaths(new File(appdir, PENDING_FILE_NAME));
+    }
+
+    /**
+     * Returns {@code true} if the resource with the given path (relative to the application
+     * directory) is still being downloaded in the background.
+     */
+    public static boolean isPending(File appdir, String path) {
+        return getPending(appdir).contains(path);
+    }
+
+    /**
+     * Waits until the resource with the given path is no longer being downloaded in the
+     * background, or the given time has elapsed.
+     *
+     * @return {@code true} if Getdown is done with the resource, {@code false} if we timed out.
+     *         Getdown gives up on resources that fail to download (and tries again when next
+     *         run), so the caller should still check that the file exists.
+     */
+    public static boolean waitFor(File appdir, String path, long timeoutMillis)
+        throws InterruptedException {
+        if (!isPending(appdir, path)) {
+            return true;
+        }
+
+        // make sure that the next update doesn't keep us waiting for this resource
+        Set<String> critical = getCritical(appdir);
+        if (critical.add(path)) {
+            writePaths(new File(appdir, CRITICAL_FILE_NAME), critical);
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_INTERVAL);
+            if (!isPending(appdir, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the paths of the resources that the application needed before they were downloaded.
+     */
+    public static Set<String> getCritical(File appdir) {
+        return readPaths(new File(appdir, CRITICAL_FILE_NAME));
+    }
+
+    /**
+     * Records the paths of the resources that are still being downloaded in the background (or
+     * that none are, if the given collection is empty).
+     */
+    public static void setPending(File appdir, Collection<String> paths) {
+        File file = new File(appdir, PENDING_FILE_NAME);
+        if (paths.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                log.warning("Failed to delete " + file);
+            }
+        } else {
+            writePaths(file, paths);
+        }
+    }
+
+    private static Set<String> readPaths(File file) {
+        Set<String> paths = new LinkedHashSet<String>();
+        if (!file.exists()) {
+            return paths;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!StringUtil.isBlank(line)) {
+                    paths.add(line.trim());
+                }
+            }
+        } catch (IOException e) {
+            log.warning("Unable to read " + file + ": " + e.getMessage());
+        } finally {
+            StreamUtil.close(in);
+        }
+        return paths;
+    }
+
+    private static void writePaths(File file, Collection<String> paths) {
+        // write the new list next to the old one and swap it in, so that readers never see half
+        File temp = new File(file.getPath() + "_new");
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+            for (String path : paths) {
+                out.println(path);
+            }
+        } catch (IOException e) {
+            log.warning("Unable to write " + file + ": " + e.getMessage());
+            return;
+        } finally {
+            StreamUtil.close(out);
+        }
+        if (!FileUtil.renameTo(temp, file)) {
+            log.warning("Unable to move " + temp + " to " + file);
+        }
+    }
+
+    private static final long POLL_INTERVAL = 250L;
+
+    private DeferredDownloads() { /* no instances allowed */ }
+}
@@ -0,0 +1,64 @@
+package com.threerings.getdown.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The algorithms with which resources may be digested (see {@link DigestsUtil}).
+ */
+public enum DigestAlgorithm {
+    /** The algorithm of the original digests file, which older clients still expect. */
+    MD5("MD5", true),
+    SHA256("SHA-256", true),
+    /** Very fast, but not cryptographic (see {@link XXHash64Digest}). */
+    XXH64("XXH64", false);
+
+    private final String name;
+    private final boolean cryptographic;
+
+    private DigestAlgorithm(String name, boolean cryptographic) {
+        this.name = name;
+        this.cryptographic = cryptographic;
+    }
+
+    /**
+     * Returns the algorithm with the given name, or {@code null} if we don't know of one.
+     */
+    public static DigestAlgorithm forName(String name) {
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name by which this algorithm is recorded in digest files (which, save for
+     * {@link #XXH64}, is also its name in the Java security API).
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns {@code true} if it is infeasible to craft a file with a given digest.
+     */
+    public boolean isCryptographic() {
+        return cryptographic;
+    }
+
+    /**
+     * Creates a new message digest that implements this algorithm.
+     */
+    public MessageDigest createDigest() {
+        if (this == XXH64) {
+            return new XXHash64Digest();
+        }
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("JVM does not support " + name + ". Gurp!");
+        }
+    }
+}
@@ -0,0 +1,190 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import com.samskivert.io.StreamUtil;
+import com.threerings.getdown.data.Resource;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Remembers the digests computed by the digester, so that a later run need only digest the
+ * resources that changed since. For each digest we note the size and modification time the
+ * resource's file had when it was digested, and reuse the digest only as long as its file still
+ * has that size and modification time.
+ *
+ * The cache is kept in a file next to the application directory (so that it isn't published along
+ * with it). It is read when created and rewritten by {@link #save}, which drops the digests that
+ * weren't asked for this time around.
+ */
+public final class DigestCache implements DigestSource {
+    /** The suffix appended to the name of the application directory to name its cache file. */
+    public static final String CACHE_SUFFIX = ".digestcache";
+
+    /**
+     * Returns the cache file of the given application directory.
+     */
+    public static File getCacheFile(File appdir) {
+        appdir = appdir.getAbsoluteFile();
+        return new File(appdir.getParentFile(), appdir.getName() + CACHE_SUFFIX);
+    }
+
+    /**
+     * Creates the digest cache of the given application directory.
+     *
+     * @param verify if {@code true}, the digests remembered from previous runs are not used (all
+     *               resources are digested anew), but are compared with the new ones, so that we
+     *               can report those that were stale.
+     */
+    public DigestCache(File appdir, boolean verify) {
+        this.cacheFile = getCacheFile(appdir);
+        this.verify = verify;
+        if (cacheFile.exists()) {
+            load();
+        }
+    }
+
+    public String getDigest(Resource resource, DigestAlgorithm algorithm, boolean rawArchive) throws IOException {
+        File file = resource.getLocalFile();
+        // only archives can be digested entry by entry (and the file decides whether it's an archive)
+        String key = algorithm.getName() + ((rawArchive || !resource.shouldUnpack()) ? "" : ENTRIES) +
+            SEPARATOR + resource.getPath();
+        long size = file.length(), modified = file.lastModified();
+        Entry cached;
+        synchronized (this) {
+            cached = previous.get(key);
+        }
+        if (!verify && cached != null && cached.size == size && cached.modified == modified) {
+            synchronized (this) {
+                current.put(key, cached);
+            }
+            return cached.digest;
+        }
+
+        long started = System.currentTimeMillis();
+        String digest = DigestsUtil.computeResourceDigest(resource, algorithm, rawArchive, null);
+        if (verify && cached != null && cached.size == size && cached.modified == modified &&
+            !cached.digest.equals(digest)) {
+            log.warning("Cached digest was stale", "rsrc", resource, "algorithm", algorithm,
+                        "cached", cached.digest, "actual", digest);
+            stale++;
+        }
+        // a file modified just before we read it may be modified again without its modification
+        // time changing (given the granularity thereof), so we don't trust such a file to be
+        // unchanged the next time around
+        if (file.length() == size && file.lastModified() == modified && started - modified > RACY_INTERVAL) {
+            synchronized (this) {
+                current.put(key, new Entry(size, modified, digest));
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Returns the number of digests obtained from previous runs, rather than computed.
+     */
+    public synchronized int getReusedCount() {
+        int reused = 0;
+        for (Map.Entry<String, Entry> entry : current.entrySet()) {
+            if (previous.get(entry.getKey()) == entry.getValue()) {
+                reused++;
+            }
+        }
+        return reused;
+    }
+
+    /**
+     * Returns the number of remembered digests that turned out to be wrong (which we only find
+     * out when verifying).
+     */
+    public synchronized int getStaleCount() {
+        return stale;
+    }
+
+    /**
+     * Writes the digests used since this cache was created to its file.
+     */
+    public synchronized void save() throws IOException {
+        File temp = new File(cacheFile.getPath() + "_new");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            out.write(HEADER + "\n");
+            for (Map.Entry<String, Entry> entry : current.entrySet()) {
+                Entry e = entry.getValue();
+                out.write(e.size + SEPARATOR + e.modified + SEPARATOR + e.digest + SEPARATOR +
+                          entry.getKey() + "\n");
+            }
+        } finally {
+            StreamUtil.close(out);
+        }
+        if (!FileUtil.renameTo(temp, cacheFile)) {
+            temp.delete();
+            throw new IOException("Unable to move " + temp + " to " + cacheFile);
+        }
+    }
+
+    private void load() {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF-8"));
+            if (!HEADER.equals(in.readLine())) {
+                log.warning("Ignoring unrecognized digest cache " + cacheFile);
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, 5);
+                if (fields.length != 5) {
+                    continue;
+                }
+                try {
+                    previous.put(fields[3] + SEPARATOR + fields[4],
+                                 new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                } catch (NumberFormatException e) {
+                    // skip it; it'll simply be digested again
+                }
+            }
+        } catch (IOException e) {
+            // we'll simply digest everything again
+            log.warning("Unable to read " + cacheFile + ": " + e.getMessage());
+            previous.clear();
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    private static class Entry {
+        public final long size;
+        public final long modified;
+        public final String digest;
+
+        public Entry(long size, long modified, String digest) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+
+    private static final String HEADER = "# getdown digest cache 1";
+    private static final String SEPARATOR = "\t";
+
+    /** Appended to the algorithm of digests computed over the entries of an archive. */
+    private static final String ENTRIES = "/entries";
+
+    /** How recently a file may have been modified before we digest it and still trust it to be
+     * unchanged if its modification time hasn't changed (covers coarse timestamps). */
+    private static final long RACY_INTERVAL = 2000L;
+
+    private final File cacheFile;
+    private final boolean verify;
+    private final Map<String, Entry> previous = new HashMap<String, Entry>();
+    private final Map<String, Entry> current = new HashMap<String, Entry>();
+    private int stale;
+}
@@ -0,0 +1,26 @@
+package com.threerings.getdown.util;
+
+import com.threerings.getdown.data.Resource;
+
+import java.io.IOException;
+
+/**
+ * Supplies the digests of resources when creating {@link com.threerings.getdown.data.Digests}.
+ * Implementations must be thread-safe, as resources are digested on several threads at once.
+ */
+public interface DigestSource {
+    /** Simply computes each digest (see {@link DigestsUtil#computeResourceDigest}). */
+    DigestSource COMPUTE = new DigestSource() {
+        public String getDigest(Resource resource, DigestAlgorithm algorithm, boolean rawArchive) throws IOException {
+            return DigestsUtil.computeResourceDigest(resource, algorithm, rawArchive, null);
+        }
+    };
+
+    /**
+     * Returns the digest of the given resource, computed with the given algorithm.
+     *
+     * @param rawArchive if {@code true}, an archive is digested like any other file, rather than
+     *                   entry by entry.
+     */
+    String getDigest(Resource resource, DigestAlgorithm algorithm, boolean rawArchive) throws IOException;
+}
@@ -1,6 +1,7 @@
 package com.threerings.getdown.util;
 
 import com.samskivert.io.StreamUtil;
+import com.samskivert.util.RunAnywhere;
 import com.samskivert.util.StringUtil;
 import com.threerings.getdown.data.Digests;
 import com.threerings.getdown.data.Resource;
@@ -8,9 +9,11 @@ import com.threerings.getdown.data.Resource;
 import java.io.*;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.util.*;
@@ -23,13 +26,23 @@ import static com.threerings.getdown.Log.log;
 /**
  * {@link DigestsUtil} contains helper methods concerning the calculation of message-digests stored in
  * {@link DigestsUtil#DIGESTS_FILE_NAME} used to validate the resources referenced in our config-file
+ *
+ * The original digests file records MD5 digests. Digests computed with any other algorithm (see
+ * {@link DigestAlgorithm}) are stored in {@link DigestsUtil#DIGESTS2_FILE_NAME}, which names its
+ * algorithm in a header; we use it when the appbase provides one, and the original otherwise. Older
+ * clients only know of the original, so the digester writes both.
  */
 public final class DigestsUtil {
     /* for internal use & tests only */
     static final String DIGESTS_FILE_NAME = "digests.txt";
+    static final String DIGESTS2_FILE_NAME = "digests2.txt";
     static final String DIGESTS_SIGNATURE_SUFFIX = ".sig";
-    static final String MESSAGEDIGEST_ALGORITHM = "MD5";
     static final int DIGEST_BUFFER_SIZE = 5 * 1025;
+    // files at least this large are read via a direct buffer, and mapped if larger still
+    static final long DIRECT_THRESHOLD = 1024 * 1024L;
+    static final long MAP_THRESHOLD = 64 * 1024 * 1024L;
+    static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+    static final long MAP_WINDOW_SIZE = 32 * 1024 * 1024L;
 
     private static final Pattern ZIPFILE_METADATA_ENTRY_PATTERN = Pattern.compile("^/?META-INF/.*");
     private static final Comparator<? super ZipEntry> ZIPFILE_ENTRY_COMPARATOR =
@@ -39,46 +52,136 @@ public final class DigestsUtil {
                 }
             };
 
-    private static MessageDigest md = null;
+    // resources may be verified on several (download) threads at once, so each gets its own
+    private static final ThreadLocal<Map<DigestAlgorithm, MessageDigest>> md =
+            new ThreadLocal<Map<DigestAlgorithm, MessageDigest>>() {
+                @Override protected Map<DigestAlgorithm, MessageDigest> initialValue() {
+                    return new EnumMap<DigestAlgorithm, MessageDigest>(DigestAlgorithm.class);
+                }
+            };
 
+    // direct buffers are expensive to allocate, so each thread keeps the one it reads files with
+    private static final ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        }
+    };
 
+
+    /**
+     * Reads our copy of the digests, preferring {@link #DIGESTS2_FILE_NAME} if we have one.
+     */
     public static Digests readDigests(File appdir, String version) throws IOException {
-        File digestFile = new File(appdir, DIGESTS_FILE_NAME);
+        File digestFile = new File(appdir, DIGESTS2_FILE_NAME);
+        if (!digestFile.exists()) {
+            digestFile = new File(appdir, DIGESTS_FILE_NAME);
+        }
+        return readDigestsFile(digestFile, version);
+    }
+
+    private static Digests readDigestsFile(File digestFile, String version) throws IOException {
         if (!digestFile.exists()) {
             throw new IOException("missing digests-file " + digestFile);
         }
 
         Properties contents = new Properties();
-        contents.load(new FileInputStream(digestFile));
+        InputStream in = new FileInputStream(digestFile);
+        try {
+            contents.load(in);
+        } finally {
+            StreamUtil.close(in);
+        }
         return Digests.create(contents, version);
     }
 
+    /**
+     * Downloads the digests from the given appbase, preferring {@link #DIGESTS2_FILE_NAME} but
+     * falling back to {@link #DIGESTS_FILE_NAME} if the appbase does not provide it (responds to
+     * our request for it with any client error, as hosts answer 403 for a missing file as often
+     * as 404). Any other failure, like a bad signature, is fatal.
+     */
     public static Digests downloadDigests(File appdir, URL appbase, String version, Collection<Certificate> certificates) throws IOException {
-        URL digestsURL = new URL(appbase, DIGESTS_FILE_NAME);
-        File tmpDigests = ConnectionUtil.download(FileUtil.createTempFile(DIGESTS_FILE_NAME, ".new", true), digestsURL);
-
-        if (!certificates.isEmpty()) {
-            if (!validateDigestsSignature(tmpDigests, new URL(digestsURL.toString() + DIGESTS_SIGNATURE_SUFFIX), certificates)) {
-                throw new IOException("m.corrupt_digest_signature_error");
+        try {
+            return downloadDigests(appdir, appbase, version, certificates, DIGESTS2_FILE_NAME);
+        } catch (FileNotFoundException e) {
+            // make sure we don't prefer a copy left over from when the appbase did provide it
+            File digestFile = new File(appdir, DIGESTS2_FILE_NAME);
+            if (digestFile.exists() && !digestFile.delete()) {
+                throw new IOException("Unable to delete stale " + digestFile);
             }
+            return downloadDigests(appdir, appbase, version, certificates, DIGESTS_FILE_NAME);
         }
+    }
+
+    private static Digests downloadDigests(File appdir, URL appbase, String version, Collection<Certificate> certificates,
+                                           String fileName) throws IOException {
+        URL digestsURL = new URL(appbase, fileName);
+        File digestFile = new File(appdir, fileName);
+        // download next to our copy, so that moving it into place keeps the timestamp noted by the cache
+        File tmpDigests = new File(appdir, fileName + ".new");
+        // clear out anything left behind by a run that died mid-download
+        tmpDigests.delete();
+        try {
+            MetadataCache cache = new MetadataCache(appdir);
+            if (!cache.download(digestsURL, tmpDigests, digestFile)) {
+                // our copy is current and was validated when we downloaded it
+                return readDigestsFile(digestFile, version);
+            }
 
-        FileUtil.renameTo(tmpDigests, new File(appdir, DIGESTS_FILE_NAME));
-        return readDigests(appdir, version);
+            if (!certificates.isEmpty()) {
+                if (!validateDigestsSignature(tmpDigests, new URL(digestsURL.toString() + DIGESTS_SIGNATURE_SUFFIX), certificates)) {
+                    throw new IOException("m.corrupt_digest_signature_error");
+                }
+            }
+
+            if (!FileUtil.renameTo(tmpDigests, digestFile)) {
+                // we mustn't tell the server next time that we have the copy we just downloaded
+                cache.forget(digestsURL);
+                throw new IOException("Unable to move " + tmpDigests + " to " + digestFile);
+            }
+        } finally {
+            // if we didn't move it into place, we don't want it
+            tmpDigests.delete();
+        }
+        return readDigestsFile(digestFile, version);
     }
 
 
+    /**
+     * Writes the given digests (and their signature, if a key is given) to {@link
+     * #DIGESTS_FILE_NAME} if they are MD5 digests, or {@link #DIGESTS2_FILE_NAME} otherwise.
+     */
     public static void writeDigests(File appdir, Digests digests, PrivateKey key) throws IOException, GeneralSecurityException {
-        File digestFile = new File(appdir, DIGESTS_FILE_NAME);
+        String fileName = getDigestsFileName(digests.getAlgorithm());
+        File digestFile = new File(appdir, fileName);
 
         writeFile(digestFile, digests.toString());
 
         if (key != null) {
-            File signatureFile = new File(appdir, DIGESTS_FILE_NAME + DIGESTS_SIGNATURE_SUFFIX);
+            File signatureFile = new File(appdir, fileName + DIGESTS_SIGNATURE_SUFFIX);
             writeFile(signatureFile, SignatureUtil.calculateSignature(new FileInputStream(digestFile), key));
         }
     }
 
+    /**
+     * Deletes the {@link #DIGESTS2_FILE_NAME} (and its signature) in the given directory, if any.
+     */
+    public static void deleteDigests2(File appdir) throws IOException {
+        for (String fileName : new String[] { DIGESTS2_FILE_NAME, DIGESTS2_FILE_NAME + DIGESTS_SIGNATURE_SUFFIX }) {
+            File file = new File(appdir, fileName);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the file in which digests computed with the given algorithm are stored.
+     */
+    public static String getDigestsFileName(DigestAlgorithm algorithm) {
+        return (algorithm == DigestAlgorithm.MD5) ? DIGESTS_FILE_NAME : DIGESTS2_FILE_NAME;
+    }
+
     private static  void writeFile(File file, String data) throws IOException {
         FileWriter writer = new FileWriter(file);
         try {
@@ -125,9 +228,37 @@ public final class DigestsUtil {
     }
 
     public static boolean validateResourceDigest(Resource resource, Digests digests, ProgressObserver obs) {
+        return validateResourceDigest(resource, resource.getLocalFile(), digests, false, obs);
+    }
+
+    /**
+     * Validates the given file, a new copy of the given resource that has yet to be moved into
+     * place, against the resource's digest.
+     */
+    public static boolean validateResourceDigest(Resource resource, File file, Digests digests) {
+        return validateResourceDigest(resource, file, digests, false, null);
+    }
+
+    /**
+     * Validates our copy of the given resource. Digests other than MD5 ones also record a (non
+     * cryptographic, but much faster) {@link DigestAlgorithm#XXH64} digest of each resource, which
+     * suffices to re-validate a copy that we once validated against the resource's cryptographic
+     * digest and whose file merely looks changed since (its size or modification time differs
+     * from the one recorded in the {@link ValidationIndex}). Any other copy (one that was patched,
+     * downloaded from a mirror or installed by other means) must match the cryptographic digest.
+     */
+    public static boolean validateLocalResourceDigest(Resource resource, Digests digests, ProgressObserver obs) {
+        boolean fast = digests.getFastDigest(resource) != null &&
+            resource.wasMarkedValid(digests.getResourceDigest(resource));
+        return validateResourceDigest(resource, resource.getLocalFile(), digests, fast, obs);
+    }
+
+    private static boolean validateResourceDigest(Resource resource, File file, Digests digests, boolean fast,
+                                                  ProgressObserver obs) {
         try {
-            String digest = computeResourceDigest(resource, obs);
-            String expected = digests.getResourceDigest(resource);
+            String expected = fast ? digests.getFastDigest(resource) : digests.getResourceDigest(resource);
+            DigestAlgorithm algorithm = fast ? Digests.FAST_ALGORITHM : digests.getAlgorithm();
+            String digest = computeFileDigest(resource, file, algorithm, digests.hasRawArchiveDigests(), obs);
             if (digest.equals(expected)) {
                 return true;
             }
@@ -146,20 +277,74 @@ public final class DigestsUtil {
     }
 
     public static String computeResourceDigest(Resource resource, ProgressObserver obs) throws IOException {
-        MessageDigest md = getMessageDigest();
+        return computeResourceDigest(resource, DigestAlgorithm.MD5, obs);
+    }
+
+    public static String computeResourceDigest(Resource resource, DigestAlgorithm algorithm, ProgressObserver obs)
+            throws IOException {
+        return computeResourceDigest(resource, algorithm, false, obs);
+    }
+
+    /**
+     * Computes the digest of the given resource with the given algorithm.
+     *
+     * @param rawArchive if {@code true}, an archive is digested like any other file, rather than
+     *                   entry by entry (see {@link Digests#hasRawArchiveDigests}).
+     */
+    public static String computeResourceDigest(Resource resource, DigestAlgorithm algorithm, boolean rawArchive,
+                                               ProgressObserver obs) throws IOException {
+        return computeFileDigest(resource, resource.getLocalFile(), algorithm, rawArchive, obs);
+    }
 
-        File local = resource.getLocalFile();
-        if (resource.isArchive()) {
-            updateZipFileDigest(md, new ZipFile(local), obs);
+    /**
+     * Computes the digest of the given file (which holds a copy of the given resource) as that of
+     * the resource.
+     */
+    private static String computeFileDigest(Resource resource, File file, DigestAlgorithm algorithm, boolean rawArchive,
+                                            ProgressObserver obs) throws IOException {
+        MessageDigest md = getMessageDigest(algorithm);
+
+        if (resource.isArchive() && !rawArchive) {
+            updateZipFileDigest(md, new ZipFile(file), obs);
         } else {
-            updateMessageDigest(md, new FileInputStream(local), local.length(), obs);
+            updateFileDigest(md, file, obs);
+        }
+
+        return StringUtil.hexlate(md.digest());
+    }
+
+    /**
+     * Returns a message digest with which the contents of the supplied resource can be digested
+     * as they are streamed in (while downloading, say) for comparison with its digest in the
+     * supplied digests, or <code>null</code> if the resource's digest is not computed over its raw
+     * contents (see {@link #isDigestedRaw}).
+     */
+    public static MessageDigest createStreamingDigest(Resource resource, Digests digests) {
+        if (!isDigestedRaw(resource, digests)) {
+            return null;
         }
+        return digests.getAlgorithm().createDigest();
+    }
+
+    /**
+     * Returns {@code true} if the digest of the given resource is computed over its raw contents,
+     * which is the case unless it is an archive and the given digests digest archives entry by
+     * entry.
+     */
+    public static boolean isDigestedRaw(Resource resource, Digests digests) {
+        return !resource.shouldUnpack() || digests.hasRawArchiveDigests();
+    }
 
+    /**
+     * Completes the supplied streaming digest (see {@link #createStreamingDigest}) and returns it
+     * in the form recorded in {@link Digests}.
+     */
+    public static String finishStreamingDigest(MessageDigest md) {
         return StringUtil.hexlate(md.digest());
     }
 
     public static String computeDigestsDigest(Digests digests, String version, ProgressObserver observer) throws IOException {
-        MessageDigest md = getMessageDigest();
+        MessageDigest md = getMessageDigest(digests.getAlgorithm());
         byte[] contents = (version + digests.getContents()).getBytes();
         updateMessageDigest(md, new ByteArrayInputStream(contents), contents.length, observer);
         return StringUtil.hexlate(md.digest());
@@ -185,6 +370,68 @@ public final class DigestsUtil {
         }
     }
 
+    /**
+     * Digests the contents of the given file, choosing how to read it by its size: small files are
+     * simply streamed in, larger ones are read into a direct buffer (saving a copy, and making far
+     * fewer system calls), and the largest are mapped into memory a window at a time. We don't map
+     * files on Windows, which won't let anyone modify or delete a file while it is mapped (and it
+     * stays mapped until the garbage collector gets around to its buffer).
+     */
+    static void updateFileDigest(MessageDigest md, File file, ProgressObserver obs) throws IOException {
+        long length = file.length();
+        if (length < DIRECT_THRESHOLD) {
+            updateMessageDigest(md, new FileInputStream(file), length, obs);
+            return;
+        }
+
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            if (length >= MAP_THRESHOLD && !RunAnywhere.isWindows()) {
+                updateMappedDigest(md, channel, length, obs);
+            } else {
+                updateDirectDigest(md, channel, length, obs);
+            }
+        } finally {
+            StreamUtil.close(channel);
+        }
+    }
+
+    /* for internal use & tests only */
+    static void updateDirectDigest(MessageDigest md, FileChannel channel, long length, ProgressObserver obs)
+            throws IOException {
+        ByteBuffer buffer = directBuffer.get();
+        buffer.clear();
+        long position = 0L;
+        int read;
+        while ((read = channel.read(buffer)) != -1) {
+            buffer.flip();
+            md.update(buffer);
+            buffer.clear();
+            position += read;
+            updateObserver(obs, position, length);
+        }
+    }
+
+    /* for internal use & tests only */
+    static void updateMappedDigest(MessageDigest md, FileChannel channel, long length, ProgressObserver obs)
+            throws IOException {
+        // the file may have changed length since we asked; we digest what's there when we map it
+        length = channel.size();
+        for (long position = 0L; position < length; ) {
+            long window = Math.min(MAP_WINDOW_SIZE, length - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+            // feed the window to the digest in slices, so that we can report progress as we go
+            while (buffer.hasRemaining()) {
+                int slice = Math.min(buffer.remaining(), DIRECT_BUFFER_SIZE);
+                buffer.limit(buffer.position() + slice);
+                md.update(buffer);
+                buffer.limit(buffer.capacity());
+                position += slice;
+                updateObserver(obs, position, length);
+            }
+        }
+    }
+
     /* for internal use & tests only */
     static void updateMessageDigest(MessageDigest md, InputStream in, long length, ProgressObserver obs) throws IOException {
         try {
@@ -209,16 +456,20 @@ public final class DigestsUtil {
 
      /* for internal use & tests only */
     static MessageDigest getMessageDigest () {
-        if (md == null) {
-            try {
-                md = MessageDigest.getInstance(MESSAGEDIGEST_ALGORITHM);
-            } catch (NoSuchAlgorithmException nsae) {
-                throw new RuntimeException("JVM does not support MD5. Gurp!");
-            }
+        return getMessageDigest(DigestAlgorithm.MD5);
+    }
+
+    /* for internal use & tests only */
+    static MessageDigest getMessageDigest (DigestAlgorithm algorithm) {
+        Map<DigestAlgorithm, MessageDigest> digests = md.get();
+        MessageDigest digest = digests.get(algorithm);
+        if (digest == null) {
+            digest = algorithm.createDigest();
+            digests.put(algorithm, digest);
         }
 
-        md.reset();
-        return md;
+        digest.reset();
+        return digest;
     }
 
     private DigestsUtil() { /* no instances allowed */ }
@@ -17,7 +17,7 @@ public class MetaProgressObserver implements ProgressObserver
         _totalSize = totalSize;
     }
 
-    public void startElement (long elementSize)
+    public synchronized void startElement (long elementSize)
     {
         // add the previous size
         _accum += (_elementSize * 100);
@@ -26,13 +26,44 @@ public class MetaProgressObserver implements ProgressObserver
     }
 
     // documentation inherited from interface
-    public void progress (int percent)
+    public synchronized void progress (int percent)
     {
         if (_totalSize > 0) {
             _target.progress((int)((_accum + (percent * _elementSize)) / _totalSize));
         }
     }
 
+    /**
+     * Returns an observer for an element that is processed concurrently with others (rather than
+     * one after another via {@link #startElement}). The progress of all such elements is summed,
+     * and our target is notified (on whichever thread reports progress) whenever the overall
+     * percentage changes.
+     */
+    public ProgressObserver startConcurrentElement (final long elementSize)
+    {
+        return new ProgressObserver() {
+            public void progress (int percent) {
+                addProgress((percent - _percent) * elementSize);
+                _percent = percent;
+            }
+            protected int _percent;
+        };
+    }
+
+    /**
+     * Adds to the progress accumulated by our concurrently processed elements.
+     */
+    protected synchronized void addProgress (long amount)
+    {
+        _accum += amount;
+        int percent = (_totalSize > 0) ? (int)(_accum / _totalSize) : 0;
+        if (_totalSize > 0 && percent != _lastPercent) {
+            _lastPercent = percent;
+            _target.progress(percent);
+        }
+    }
+
     protected ProgressObserver _target;
     protected long _totalSize, _accum, _elementSize;
+    protected int _lastPercent = -1;
 }
@@ -0,0 +1,246 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import com.samskivert.io.StreamUtil;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Properties;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Remembers the validators ({@code ETag} and {@code Last-Modified}) the server supplied with each of
+ * our metadata files (version.txt, getdown.txt, digests.txt) so that we can download them
+ * conditionally: if our copy of a file is still current, the server answers with a bodiless
+ * {@code 304 Not Modified} rather than sending the whole file again.
+ *
+ * A validator only vouches for the exact bytes the server sent along with it, so we also note the
+ * size and modification time of the local copy and forget the validators if that copy changes.
+ */
+public final class MetadataCache {
+    /* for internal use & tests only */
+    static final String CACHE_FILE_NAME = "metadata.dat";
+
+    public MetadataCache(File appdir) {
+        cacheFile = new File(appdir, CACHE_FILE_NAME);
+        if (cacheFile.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(cacheFile);
+                entries.load(in);
+            } catch (IOException e) {
+                log.info("Unable to read metadata cache " + cacheFile + ": " + e.getMessage());
+                entries.clear();
+            } finally {
+                StreamUtil.close(in);
+            }
+        }
+    }
+
+    /**
+     * Downloads the given URL into the target file, unless the server reports that {@code current},
+     * our local copy of a previous download of that URL, is unchanged. The target may be
+     * {@code current} itself, or a temporary file which the caller moves into place once it is
+     * satisfied with it.
+     *
+     * @return {@code true} if the file was downloaded, {@code false} if {@code current} is up to date
+     *         (in which case the target is left untouched).
+     * @throws FileNotFoundException if the server responded with a client error (4xx): hosts that
+     *         don't have a file answer with 403 as often as with 404.
+     */
+    public boolean download(URL url, File target, File current) throws IOException {
+        String key = url.toString();
+        URLConnection conn = ConnectionUtil.open(url);
+        boolean conditional = configure(conn, key, current);
+        // our metadata files are text and compress very well
+        ConnectionUtil.acceptCompressed(conn);
+
+        if (isNotModified(conn)) {
+            if (!conditional) {
+                throw new IOException("Unexpected 'not modified' response for " + url);
+            }
+            log.info("Metadata unchanged, not downloading", "url", url);
+            return false;
+        }
+        if (conn instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection) conn).getResponseCode();
+            if (code >= 400 && code < 500) {
+                throw new FileNotFoundException(url + " (" + code + ")");
+            }
+        }
+
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = ConnectionUtil.getInputStream(conn);
+            out = new FileOutputStream(target);
+            StreamUtil.copy(in, out);
+        } finally {
+            StreamUtil.close(in);
+            StreamUtil.close(out);
+        }
+
+        remember(conn, key, target, null);
+        return true;
+    }
+
+    /**
+     * Returns the first line of the (small, text) file at the given URL, reusing the line we read
+     * last time if the server reports that the file is unchanged.
+     */
+    public String readLine(URL url) throws IOException {
+        String key = url.toString();
+        String cached = entries.getProperty(key + LINE);
+        URLConnection conn = ConnectionUtil.open(url);
+        if (cached != null) {
+            configure(conn, key, null);
+        }
+
+        if (isNotModified(conn)) {
+            if (cached == null) {
+                throw new IOException("Unexpected 'not modified' response for " + url);
+            }
+            return cached;
+        }
+
+        InputStream in = conn.getInputStream();
+        String line;
+        try {
+            line = new BufferedReader(new InputStreamReader(in)).readLine();
+        } finally {
+            in.close();
+        }
+
+        remember(conn, key, null, line);
+        return line;
+    }
+
+    /**
+     * Forgets the validators of the given URL, so that the file is downloaded in full next time
+     * (because the copy we downloaded could not be put in place, say).
+     */
+    public void forget(URL url) {
+        String key = url.toString();
+        for (String suffix : SUFFIXES) {
+            entries.remove(key + suffix);
+        }
+        store();
+    }
+
+    /**
+     * Adds the conditional request headers for the given URL to the supplied connection, if we know
+     * its validators and our copy (if any) is the one they describe.
+     *
+     * @return {@code true} if the request was made conditional.
+     */
+    private boolean configure(URLConnection conn, String key, File current) {
+        if (!(conn instanceof HttpURLConnection)) {
+            return false;
+        }
+        String etag = entries.getProperty(key + ETAG);
+        String lastModified = entries.getProperty(key + LAST_MODIFIED);
+        if (etag == null && lastModified == null) {
+            return false;
+        }
+        if (current != null && !describes(key, current)) {
+            return false;
+        }
+
+        if (etag != null) {
+            conn.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            conn.setRequestProperty("If-Modified-Since", lastModified);
+        }
+        return true;
+    }
+
+    /**
+     * Returns {@code true} if the given file is the one we noted when recording the validators for
+     * the given URL.
+     */
+    private boolean describes(String key, File file) {
+        return file.exists() &&
+               String.valueOf(file.length()).equals(entries.getProperty(key + LENGTH)) &&
+               String.valueOf(file.lastModified()).equals(entries.getProperty(key + MODIFIED));
+    }
+
+    private static boolean isNotModified(URLConnection conn) throws IOException {
+        return (conn instanceof HttpURLConnection) &&
+               ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * Records the validators the server supplied with its response for the given URL, along with
+     * the file or line we made of that response.
+     */
+    private void remember(URLConnection conn, String key, File file, String line) {
+        if (!(conn instanceof HttpURLConnection)) {
+            return;
+        }
+        for (String suffix : SUFFIXES) {
+            entries.remove(key + suffix);
+        }
+
+        String etag = conn.getHeaderField("ETag");
+        String lastModified = conn.getHeaderField("Last-Modified");
+        if (etag != null || lastModified != null) {
+            if (etag != null) {
+                entries.setProperty(key + ETAG, etag);
+            }
+            if (lastModified != null) {
+                entries.setProperty(key + LAST_MODIFIED, lastModified);
+            }
+            if (file != null) {
+                entries.setProperty(key + LENGTH, String.valueOf(file.length()));
+                entries.setProperty(key + MODIFIED, String.valueOf(file.lastModified()));
+            }
+            if (line != null) {
+                entries.setProperty(key + LINE, line);
+            }
+        }
+
+        store();
+    }
+
+    /**
+     * Writes our entries to a temporary file which then replaces our cache file, so that a run
+     * interrupted while writing doesn't leave us with a truncated cache.
+     */
+    private void store() {
+        File temp = new File(cacheFile.getPath() + "_new");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            entries.store(out, "Getdown metadata validators");
+        } catch (IOException e) {
+            log.warning("Unable to write metadata cache " + temp + ": " + e.getMessage());
+            StreamUtil.close(out);
+            temp.delete();
+            return;
+        } finally {
+            StreamUtil.close(out);
+        }
+        if (!FileUtil.renameTo(temp, cacheFile)) {
+            log.warning("Unable to move " + temp + " to " + cacheFile);
+            temp.delete();
+        }
+    }
+
+    private static final String ETAG = ".etag";
+    private static final String LAST_MODIFIED = ".last_modified";
+    private static final String LENGTH = ".length";
+    private static final String MODIFIED = ".modified";
+    private static final String LINE = ".line";
+    private static final String[] SUFFIXES = { ETAG, LAST_MODIFIED, LENGTH, MODIFIED, LINE };
+
+    private final File cacheFile;
+    private final Properties entries = new Properties();
+}
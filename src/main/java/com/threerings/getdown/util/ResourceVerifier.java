@@ -0,0 +1,134 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Verifies our copies of resources against their digests (the fast ones, for copies that we
+ * validated before; see {@link DigestsUtil#validateLocalResourceDigest}) using several threads
+ * at once, so that verifying a large installation is limited by the speed of the disk rather
+ * than that of a single core. The largest resources are verified first, so that the threads all finish at about
+ * the same time. (Each thread digests with its own {@link java.security.MessageDigest}, courtesy
+ * of {@link DigestsUtil}.)
+ */
+public class ResourceVerifier
+{
+    /**
+     * Returns the default number of threads with which to verify resources: one per core.
+     */
+    public static int getDefaultThreads ()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Creates a verifier that checks resources against the supplied digests using (at most) the
+     * specified number of threads.
+     */
+    public ResourceVerifier (Digests digests, int threads)
+    {
+        _digests = digests;
+        _threads = Math.max(1, threads);
+    }
+
+    /**
+     * Verifies the supplied resources, reporting progress to the supplied observer as it goes
+     * (each resource accounting for its size).
+     *
+     * @return the resources that matched their digests.
+     */
+    public Set<Resource> verify (Collection<Resource> rsrcs, MetaProgressObserver obs)
+        throws InterruptedException
+    {
+        List<Resource> queue = new ArrayList<Resource>(rsrcs);
+        Collections.sort(queue, new Comparator<Resource>() {
+            public int compare (Resource r1, Resource r2) {
+                long s1 = r1.getLocalFile().length(), s2 = r2.getLocalFile().length();
+                return (s1 < s2) ? 1 : ((s1 > s2) ? -1 : 0);
+            }
+        });
+
+        final Set<Resource> verified = Collections.synchronizedSet(new HashSet<Resource>());
+        int threads = Math.min(_threads, queue.size());
+        if (threads <= 1) {
+            for (Resource rsrc : queue) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("m.applet_stopped");
+                }
+                verify(rsrc, obs, verified);
+            }
+            return verified;
+        }
+
+        ExecutorService verifiers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+                Thread thread = new Thread(r, "Verifier-" + (++_count));
+                thread.setDaemon(true);
+                return thread;
+            }
+            protected int _count;
+        });
+        try {
+            List<Future<Void>> checks = new ArrayList<Future<Void>>();
+            for (final Resource rsrc : queue) {
+                final MetaProgressObserver fobs = obs;
+                checks.add(verifiers.submit(new Callable<Void>() {
+                    public Void call () {
+                        verify(rsrc, fobs, verified);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> check : checks) {
+                try {
+                    check.get();
+                } catch (ExecutionException ee) {
+                    // verify() logs and swallows the failures of individual resources
+                    throw new RuntimeException("Verifier failed", ee.getCause());
+                }
+            }
+        } catch (InterruptedException ie) {
+            throw new InterruptedException("m.applet_stopped");
+        } finally {
+            verifiers.shutdownNow();
+        }
+        return verified;
+    }
+
+    /**
+     * Verifies a single resource, adding it to the supplied set if it matches its digest.
+     */
+    protected void verify (Resource rsrc, MetaProgressObserver obs, Set<Resource> verified)
+    {
+        ProgressObserver robs = obs.startConcurrentElement(rsrc.getLocalFile().length());
+        try {
+            if (DigestsUtil.validateLocalResourceDigest(rsrc, _digests, robs)) {
+                verified.add(rsrc);
+            }
+        } finally {
+            robs.progress(100);
+        }
+    }
+
+    protected Digests _digests;
+    protected int _threads;
+}
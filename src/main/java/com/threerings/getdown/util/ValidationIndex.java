@@ -0,0 +1,256 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import com.samskivert.io.StreamUtil;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.threerings.getdown.Log.log;
+
+/**
+ * Records which resources in an application directory have been validated (verified against
+ * their digests, and unpacked if need be), so that we needn't validate them again. For each such
+ * resource we note the size and modification time its file had when it was validated (and the
+ * digest it was validated against, if known), and consider it valid only as long as its file
+ * still has that size and modification time.
+ *
+ * The index is kept in a single file in the application directory, which is read once. Resources
+ * validated since are appended to it (a line per resource, the last line for a resource winning),
+ * so that a crash loses at most the line being written, which merely means that the resource is
+ * validated again. Invalidating resources rewrites the file (to a temporary file which is then
+ * moved into place), as does reading it once it has accumulated many superseded lines. The
+ * "&lt;file&gt;v" marker files that older versions created for validated resources are deleted
+ * as the resources are recorded in the index (see {@link #deleteLegacyMarker}).
+ */
+public final class ValidationIndex {
+    /* for internal use & tests only */
+    static final String INDEX_FILE_NAME = "validation.idx";
+
+    /**
+     * Returns the validation index of the given application directory.
+     */
+    public static ValidationIndex get(File appdir) {
+        String key = appdir.getAbsolutePath();
+        synchronized (indices) {
+            ValidationIndex index = indices.get(key);
+            if (index == null) {
+                indices.put(key, index = new ValidationIndex(appdir));
+            }
+            return index;
+        }
+    }
+
+    /* for internal use & tests only */
+    ValidationIndex(File appdir) {
+        indexFile = new File(appdir, INDEX_FILE_NAME);
+    }
+
+    /**
+     * Returns {@code true} if the resource with the given path was validated and its file (the
+     * given one) has not changed since.
+     *
+     * @param digest the digest the resource should have, or {@code null} if any will do.
+     */
+    public synchronized boolean isValid(String path, File file, String digest) {
+        Entry entry = getEntries().get(path);
+        if (entry == null || (digest != null && entry.digest != null && !digest.equals(entry.digest))) {
+            return false;
+        }
+        // a missing file has neither size nor modification time, so it can't match
+        return file.lastModified() == entry.modified && file.length() == entry.size;
+    }
+
+    /**
+     * Returns {@code true} if the resource with the given path was validated against the given
+     * digest, whether or not its file has changed since.
+     */
+    public synchronized boolean wasValidated(String path, String digest) {
+        Entry entry = getEntries().get(path);
+        return entry != null && digest != null && digest.equals(entry.digest);
+    }
+
+    /**
+     * Notes that the resource with the given path (whose file is the given one) is valid.
+     *
+     * @param digest the digest the resource was validated against, or {@code null} if unknown.
+     */
+    public synchronized void markValid(String path, File file, String digest) throws IOException {
+        Entry entry = new Entry(file.length(), file.lastModified(), digest);
+        getEntries().put(path, entry);
+        append(VALID + SEPARATOR + entry.size + SEPARATOR + entry.modified + SEPARATOR +
+               (digest == null ? NO_DIGEST : digest) + SEPARATOR + path);
+        // the index now speaks for this resource
+        deleteLegacyMarker(file);
+    }
+
+    /**
+     * Deletes the marker file with which older versions noted that the given file was validated,
+     * if there is one. Such markers are no longer read, so they'd otherwise be left lying around.
+     */
+    public static void deleteLegacyMarker(File file) {
+        File marker = new File(file.getAbsolutePath() + LEGACY_MARKER_SUFFIX);
+        if (marker.exists() && !marker.delete()) {
+            log.warning("Failed to delete legacy marker file " + marker);
+        }
+    }
+
+    /**
+     * Notes that the resource with the given path is no longer known to be valid.
+     */
+    public synchronized void clear(String path) {
+        if (getEntries().remove(path) != null) {
+            try {
+                append(CLEARED + SEPARATOR + path);
+            } catch (IOException e) {
+                // make sure the resource isn't considered valid once we're restarted
+                log.warning("Unable to update " + indexFile + ": " + e.getMessage());
+                rewrite();
+            }
+        }
+    }
+
+    /**
+     * Notes that none of the resources with the given paths is known to be valid any longer.
+     */
+    public synchronized void clear(Collection<String> paths) {
+        if (getEntries().keySet().removeAll(paths)) {
+            rewrite();
+        }
+    }
+
+    private Map<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new HashMap<String, Entry>();
+            if (indexFile.exists() && load() > 2 * entries.size() + MIN_COMPACTED_LINES) {
+                rewrite();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads our index file.
+     *
+     * @return the number of lines read.
+     */
+    private int load() {
+        int lines = 0;
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            if (!HEADER.equals(in.readLine())) {
+                log.warning("Ignoring unrecognized validation index " + indexFile);
+                return 0;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines++;
+                String[] fields = line.split(SEPARATOR, 5);
+                try {
+                    if (fields[0].equals(VALID) && fields.length == 5) {
+                        String digest = fields[3].equals(NO_DIGEST) ? null : fields[3];
+                        entries.put(fields[4], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), digest));
+                    } else if (fields[0].equals(CLEARED) && fields.length == 2) {
+                        entries.remove(fields[1]);
+                    }
+                    // anything else is the remains of a line that was being written when we died
+                } catch (NumberFormatException e) {
+                    // likewise
+                }
+            }
+        } catch (IOException e) {
+            // we'll simply validate whatever we've lost track of again
+            log.warning("Unable to read " + indexFile + ": " + e.getMessage());
+        } finally {
+            StreamUtil.close(in);
+        }
+        return lines;
+    }
+
+    private void append(String line) throws IOException {
+        boolean created = !indexFile.exists();
+        Writer out = new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8");
+        try {
+            if (created) {
+                out.write(HEADER + "\n");
+            }
+            out.write(line + "\n");
+        } finally {
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * Replaces our index file with one that contains just our current entries.
+     */
+    private void rewrite() {
+        File temp = new File(indexFile.getPath() + "_new");
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+            out.write(HEADER + "\n");
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry e = entry.getValue();
+                out.write(VALID + SEPARATOR + e.size + SEPARATOR + e.modified + SEPARATOR +
+                          (e.digest == null ? NO_DIGEST : e.digest) + SEPARATOR + entry.getKey() + "\n");
+            }
+        } catch (IOException e) {
+            log.warning("Unable to write " + temp + ": " + e.getMessage());
+            StreamUtil.close(out);
+            discard();
+            return;
+        } finally {
+            StreamUtil.close(out);
+        }
+        if (!FileUtil.renameTo(temp, indexFile)) {
+            log.warning("Unable to move " + temp + " to " + indexFile);
+            discard();
+        }
+    }
+
+    /**
+     * Deletes our index file (when we fail to update it), so that we don't trust stale entries.
+     */
+    private void discard() {
+        if (indexFile.exists() && !indexFile.delete()) {
+            log.warning("Unable to delete " + indexFile + "; resources may not be revalidated!");
+        }
+        entries.clear();
+    }
+
+    private static class Entry {
+        public final long size;
+        public final long modified;
+        public final String digest;
+
+        public Entry(long size, long modified, String digest) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+
+    private static final String HEADER = "# getdown validation index 1";
+    private static final String SEPARATOR = "\t";
+    private static final String VALID = "v";
+    private static final String CLEARED = "x";
+    private static final String NO_DIGEST = "-";
+
+    /** Appended to a file's name to name its legacy "validated" marker file. */
+    private static final String LEGACY_MARKER_SUFFIX = "v";
+
+    /** The number of superseded lines we tolerate in the index before rewriting it. */
+    private static final int MIN_COMPACTED_LINES = 100;
+
+    private static final Map<String, ValidationIndex> indices = new HashMap<String, ValidationIndex>();
+
+    private final File indexFile;
+    private Map<String, Entry> entries;
+}
@@ -100,7 +100,7 @@ public final class VersionUtil {
         URL versionURL = new URL(baseUrl, baseUrl.getPath() + "/" + VERSION_FILE_NAME);
 
         try {
-            String latestVersion = readVersion(versionURL);
+            String latestVersion = readLatestVersion(appdir, versionURL);
             if (compareVersions(latestVersion, version) > 0) {
                 setLocalVersion(appdir, latestVersion);
                 version = latestVersion;
@@ -146,6 +146,11 @@ public final class VersionUtil {
     }
 
 
+    private static String readLatestVersion(File appdir, URL url) throws IOException {
+        String version = new MetadataCache(appdir).readLine(url);
+        return (isValidVersion(version)) ? version : NO_VERSION;
+    }
+
     private static String readVersion(URL url) throws IOException {
         URLConnection conn = ConnectionUtil.open(url);
         InputStream in = conn.getInputStream();
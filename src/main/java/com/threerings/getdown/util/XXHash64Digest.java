@@ -0,0 +1,221 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ * A pure Java implementation of the 64-bit xxHash (with a seed of zero), exposed as a {@link
+ * MessageDigest} so that it can be used wherever we digest resources. It is several times faster
+ * than MD5, let alone SHA-256, but it is <em>not</em> cryptographic: it is fine for noticing that a
+ * file changed by accident, but anyone who cares to can craft a file with a given hash. The digest
+ * is the hash in its canonical (big-endian) form.
+ */
+public class XXHash64Digest extends MessageDigest
+{
+    public XXHash64Digest ()
+    {
+        super(DigestAlgorithm.XXH64.getName());
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength ()
+    {
+        return 8;
+    }
+
+    @Override
+    protected void engineUpdate (byte input)
+    {
+        _buffer[_buffered++] = input;
+        _total++;
+        if (_buffered == STRIPE_SIZE) {
+            consume(_buffer, 0);
+            _buffered = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate (byte[] input, int offset, int length)
+    {
+        _total += length;
+        int end = offset + length;
+
+        // top up any partial stripe left over from the last update
+        if (_buffered > 0) {
+            int count = Math.min(STRIPE_SIZE - _buffered, length);
+            System.arraycopy(input, offset, _buffer, _buffered, count);
+            _buffered += count;
+            offset += count;
+            if (_buffered < STRIPE_SIZE) {
+                return;
+            }
+            consume(_buffer, 0);
+            _buffered = 0;
+        }
+
+        // then consume whole stripes straight from the input
+        long v1 = _v1, v2 = _v2, v3 = _v3, v4 = _v4;
+        for (; offset + STRIPE_SIZE <= end; offset += STRIPE_SIZE) {
+            v1 = round(v1, readLong(input, offset));
+            v2 = round(v2, readLong(input, offset + 8));
+            v3 = round(v3, readLong(input, offset + 16));
+            v4 = round(v4, readLong(input, offset + 24));
+        }
+        _v1 = v1; _v2 = v2; _v3 = v3; _v4 = v4;
+
+        // and keep whatever is left for next time
+        _buffered = end - offset;
+        System.arraycopy(input, offset, _buffer, 0, _buffered);
+    }
+
+    @Override
+    protected void engineUpdate (ByteBuffer input)
+    {
+        if (input.hasArray()) {
+            super.engineUpdate(input);
+            return;
+        }
+
+        // read direct (or mapped) buffers a long at a time, rather than copying them to the heap
+        ByteBuffer in = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        while (_buffered > 0 && in.hasRemaining()) {
+            engineUpdate(in.get());
+        }
+        long v1 = _v1, v2 = _v2, v3 = _v3, v4 = _v4;
+        int stripes = in.remaining() / STRIPE_SIZE;
+        for (int ii = 0; ii < stripes; ii++) {
+            v1 = round(v1, in.getLong());
+            v2 = round(v2, in.getLong());
+            v3 = round(v3, in.getLong());
+            v4 = round(v4, in.getLong());
+        }
+        _v1 = v1; _v2 = v2; _v3 = v3; _v4 = v4;
+        _total += (long)stripes * STRIPE_SIZE;
+
+        _buffered = in.remaining();
+        _total += _buffered;
+        in.get(_buffer, 0, _buffered);
+        input.position(input.limit());
+    }
+
+    @Override
+    protected byte[] engineDigest ()
+    {
+        long hash;
+        if (_total >= STRIPE_SIZE) {
+            hash = Long.rotateLeft(_v1, 1) + Long.rotateLeft(_v2, 7) +
+                Long.rotateLeft(_v3, 12) + Long.rotateLeft(_v4, 18);
+            hash = mergeRound(hash, _v1);
+            hash = mergeRound(hash, _v2);
+            hash = mergeRound(hash, _v3);
+            hash = mergeRound(hash, _v4);
+        } else {
+            hash = PRIME5;
+        }
+        hash += _total;
+
+        int offset = 0;
+        for (; offset + 8 <= _buffered; offset += 8) {
+            hash ^= round(0, readLong(_buffer, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (offset + 4 <= _buffered) {
+            hash ^= (readInt(_buffer, offset) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            offset += 4;
+        }
+        for (; offset < _buffered; offset++) {
+            hash ^= (_buffer[offset] & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+
+        byte[] digest = new byte[8];
+        for (int ii = 7; ii >= 0; ii--) {
+            digest[ii] = (byte)hash;
+            hash >>>= 8;
+        }
+        engineReset();
+        return digest;
+    }
+
+    @Override
+    protected void engineReset ()
+    {
+        _v1 = PRIME1 + PRIME2;
+        _v2 = PRIME2;
+        _v3 = 0L;
+        _v4 = -PRIME1;
+        _total = 0L;
+        _buffered = 0;
+    }
+
+    /**
+     * Consumes the stripe that starts at the supplied offset of the supplied data.
+     */
+    protected void consume (byte[] data, int offset)
+    {
+        _v1 = round(_v1, readLong(data, offset));
+        _v2 = round(_v2, readLong(data, offset + 8));
+        _v3 = round(_v3, readLong(data, offset + 16));
+        _v4 = round(_v4, readLong(data, offset + 24));
+    }
+
+    protected static long round (long acc, long input)
+    {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    protected static long mergeRound (long acc, long value)
+    {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    protected static long readLong (byte[] data, int offset)
+    {
+        return (data[offset] & 0xFFL) | (data[offset+1] & 0xFFL) << 8 |
+            (data[offset+2] & 0xFFL) << 16 | (data[offset+3] & 0xFFL) << 24 |
+            (data[offset+4] & 0xFFL) << 32 | (data[offset+5] & 0xFFL) << 40 |
+            (data[offset+6] & 0xFFL) << 48 | (data[offset+7] & 0xFFL) << 56;
+    }
+
+    protected static int readInt (byte[] data, int offset)
+    {
+        return (data[offset] & 0xFF) | (data[offset+1] & 0xFF) << 8 |
+            (data[offset+2] & 0xFF) << 16 | (data[offset+3] & 0xFF) << 24;
+    }
+
+    /** Our four accumulators. */
+    protected long _v1, _v2, _v3, _v4;
+
+    /** The number of bytes digested so far. */
+    protected long _total;
+
+    /** Input that doesn't yet make up a whole stripe. */
+    protected byte[] _buffer = new byte[STRIPE_SIZE];
+    protected int _buffered;
+
+    /** The input is consumed in stripes of this many bytes (8 for each accumulator). */
+    protected static final int STRIPE_SIZE = 32;
+
+    protected static final long PRIME1 = 0x9E3779B185EBCA87L;
+    protected static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    protected static final long PRIME3 = 0x165667B19E3779F9L;
+    protected static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    protected static final long PRIME5 = 0x27D4EB2F165667C5L;
+}
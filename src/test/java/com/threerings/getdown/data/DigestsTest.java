@@ -1,12 +1,14 @@
 package com.threerings.getdown.data;
 
 import com.threerings.getdown.DigestsTestHelper;
+import com.threerings.getdown.util.DigestAlgorithm;
 import com.threerings.getdown.util.DigestsUtil;
 import com.threerings.getdown.util.VersionUtil;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Properties;
 
 import static com.threerings.getdown.DigestsTestHelper.createResource;
 import static org.junit.Assert.*;
@@ -34,4 +36,48 @@ public class DigestsTest {
         assertEquals(DigestsUtil.computeDigestsDigest(d, VersionUtil.NO_VERSION, null), d.getMetaDigest());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testSizes() throws IOException {
+        Digests d = DigestsTestHelper.createDigests(r1, r2);
+
+        assertEquals(1024L, d.getResourceSize(r1));
+        assertEquals(1024L, d.getResourceSize(r2));
+        assertEquals(-1L, d.getResourceSize(r3));
+    }
+
+    @Test
+    public void testCreateWithAlgorithm() throws IOException {
+        ResourceGroup rg = new ResourceGroup();
+        rg.addResources(r1, r2);
+        Digests d = Digests.create(rg, VersionUtil.NO_VERSION,
+                                   new Digests.Options().algorithm(DigestAlgorithm.SHA256));
+
+        assertEquals(DigestAlgorithm.SHA256, d.getAlgorithm());
+        assertEquals(DigestsUtil.computeResourceDigest(r1, DigestAlgorithm.SHA256, null), d.getResourceDigest(r1));
+        assertEquals(64, d.getResourceDigest(r1).length());
+        assertEquals(DigestsUtil.computeResourceDigest(r2, Digests.FAST_ALGORITHM, null), d.getFastDigest(r2));
+        assertTrue(d.getContents().startsWith(".algorithm = SHA-256\n.archives = raw\n"));
+        assertTrue(d.hasRawArchiveDigests());
+        assertEquals(DigestsUtil.computeDigestsDigest(d, VersionUtil.NO_VERSION, null), d.getMetaDigest());
+
+        Digests md5 = DigestsTestHelper.createDigests(r1, r2);
+        assertEquals(DigestAlgorithm.MD5, md5.getAlgorithm());
+        assertNull(md5.getFastDigest(r1));
+        assertFalse(md5.getContents().contains(".algorithm"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateRejectsNonCryptographicAlgorithm() throws IOException {
+        ResourceGroup rg = new ResourceGroup();
+        rg.addResources(r1);
+        Digests.create(rg, VersionUtil.NO_VERSION, new Digests.Options().algorithm(DigestAlgorithm.XXH64));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadRejectsNonCryptographicAlgorithm() throws IOException {
+        Properties contents = new Properties();
+        contents.setProperty(".algorithm", "XXH64");
+        contents.setProperty(r1.getPath(), "0123456789abcdef");
+        Digests.create(contents, VersionUtil.NO_VERSION);
+    }
+}
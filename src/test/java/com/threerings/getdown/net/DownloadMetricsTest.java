@@ -0,0 +1,79 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.threerings.getdown.FileTestHelper;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.data.ResourceType;
+import com.threerings.getdown.data.Step;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link DownloadMetrics}.
+ */
+public class DownloadMetricsTest
+{
+    @Test public void testSummary () throws IOException
+    {
+        DownloadMetrics metrics = new DownloadMetrics();
+        metrics.enterStep(Step.VERIFY_METADATA);
+        metrics.enterStep(Step.DOWNLOAD);
+        Resource rsrc = createResource("code/\"quoted\".jar");
+        metrics.noteRetry(rsrc);
+        metrics.noteTransfer(rsrc, 2000000L, 3000000L, 1000L, 500000000L);
+        metrics.noteVerification(rsrc, 4000000L);
+        metrics.noteCached(createResource("media/intro.ogg"));
+        metrics.finish();
+
+        assertNull(metrics.getCurrentStep());
+        assertEquals(2, metrics.getResourceCount());
+        assertEquals(1000L, metrics.getBytesDownloaded());
+        assertEquals(1, metrics.getRetries());
+
+        String summary = metrics.getSummary();
+        assertTrue(summary, summary.contains("\"VERIFY_METADATA\": "));
+        assertTrue(summary, summary.contains("\"DOWNLOAD\": "));
+        assertTrue(summary, summary.contains("\"code/\\\"quoted\\\".jar\""));
+        assertTrue(summary, summary.contains("\"connect_ms\": 2, \"response_ms\": 3, " +
+                                             "\"transfer_ms\": 500, \"bytes_per_sec\": 2000, " +
+                                             "\"retries\": 1, \"verify_ms\": 4}"));
+        assertTrue(summary, summary.contains("\"cached\": true"));
+    }
+
+    @Test public void testWriteSummary () throws IOException
+    {
+        DownloadMetrics metrics = new DownloadMetrics();
+        metrics.noteCached(createResource("media/intro.ogg"));
+        metrics.finish();
+        File file = FileTestHelper.createTempFile(DownloadMetrics.SUMMARY_FILE);
+        // a previous (longer) summary is replaced in full
+        HTTPDownloaderTest.write(file, new byte[16 * 1024]);
+
+        metrics.writeSummary(file);
+        assertEquals(metrics.getSummary(),
+                     new String(HTTPDownloaderTest.read(file), "UTF-8"));
+        assertFalse(new File(file.getPath() + "_new").exists());
+    }
+
+    @Test public void testRegister ()
+    {
+        DownloadMetrics metrics = new DownloadMetrics();
+        metrics.register();
+        // registering another set of metrics replaces the first
+        new DownloadMetrics().register();
+    }
+
+    protected static Resource createResource (String path) throws IOException
+    {
+        File appdir = FileTestHelper.getTempDirectory();
+        return Resource.create(ResourceType.RESOURCE_FILE, appdir, appdir.toURI().toURL(), path);
+    }
+}
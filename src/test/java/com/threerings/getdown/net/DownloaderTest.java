@@ -0,0 +1,340 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threerings.getdown.DigestsTestHelper;
+import com.threerings.getdown.FileTestHelper;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.data.ResourceType;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link Downloader}.
+ */
+public class DownloaderTest
+{
+    @Test public void testConcurrentDownload () throws IOException
+    {
+        List<Resource> rsrcs = createResources(12);
+        RecordingObserver obs = new RecordingObserver();
+        FakeDownloader dl = new FakeDownloader(rsrcs, obs);
+        dl.setMaxConcurrentDownloads(4);
+
+        assertTrue(dl.download());
+        assertEquals(rsrcs.size(), dl.downloaded.size());
+        assertTrue(dl.maxActive.get() > 1);
+        assertTrue(dl.maxActive.get() <= 4);
+        // the observer must only ever be called on the thread that called download()
+        assertFalse(obs.wrongThread);
+        assertEquals(Integer.valueOf(100), obs.percents.get(obs.percents.size()-1));
+        assertEquals(1, Collections.frequency(obs.percents, 100));
+        assertNull(obs.failure);
+    }
+
+    @Test public void testLargestFirst () throws IOException
+    {
+        List<Resource> rsrcs = createResources(5);
+        FakeDownloader dl = new FakeDownloader(rsrcs, null);
+        dl.setMaxConcurrentDownloads(1);
+
+        assertTrue(dl.download());
+        for (int ii = 1; ii < dl.downloaded.size(); ii++) {
+            assertTrue(dl.size(dl.downloaded.get(ii-1)) >= dl.size(dl.downloaded.get(ii)));
+        }
+    }
+
+    @Test public void testFailureReported () throws IOException
+    {
+        List<Resource> rsrcs = createResources(8);
+        RecordingObserver obs = new RecordingObserver();
+        FakeDownloader dl = new FakeDownloader(rsrcs, obs);
+        dl.failing = rsrcs.get(3);
+        dl.setMaxConcurrentDownloads(3);
+
+        assertTrue(dl.download());
+        assertEquals(rsrcs.get(3), obs.failed);
+        assertNotNull(obs.failure);
+        assertFalse(obs.wrongThread);
+        // the resource was retried before we gave up on it
+        assertEquals(Downloader.DEFAULT_MAX_ATTEMPTS, dl.failures.get());
+    }
+
+    @Test public void testTransientFailureRetried () throws IOException
+    {
+        List<Resource> rsrcs = createResources(8);
+        RecordingObserver obs = new RecordingObserver();
+        FakeDownloader dl = new FakeDownloader(rsrcs, obs);
+        dl.failing = rsrcs.get(3);
+        dl.failCount = 2;
+        dl.setMaxConcurrentDownloads(3);
+
+        assertTrue(dl.download());
+        assertNull(obs.failure);
+        assertEquals(rsrcs.size(), dl.downloaded.size());
+        assertEquals(Integer.valueOf(100), obs.percents.get(obs.percents.size()-1));
+    }
+
+    @Test public void testRetryBudget () throws IOException
+    {
+        List<Resource> rsrcs = createResources(4);
+        RecordingObserver obs = new RecordingObserver();
+        FakeDownloader dl = new FakeDownloader(rsrcs, obs);
+        dl.failing = rsrcs.get(1);
+        dl.failCount = 2;
+        // a budget of one retry can't cover two failures
+        dl.setMaxAttempts(5, 1);
+
+        assertTrue(dl.download());
+        assertEquals(rsrcs.get(1), obs.failed);
+        assertEquals(2, dl.failures.get());
+    }
+
+    @Test public void testClaimConnections ()
+    {
+        FakeDownloader dl = new FakeDownloader(new ArrayList<Resource>(), null);
+        dl._limit = 4;
+        dl._active = 3;
+        // extra connections come out of the same limit as our downloads
+        assertEquals(1, dl.claimConnections(3));
+        assertEquals(0, dl.claimConnections(1));
+        dl.releaseConnections(1);
+        dl._active--;
+        assertEquals(2, dl.claimConnections(3));
+        assertEquals(4, dl._active);
+    }
+
+    @Test public void testRetryDelay ()
+    {
+        FakeDownloader dl = new FakeDownloader(new ArrayList<Resource>(), null);
+        dl._retryDelay = 1000L;
+        for (int ii = 0; ii < 10; ii++) {
+            long delay = dl.getRetryDelay(1);
+            assertTrue("delay " + delay, delay >= 500 && delay <= 1000);
+            delay = dl.getRetryDelay(3);
+            assertTrue("delay " + delay, delay >= 2000 && delay <= 4000);
+            delay = dl.getRetryDelay(30);
+            assertTrue("delay " + delay, delay <= Downloader.MAX_RETRY_DELAY);
+        }
+    }
+
+    @Test public void testSizesFromDigests () throws IOException
+    {
+        List<Resource> rsrcs = createResources(6);
+        FakeDownloader dl = new FakeDownloader(rsrcs, null);
+        dl.setDigests(DigestsTestHelper.createDigests(rsrcs.subList(0, 4).toArray(new Resource[4])));
+
+        assertTrue(dl.download());
+        // only the resources missing from the digests need to have their size checked
+        assertEquals(2, dl.sizeChecks.get());
+        assertEquals(rsrcs.size(), dl.downloaded.size());
+    }
+
+    @Test public void testCachesVerifiedDownloads () throws IOException
+    {
+        List<Resource> rsrcs = createResources(2);
+        for (Resource rsrc : rsrcs) {
+            HTTPDownloaderTest.write(rsrc.getLocalFile(), DigestsTestHelper.generateData(1000));
+        }
+        Digests digests = DigestsTestHelper.createDigests(rsrcs.toArray(new Resource[2]));
+        ResourceCache cache = new ResourceCache(
+            ResourceCacheTest.createDirectory(), 1024 * 1024L);
+        FakeDownloader dl = new FakeDownloader(rsrcs, null);
+        dl.setDigests(digests);
+        dl.setResourceCache(cache);
+        dl.verifying = rsrcs.get(0);
+
+        assertTrue(dl.download());
+        assertTrue(cache.getEntry(digests.getResourceDigest(rsrcs.get(0))).exists());
+        // a copy that wasn't checked against its digest as it came in isn't shared
+        assertFalse(cache.getEntry(digests.getResourceDigest(rsrcs.get(1))).exists());
+    }
+
+    @Test public void testTunerBacksOff ()
+    {
+        ConnectionTuner tuner = new ConnectionTuner(8);
+        assertEquals(2, tuner.getLimit());
+        // throughput grows with each connection, so keep adding them
+        assertEquals(3, tuner.sample(1000, 1000));
+        assertEquals(4, tuner.sample(2000, 1000));
+        // an extra connection that doesn't help is taken away again
+        assertEquals(5, tuner.sample(3000, 1000));
+        assertEquals(4, tuner.sample(3000, 1000));
+        // and we hold steady for a while before probing again
+        assertEquals(4, tuner.sample(3000, 1000));
+    }
+
+    @Test public void testThroughputEstimate ()
+    {
+        ThroughputEstimator est = new ThroughputEstimator(5000);
+        assertEquals(-1, est.getRemaining(1000));
+        // a steady 1000 bytes per second
+        long bytes = 0;
+        for (int ii = 0; ii <= 10; ii++) {
+            est.sample(bytes += 500, ii * 500L);
+        }
+        assertEquals(1000, est.getBytesPerSecond());
+        assertEquals(10, est.getRemaining(10000));
+
+        // a stall drags the estimate down quickly...
+        for (int ii = 11; ii <= 20; ii++) {
+            est.sample(bytes, ii * 500L);
+        }
+        assertTrue(est.getBytesPerSecond() < 500);
+        // ...but it recovers just as quickly once data flows again
+        for (int ii = 21; ii <= 40; ii++) {
+            est.sample(bytes += 500, ii * 500L);
+        }
+        assertTrue(est.getBytesPerSecond() > 800);
+    }
+
+    @Test public void testProgressTotals () throws IOException
+    {
+        List<Resource> rsrcs = createResources(6);
+        FakeDownloader dl = new FakeDownloader(rsrcs, new RecordingObserver());
+        dl.setMaxConcurrentDownloads(3);
+        long total = 0;
+        for (Resource rsrc : rsrcs) {
+            total += dl.size(rsrc);
+        }
+        assertTrue(dl.download());
+        assertEquals(total, dl._totalSize.get());
+        assertEquals(total, dl._totalDownloaded.get());
+    }
+
+    @Test public void testBandwidthLimiter () throws InterruptedException
+    {
+        BandwidthLimiter limiter = new BandwidthLimiter(200 * 1024);
+        long start = System.currentTimeMillis();
+        for (int ii = 0; ii < 3; ii++) {
+            limiter.acquire(100 * 1024);
+        }
+        // 300k at 200k per second should take about a second and a half
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("elapsed " + elapsed, elapsed >= 1200 && elapsed < 5000);
+
+        // lifting the limit lets everything through right away
+        limiter.setRate(0);
+        start = System.currentTimeMillis();
+        limiter.acquire(100 * 1024 * 1024);
+        assertTrue(System.currentTimeMillis() - start < 500);
+    }
+
+    @Test public void testThrottledDownload () throws IOException
+    {
+        List<Resource> rsrcs = createResources(4);
+        FakeDownloader dl = new FakeDownloader(rsrcs, null);
+        dl.setMaxConcurrentDownloads(4);
+        long total = 0;
+        for (Resource rsrc : rsrcs) {
+            total += dl.size(rsrc);
+        }
+        // allow half of the total per second, shared by all four connections
+        dl.setMaxBandwidth(total / 2);
+
+        long start = System.currentTimeMillis();
+        assertTrue(dl.download());
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("elapsed " + elapsed, elapsed >= 1500);
+    }
+
+    protected List<Resource> createResources (int count) throws IOException
+    {
+        List<Resource> rsrcs = new ArrayList<Resource>();
+        for (int ii = 0; ii < count; ii++) {
+            File file = FileTestHelper.createTempFile();
+            rsrcs.add(FileTestHelper.createLocalResource(ResourceType.RESOURCE_FILE, file));
+        }
+        return rsrcs;
+    }
+
+    protected static class FakeDownloader extends Downloader
+    {
+        public final List<Resource> downloaded = Collections.synchronizedList(
+            new ArrayList<Resource>());
+        public final AtomicInteger active = new AtomicInteger(), maxActive = new AtomicInteger();
+        public final AtomicInteger sizeChecks = new AtomicInteger();
+        public final AtomicInteger failures = new AtomicInteger();
+        public Resource failing, verifying;
+        public int failCount = Integer.MAX_VALUE;
+
+        public FakeDownloader (List<Resource> resources, Observer obs) {
+            super(resources, obs);
+            // don't keep our tests waiting to retry
+            _retryDelay = 10L;
+        }
+
+        @Override protected long checkSize (Resource rsrc) {
+            sizeChecks.incrementAndGet();
+            return size(rsrc);
+        }
+
+        public long size (Resource rsrc) {
+            return 1000 + Math.abs(rsrc.getPath().hashCode() % 1000);
+        }
+
+        @Override protected void doDownload (Resource rsrc) throws IOException {
+            int now = active.incrementAndGet();
+            synchronized (maxActive) {
+                maxActive.set(Math.max(now, maxActive.get()));
+            }
+            try {
+                long size = size(rsrc);
+                for (long have = 0; have < size; have += 100) {
+                    if (rsrc.equals(failing) && have >= 500 && failures.get() < failCount) {
+                        failures.incrementAndGet();
+                        throw new IOException("Fake failure");
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException ie) {
+                        throw new DownloadAbortedException();
+                    }
+                    throttle(100);
+                    updateObserver(rsrc, have + 100, size);
+                }
+                if (rsrc.equals(verifying)) {
+                    noteVerified(rsrc);
+                }
+                downloaded.add(rsrc);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    protected static class RecordingObserver implements Downloader.Observer
+    {
+        public final List<Integer> percents = new ArrayList<Integer>();
+        public final Thread thread = Thread.currentThread();
+        public boolean wrongThread;
+        public Resource failed;
+        public Exception failure;
+
+        public void resolvingDownloads () {
+            wrongThread |= (Thread.currentThread() != thread);
+        }
+        public boolean downloadProgress (int percent, long remaining) {
+            wrongThread |= (Thread.currentThread() != thread);
+            percents.add(percent);
+            return true;
+        }
+        public void downloadFailed (Resource rsrc, Exception e) {
+            wrongThread |= (Thread.currentThread() != thread);
+            failed = rsrc;
+            failure = e;
+        }
+    }
+}
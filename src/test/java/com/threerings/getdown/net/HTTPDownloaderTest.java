@@ -0,0 +1,698 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import com.threerings.getdown.DigestsTestHelper;
+import com.threerings.getdown.FileTestHelper;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.data.ResourceGroup;
+import com.threerings.getdown.data.ResourceType;
+import com.threerings.getdown.util.BlockSignature;
+import com.threerings.getdown.util.ChunkTree;
+import com.threerings.getdown.util.DigestAlgorithm;
+import com.threerings.getdown.util.VersionUtil;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link HTTPDownloader} against a local HTTP server.
+ */
+public class HTTPDownloaderTest
+{
+    @Before public void startServer () throws IOException
+    {
+        _data = DigestsTestHelper.generateData(200 * 1024);
+        _served = _data;
+        _executor = Executors.newCachedThreadPool();
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        _server.setExecutor(_executor);
+        _server.start();
+    }
+
+    @After public void stopServer ()
+    {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    @Test public void testSegmentedDownload () throws IOException
+    {
+        Resource rsrc = createResource();
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(64 * 1024);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        // we should have fetched four distinct ranges
+        assertEquals(4, _ranges.size());
+        assertFalse(new PartialDownload(rsrc.getLocalFile()).getPartFile().exists());
+        assertTrue(rsrc.isMarkedValid());
+    }
+
+    @Test public void testSegmentedVerification () throws IOException
+    {
+        Resource rsrc = createResource();
+        // serve data of the right size, but the wrong content
+        _served = DigestsTestHelper.generateData(_data.length);
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(64 * 1024);
+        // the copy we already have must survive the failed download
+        byte[] old = DigestsTestHelper.generateData(100);
+        write(rsrc.getLocalFile(), old);
+
+        assertTrue(dl.download());
+        assertNotNull(_obs.failure);
+        assertArrayEquals(old, read(rsrc.getLocalFile()));
+        assertFalse(new PartialDownload(rsrc.getLocalFile()).getPartFile().exists());
+    }
+
+    @Test public void testNoRangeSupport () throws IOException
+    {
+        _supportRanges = false;
+        Resource rsrc = createResource();
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(64 * 1024);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+    }
+
+    @Test public void testResume () throws IOException
+    {
+        Resource rsrc = createResource();
+        // pretend that a previous attempt got the first part of the file
+        PartialDownload partial = new PartialDownload(rsrc.getLocalFile());
+        FileOutputStream out = new FileOutputStream(partial.getPartFile());
+        out.write(_data, 0, 1000);
+        out.close();
+        partial._url = rsrc.getRemote();
+        partial._etag = ETAG;
+        partial._written = 1000;
+        partial.save();
+
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(0);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertEquals(Arrays.asList("bytes=1000-"), _ranges);
+        // the resumed data is digested along with the rest
+        assertTrue(rsrc.isMarkedValid());
+    }
+
+    @Test public void testResumeWithoutSegmentRanges () throws IOException
+    {
+        // the server only honors the open ended ranges with which downloads are resumed
+        _boundedRanges = false;
+        Resource rsrc = createResource();
+        PartialDownload partial = new PartialDownload(rsrc.getLocalFile());
+        FileOutputStream out = new FileOutputStream(partial.getPartFile());
+        out.write(_data, 0, 1000);
+        out.close();
+        partial._url = rsrc.getRemote();
+        partial._etag = ETAG;
+        partial._written = 1000;
+        partial.save();
+
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(64 * 1024);
+
+        // the segmented download must leave the earlier attempt for the single stream to resume
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertEquals(Arrays.asList("bytes=1000-"), _ranges);
+        assertTrue(rsrc.isMarkedValid());
+    }
+
+    @Test public void testVerifiedWhileDownloading () throws IOException
+    {
+        Resource rsrc = createResource();
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(0);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertTrue(rsrc.isMarkedValid());
+    }
+
+    @Test public void testDigestMismatch () throws IOException
+    {
+        Resource rsrc = createResource();
+        _served = DigestsTestHelper.generateData(_data.length);
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(0);
+
+        assertTrue(dl.download());
+        assertNotNull(_obs.failure);
+        // the bogus data must not replace the resource
+        assertFalse(rsrc.getLocalFile().exists());
+        assertFalse(new PartialDownload(rsrc.getLocalFile()).getPartFile().exists());
+        assertFalse(rsrc.isMarkedValid());
+    }
+
+    @Test public void testKeepAlive () throws IOException
+    {
+        File appdir = createDirectory(), srcdir = createDirectory();
+        List<Resource> rsrcs = new ArrayList<Resource>();
+        List<Resource> sources = new ArrayList<Resource>();
+        for (int ii = 0; ii < 8; ii++) {
+            rsrcs.add(createResource(appdir, "file" + ii + ".bin"));
+            File source = new File(srcdir, "file" + ii + ".bin");
+            source.deleteOnExit();
+            write(source, _data);
+            sources.add(FileTestHelper.createLocalResource(ResourceType.RESOURCE_FILE, source));
+        }
+        _obs = new DownloaderTest.RecordingObserver();
+        HTTPDownloader dl = new HTTPDownloader(rsrcs, _obs);
+        dl.setDigests(DigestsTestHelper.createDigests(sources.toArray(new Resource[0])));
+        dl.setMaxConcurrentDownloads(1);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        for (Resource rsrc : rsrcs) {
+            assertTrue(rsrc.isMarkedValid());
+        }
+        // the files should have come over far fewer connections than there are files
+        assertTrue("connections: " + _clients, _clients.size() < rsrcs.size());
+    }
+
+    @Test public void testKeepAliveDownloader () throws IOException
+    {
+        Resource rsrc = createResource();
+        _obs = new DownloaderTest.RecordingObserver();
+        HTTPDownloader keepAlive = new KeepAliveHTTPDownloader(
+            Collections.singletonList(rsrc), _obs);
+        assertTrue(_data.length > HTTPDownloader.MAX_DRAIN);
+
+        // the keep-alive downloader reads a response too large for a plain downloader to bother
+        // with, so that it can reuse the connection (whether the JVM salvages a connection that
+        // a plain downloader gives up on is up to the JVM, so we don't test that)
+        abandonResponse(keepAlive, rsrc);
+        abandonResponse(keepAlive, rsrc);
+        assertEquals(1, _clients.size());
+    }
+
+    protected void abandonResponse (HTTPDownloader dl, Resource rsrc) throws IOException
+    {
+        URLConnection conn = dl.openConnection(rsrc.getRemote());
+        conn.connect();
+        assertEquals(200, ((HttpURLConnection)conn).getResponseCode());
+        dl.releaseConnection(conn);
+    }
+
+    @Test public void testCompressedCopy () throws IOException
+    {
+        Resource rsrc = createResource();
+        HTTPDownloader dl = createDownloader(rsrc);
+        // publish a compressed copy of the resource and tell the client about it
+        File expected = new File(createDirectory(), rsrc.getPath());
+        expected.deleteOnExit();
+        write(expected, _data);
+        File gz = new File(expected.getPath() + Digests.COMPRESSED_SUFFIX);
+        gz.deleteOnExit();
+        write(gz, gzip(_data));
+        ResourceGroup group = new ResourceGroup();
+        group.addResources(
+            FileTestHelper.createLocalResource(ResourceType.RESOURCE_FILE, expected));
+        dl.setDigests(Digests.create(group, VersionUtil.NO_VERSION, new Digests.Options().compressed(true)));
+        dl.setSegmentThreshold(0);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertTrue(rsrc.isMarkedValid());
+        assertEquals(Arrays.asList("/data.bin.gz"), _paths);
+    }
+
+    @Test public void testCompressedEncoding () throws IOException
+    {
+        _encode = true;
+        Resource rsrc = createResource();
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(0);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertTrue(rsrc.isMarkedValid());
+        assertTrue(_encoded);
+    }
+
+    @Test public void testMirrorFailover () throws IOException
+    {
+        Resource rsrc = createResource();
+        // pretend that a previous attempt got the first part of the file from the appbase
+        PartialDownload partial = new PartialDownload(rsrc.getLocalFile());
+        FileOutputStream out = new FileOutputStream(partial.getPartFile());
+        out.write(_data, 0, 1000);
+        out.close();
+        partial._url = rsrc.getRemote();
+        partial._etag = ETAG;
+        partial._written = 1000;
+        partial.save();
+
+        // the appbase is now broken, but its mirror is fine
+        URL appbase = new URL("http://127.0.0.1:" + _server.getAddress().getPort() + "/");
+        _failing.add("/" + rsrc.getPath());
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(0);
+        dl.setMirrors(new MirrorSelector(
+            appbase, Collections.singletonList(new URL(appbase, "mirror/"))));
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertTrue(_paths.contains("/mirror/" + rsrc.getPath()));
+        // the mirror picked up where the appbase left off
+        assertEquals(Arrays.asList("bytes=1000-"), _ranges);
+        assertTrue(rsrc.isMarkedValid());
+    }
+
+    @Test public void testMirrorExclusion () throws IOException
+    {
+        Resource rsrc = createResource();
+        // the appbase is broken and much faster than its mirror, which is fine
+        URL appbase = new URL("http://127.0.0.1:" + _server.getAddress().getPort() + "/");
+        _failing.add("/" + rsrc.getPath());
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(0);
+        dl._retryDelay = 10L;
+        MirrorSelector mirrors = new MirrorSelector(
+            appbase, Collections.singletonList(new URL(appbase, "mirror/")));
+        mirrors._mirrors.get(1).latency = 1000L;
+        dl.setMirrors(mirrors);
+
+        // having failed once, the appbase must not be retried before the mirror has been tried
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertEquals(Arrays.asList("/" + rsrc.getPath(), "/mirror/" + rsrc.getPath()), _paths);
+        assertTrue(rsrc.isMarkedValid());
+        assertTrue(dl._triedMirrors.isEmpty());
+    }
+
+    @Test public void testMirrorRetryBudget () throws IOException
+    {
+        Resource rsrc = createResource();
+        // both the appbase and its mirror are broken
+        URL appbase = new URL("http://127.0.0.1:" + _server.getAddress().getPort() + "/");
+        _failing.add("/" + rsrc.getPath());
+        _failing.add("/mirror/" + rsrc.getPath());
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setSegmentThreshold(0);
+        dl.setMaxAttempts(3, -1);
+        dl._retryDelay = 10L;
+        DownloadMetrics metrics = new DownloadMetrics();
+        dl.setMetrics(metrics);
+        dl.setMirrors(new MirrorSelector(
+            appbase, Collections.singletonList(new URL(appbase, "mirror/"))));
+
+        assertTrue(dl.download());
+        assertEquals(rsrc, _obs.failed);
+        // failing over to the mirror counts against our attempts, and each retry counts once
+        assertEquals(Arrays.asList("/" + rsrc.getPath(), "/mirror/" + rsrc.getPath(),
+                                   "/" + rsrc.getPath()), _paths);
+        assertEquals(2, metrics.getRetries());
+    }
+
+    @Test public void testBlockSync () throws IOException
+    {
+        Resource rsrc = createResource();
+        // our old copy has some data inserted at the start and some changes in the middle
+        byte[] old = new byte[_data.length + 100];
+        System.arraycopy(DigestsTestHelper.generateData(100), 0, old, 0, 100);
+        System.arraycopy(_data, 0, old, 100, _data.length);
+        for (int ii = 100000; ii < 100100; ii++) {
+            old[ii] ^= 0x55;
+        }
+        write(rsrc.getLocalFile(), old);
+
+        // publish a block signature of the new version and tell the client about it
+        File expected = new File(createDirectory(), rsrc.getPath());
+        expected.deleteOnExit();
+        write(expected, _data);
+        ByteArrayOutputStream sig = new ByteArrayOutputStream();
+        BlockSignature.compute(expected, 3000).write(sig);
+        _signature = sig.toByteArray();
+        File sigfile = new File(expected.getPath() + Digests.BLOCKS_SUFFIX);
+        sigfile.deleteOnExit();
+        write(sigfile, _signature);
+        ResourceGroup group = new ResourceGroup();
+        group.addResources(
+            FileTestHelper.createLocalResource(ResourceType.RESOURCE_FILE, expected));
+        HTTPDownloader dl = createDownloader(rsrc);
+        dl.setDigests(Digests.create(group, VersionUtil.NO_VERSION, new Digests.Options().blocks(true)));
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertTrue(rsrc.isMarkedValid());
+        // only the changed blocks (and the signature) were downloaded
+        assertEquals(Arrays.asList("/data.bin.blocks", "/data.bin"), _paths);
+        assertEquals(Arrays.asList("bytes=99000-101999"), _ranges);
+    }
+
+    @Test public void testChunkRepair () throws IOException
+    {
+        Resource rsrc = createResource();
+        HTTPDownloader dl = createChunkedDownloader(rsrc, _data);
+        markValidCopy(rsrc, dl._digests);
+        // since validated, our copy got a damaged byte in the fourth chunk and in the eighth and
+        // ninth, and lost the end of the last
+        byte[] old = Arrays.copyOf(_data, _data.length - 100);
+        old[3 * 16384 + 10] ^= 1;
+        old[8 * 16384 - 1] ^= 1;
+        old[8 * 16384] ^= 1;
+        write(rsrc.getLocalFile(), old);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertTrue(rsrc.isMarkedValid());
+        // only the corrupt chunks (and the tree) were downloaded
+        assertEquals(Arrays.asList("/data.bin.chunks", "/data.bin", "/data.bin", "/data.bin"),
+                     _paths);
+        assertEquals(Arrays.asList("bytes=49152-65535", "bytes=114688-147455",
+                                   "bytes=196608-204799"), _ranges);
+    }
+
+    @Test public void testChunkTreeMismatch () throws IOException
+    {
+        Resource rsrc = createResource();
+        HTTPDownloader dl = createChunkedDownloader(rsrc, _data);
+        markValidCopy(rsrc, dl._digests);
+        byte[] old = _data.clone();
+        old[1000] ^= 1;
+        write(rsrc.getLocalFile(), old);
+
+        // the tree served doesn't match the root in the digests, so it mustn't be trusted
+        byte[] bogus = _data.clone();
+        bogus[1000] ^= 1;
+        File other = new File(createDirectory(), "other.bin");
+        other.deleteOnExit();
+        write(other, bogus);
+        ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        ChunkTree.compute(other, 16384, 2).write(tree);
+        _content.put("/data.bin.chunks", tree.toByteArray());
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertEquals(Arrays.asList("/data.bin.chunks", "/data.bin"), _paths);
+        assertTrue(_ranges.isEmpty());
+    }
+
+    @Test public void testNoChunkRepairOfOldVersion () throws IOException
+    {
+        // an old version of the resource isn't corrupt, merely out of date, so it is updated the
+        // usual way (even if some of its chunks happen to match)
+        Resource rsrc = createResource();
+        byte[] old = _data.clone();
+        old[1000] ^= 1;
+        write(rsrc.getLocalFile(), old);
+        HTTPDownloader dl = createChunkedDownloader(rsrc, _data);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        assertArrayEquals(_data, read(rsrc.getLocalFile()));
+        assertEquals(Arrays.asList("/data.bin"), _paths);
+    }
+
+    @Test public void testFailedChunkRepairKeepsCopy () throws IOException
+    {
+        Resource rsrc = createResource();
+        HTTPDownloader dl = createChunkedDownloader(rsrc, _data);
+        markValidCopy(rsrc, dl._digests);
+        byte[] old = _data.clone();
+        old[1000] ^= 1;
+        write(rsrc.getLocalFile(), old);
+        // the server's copy is corrupt too, so neither the repair nor the download succeeds
+        _served = _data.clone();
+        _served[1000] ^= 2;
+
+        assertTrue(dl.download());
+        assertNotNull(_obs.failure);
+        assertArrayEquals(old, read(rsrc.getLocalFile()));
+        assertFalse(new File(rsrc.getLocalFile().getPath() + "_repair").exists());
+    }
+
+    /**
+     * Writes the expected data to the local copy of the supplied resource and notes it as
+     * validated against its digest.
+     */
+    protected void markValidCopy (Resource rsrc, Digests digests) throws IOException
+    {
+        write(rsrc.getLocalFile(), _data);
+        rsrc.markAsValid(digests.getResourceDigest(rsrc));
+    }
+
+    @Test public void testBundledResources () throws IOException
+    {
+        // the server has three small resources, bundled together
+        File serverdir = createDirectory(), clientdir = createDirectory();
+        String[] paths = { "a.txt", "icons/b.png", "c.cfg" };
+        ResourceGroup group = new ResourceGroup();
+        Map<String, String> bundled = new HashMap<String, String>();
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        List<Resource> rsrcs = new ArrayList<Resource>();
+        for (String path : paths) {
+            byte[] data = DigestsTestHelper.generateData(1000 + path.length());
+            File file = new File(serverdir, path);
+            file.getParentFile().mkdirs();
+            file.deleteOnExit();
+            write(file, data);
+            group.addResources(Resource.create(
+                ResourceType.RESOURCE_FILE, serverdir, serverdir.toURI().toURL(), path));
+            bundled.put(path, "bundles/app.bundle@" + bundle.size());
+            _content.put("/" + path, data);
+            // damage the second resource in the bundle, so that it must be fetched on its own
+            byte[] copy = data.clone();
+            if (path.startsWith("icons")) {
+                copy[10] ^= 1;
+            }
+            bundle.write(copy);
+            rsrcs.add(createResource(clientdir, path));
+        }
+        _content.put("/bundles/app.bundle", bundle.toByteArray());
+
+        _obs = new DownloaderTest.RecordingObserver();
+        HTTPDownloader dl = new HTTPDownloader(rsrcs, _obs);
+        dl.setDigests(Digests.create(group, VersionUtil.NO_VERSION, new Digests.Options().bundles(bundled)));
+        dl.setMaxConcurrentDownloads(1);
+
+        assertTrue(dl.download());
+        assertNull(_obs.failure);
+        for (Resource rsrc : rsrcs) {
+            assertArrayEquals(_content.get("/" + rsrc.getPath()), read(rsrc.getLocalFile()));
+            assertTrue(rsrc.isMarkedValid());
+        }
+        // the bundle was fetched in one go, and only the damaged resource on its own
+        assertEquals(Arrays.asList("/bundles/app.bundle", "/icons/b.png"), _paths);
+        assertEquals(Arrays.asList("bytes=0-" + (bundle.size() - 1)), _ranges);
+    }
+
+    protected Resource createResource () throws IOException
+    {
+        return createResource(createDirectory(), "data.bin");
+    }
+
+    protected Resource createResource (File appdir, String path) throws IOException
+    {
+        URL base = new URL("http://127.0.0.1:" + _server.getAddress().getPort() + "/");
+        Resource rsrc = Resource.create(ResourceType.RESOURCE_FILE, appdir, base, path);
+        rsrc.getLocalFile().deleteOnExit();
+        return rsrc;
+    }
+
+    protected File createDirectory () throws IOException
+    {
+        File dir = new File(FileTestHelper.getTempDirectory(), "dltest" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    protected HTTPDownloader createDownloader (Resource rsrc) throws IOException
+    {
+        // the digests record the size and digest of the data we expect to download
+        File expected = new File(createDirectory(), rsrc.getPath());
+        expected.deleteOnExit();
+        write(expected, _data);
+        Digests digests = DigestsTestHelper.createDigests(
+            FileTestHelper.createLocalResource(ResourceType.RESOURCE_FILE, expected));
+
+        _obs = new DownloaderTest.RecordingObserver();
+        HTTPDownloader dl = new HTTPDownloader(Collections.singletonList(rsrc), _obs);
+        dl.setDigests(digests);
+        return dl;
+    }
+
+    /**
+     * Creates a downloader whose digests record the root of the chunk tree of the supplied data,
+     * which tree the server publishes.
+     */
+    protected HTTPDownloader createChunkedDownloader (Resource rsrc, byte[] data)
+        throws IOException
+    {
+        File expected = new File(createDirectory(), rsrc.getPath());
+        expected.deleteOnExit();
+        write(expected, data);
+        ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        ChunkTree.compute(expected, 16384, 2).write(tree);
+        _content.put("/" + rsrc.getPath() + Digests.CHUNKS_SUFFIX, tree.toByteArray());
+        File treefile = new File(expected.getPath() + Digests.CHUNKS_SUFFIX);
+        treefile.deleteOnExit();
+        write(treefile, tree.toByteArray());
+        ResourceGroup group = new ResourceGroup();
+        group.addResources(
+            FileTestHelper.createLocalResource(ResourceType.RESOURCE_FILE, expected));
+
+        _obs = new DownloaderTest.RecordingObserver();
+        HTTPDownloader dl = new HTTPDownloader(Collections.singletonList(rsrc), _obs);
+        dl.setDigests(Digests.create(group, VersionUtil.NO_VERSION, new Digests.Options().
+                                     algorithm(DigestAlgorithm.SHA256).chunks(true)));
+        return dl;
+    }
+
+    protected void serve (HttpExchange exchange) throws IOException
+    {
+        byte[] data = _served;
+        _clients.add(exchange.getRemoteAddress().getPort());
+        String path = exchange.getRequestURI().getPath();
+        synchronized (_paths) {
+            _paths.add(path);
+        }
+        if (_failing.contains(path)) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+        if (_content.containsKey(path)) {
+            data = _content.get(path);
+        } else if (path.endsWith(Digests.COMPRESSED_SUFFIX)) {
+            data = gzip(data);
+        } else if (path.endsWith(Digests.BLOCKS_SUFFIX)) {
+            data = _signature;
+        } else if (_encode && "gzip".equals(
+                       exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+            _encoded = true;
+            data = gzip(data);
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        int start = 0, end = data.length;
+        Matcher m = (range == null) ? null : RANGE.matcher(range);
+        if (_supportRanges && m != null && m.matches() &&
+            (_boundedRanges || m.group(2).length() == 0) &&
+            (ifRange == null || ETAG.equals(ifRange))) {
+            synchronized (_ranges) {
+                _ranges.add(range);
+            }
+            start = Integer.parseInt(m.group(1));
+            end = (m.group(2).length() == 0) ? data.length : Integer.parseInt(m.group(2)) + 1;
+            exchange.getResponseHeaders().set(
+                "Content-Range", "bytes " + start + "-" + (end-1) + "/" + data.length);
+            exchange.sendResponseHeaders(206, end - start);
+        } else {
+            exchange.sendResponseHeaders(200, data.length);
+        }
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(data, start, end - start);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected static byte[] gzip (byte[] data) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    protected static void write (File file, byte[] data) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected static byte[] read (File file) throws IOException
+    {
+        byte[] data = new byte[(int)file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0, read;
+            while (pos < data.length && (read = in.read(data, pos, data.length - pos)) != -1) {
+                pos += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    protected byte[] _data, _served, _signature;
+    protected boolean _supportRanges = true, _boundedRanges = true, _encode, _encoded;
+    protected List<String> _paths = new ArrayList<String>();
+    protected List<String> _ranges = new ArrayList<String>();
+    protected Map<String, byte[]> _content = new HashMap<String, byte[]>();
+    protected Set<String> _failing = Collections.synchronizedSet(new HashSet<String>());
+    protected Set<Integer> _clients = Collections.synchronizedSet(new HashSet<Integer>());
+    protected DownloaderTest.RecordingObserver _obs;
+    protected HttpServer _server;
+    protected ExecutorService _executor;
+
+    protected static final String ETAG = "\"v1\"";
+    protected static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+}
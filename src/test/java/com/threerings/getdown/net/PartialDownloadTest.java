@@ -0,0 +1,113 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.threerings.getdown.FileTestHelper;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link PartialDownload}.
+ */
+public class PartialDownloadTest
+{
+    @Test public void testResumeOffset () throws IOException
+    {
+        File target = FileTestHelper.createTempFile();
+        URL url = new URL("http://example.com/data.jar");
+        PartialDownload partial = createPartial(target, url, "\"abc\"", 10, 8);
+
+        PartialDownload resumed = new PartialDownload(target);
+        assertEquals(8L, resumed.getResumeOffset(url));
+        // a different URL invalidates the partial data
+        assertEquals(0L, new PartialDownload(target).getResumeOffset(
+                         new URL("http://example.com/other.jar")));
+        partial.discard();
+    }
+
+    @Test public void testRecordAheadOfData () throws IOException
+    {
+        File target = FileTestHelper.createTempFile();
+        URL url = new URL("http://example.com/data.jar");
+        // the record claims more data than actually made it to disk
+        PartialDownload partial = createPartial(target, url, "\"abc\"", 4, 100);
+        assertEquals(4L, new PartialDownload(target).getResumeOffset(url));
+        partial.discard();
+    }
+
+    @Test public void testPreallocated () throws IOException
+    {
+        File target = FileTestHelper.createTempFile();
+        File source = FileTestHelper.createTempFile();
+        PartialDownload partial = new PartialDownload(target);
+        URLConnection conn = source.toURI().toURL().openConnection();
+        FileChannel out = partial.open(conn, 0, 100);
+        partial._etag = "\"abc\"";
+        out.write(ByteBuffer.wrap(new byte[30]));
+        partial.noteWritten(30);
+        out.close();
+        // the record is saved (and the data forced to disk) after the channel was closed
+        partial.save();
+
+        // the part file is allocated at its full size, but we only resume after what we wrote
+        assertEquals(100L, partial.getPartFile().length());
+        assertEquals(30L, new PartialDownload(target).getResumeOffset(conn.getURL()));
+        partial.discard();
+    }
+
+    @Test public void testNoValidators () throws IOException
+    {
+        File target = FileTestHelper.createTempFile();
+        URL url = new URL("http://example.com/data.jar");
+        // without an ETag or Last-Modified we can't know that the file hasn't changed
+        PartialDownload partial = createPartial(target, url, null, 10, 10);
+        assertEquals(0L, new PartialDownload(target).getResumeOffset(url));
+        partial.discard();
+    }
+
+    @Test public void testComplete () throws IOException
+    {
+        File target = FileTestHelper.createTempFile();
+        URL url = new URL("http://example.com/data.jar");
+        PartialDownload partial = createPartial(target, url, "\"abc\"", 10, 10);
+        partial.complete();
+        assertEquals(10L, target.length());
+        assertFalse(partial.getPartFile().exists());
+        assertEquals(0L, new PartialDownload(target).getResumeOffset(url));
+    }
+
+    @Test public void testRangeStart ()
+    {
+        assertEquals(100L, PartialDownload.getRangeStart("bytes 100-199/200"));
+        assertEquals(5L, PartialDownload.getRangeStart("bytes 5-9/*"));
+        assertEquals(-1L, PartialDownload.getRangeStart("bytes */200"));
+        assertEquals(-1L, PartialDownload.getRangeStart(null));
+    }
+
+    protected PartialDownload createPartial (File target, URL url, String etag, int length,
+                                             long written)
+        throws IOException
+    {
+        PartialDownload partial = new PartialDownload(target);
+        FileOutputStream out = new FileOutputStream(partial.getPartFile());
+        out.write(new byte[length]);
+        out.close();
+        partial._url = url;
+        partial._etag = etag;
+        partial._written = written;
+        partial.save();
+        return partial;
+    }
+}
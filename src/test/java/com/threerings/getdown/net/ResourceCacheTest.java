@@ -0,0 +1,116 @@
+//
+// Getdown - application installer, patcher and launcher
+// Copyright (C) 2004-2014 Three Rings Design, Inc.
+// https://raw.github.com/threerings/getdown/master/LICENSE
+
+package com.threerings.getdown.net;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.threerings.getdown.DigestsTestHelper;
+import com.threerings.getdown.FileTestHelper;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.data.ResourceType;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link ResourceCache}.
+ */
+public class ResourceCacheTest
+{
+    @Before public void createDirectories () throws IOException
+    {
+        _cachedir = createDirectory();
+        _appdir = createDirectory();
+        _otherdir = createDirectory();
+    }
+
+    @Test public void testStoreAndFetch () throws IOException
+    {
+        byte[] data = DigestsTestHelper.generateData(10 * 1024);
+        Resource source = createResource(_appdir, "lib.jar", data);
+        Digests digests = DigestsTestHelper.createDigests(source);
+        ResourceCache cache = new ResourceCache(_cachedir, 1024 * 1024L);
+        cache.store(source, digests);
+
+        // another application wanting the same file gets it from the cache
+        Resource rsrc = createResource(_otherdir, "lib.jar", null);
+        assertTrue(cache.fetch(rsrc, digests));
+        assertArrayEquals(data, HTTPDownloaderTest.read(rsrc.getLocalFile()));
+        assertTrue(rsrc.isMarkedValid());
+    }
+
+    @Test public void testMiss () throws IOException
+    {
+        Resource source = createResource(_appdir, "lib.jar", DigestsTestHelper.generateData(100));
+        Digests digests = DigestsTestHelper.createDigests(source);
+        Resource rsrc = createResource(_otherdir, "lib.jar", null);
+        assertFalse(new ResourceCache(_cachedir, 1024 * 1024L).fetch(rsrc, digests));
+        assertFalse(rsrc.getLocalFile().exists());
+    }
+
+    @Test public void testCorruptEntry () throws IOException
+    {
+        Resource source = createResource(_appdir, "lib.jar", DigestsTestHelper.generateData(100));
+        Digests digests = DigestsTestHelper.createDigests(source);
+        ResourceCache cache = new ResourceCache(_cachedir, 1024 * 1024L);
+        cache.store(source, digests);
+        File entry = cache.getEntry(digests.getResourceDigest(source));
+        HTTPDownloaderTest.write(entry, DigestsTestHelper.generateData(100));
+
+        // our old copy must survive the failed fetch
+        byte[] old = DigestsTestHelper.generateData(50);
+        Resource rsrc = createResource(_otherdir, "lib.jar", old);
+        assertFalse(cache.fetch(rsrc, digests));
+        assertArrayEquals(old, HTTPDownloaderTest.read(rsrc.getLocalFile()));
+        // the bad entry is dropped so that a fresh download can take its place
+        assertFalse(entry.exists());
+    }
+
+    @Test public void testEviction () throws IOException
+    {
+        ResourceCache cache = new ResourceCache(_cachedir, 2500L);
+        File[] entries = new File[3];
+        for (int ii = 0; ii < entries.length; ii++) {
+            Resource source = createResource(
+                _appdir, "file" + ii + ".jar", DigestsTestHelper.generateData(1000));
+            Digests digests = DigestsTestHelper.createDigests(source);
+            cache.store(source, digests);
+            entries[ii] = cache.getEntry(digests.getResourceDigest(source));
+            // make sure the entries are ordered by their timestamps
+            entries[ii].setLastModified(System.currentTimeMillis() - (10 - ii) * 1000L);
+        }
+        cache.trim();
+
+        // only the least recently used entry should have been evicted
+        assertFalse(entries[0].exists());
+        assertTrue(entries[1].exists());
+        assertTrue(entries[2].exists());
+    }
+
+    protected static Resource createResource (File dir, String name, byte[] data)
+        throws IOException
+    {
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        if (data != null) {
+            HTTPDownloaderTest.write(file, data);
+        }
+        return FileTestHelper.createLocalResource(ResourceType.RESOURCE_FILE, file);
+    }
+
+    protected static File createDirectory () throws IOException
+    {
+        File dir = FileTestHelper.createTempFile(".dir");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    protected File _cachedir, _appdir, _otherdir;
+}
@@ -0,0 +1,125 @@
+package com.threerings.getdown.util;
+
+import com.threerings.getdown.DigestsTestHelper;
+import com.threerings.getdown.FileTestHelper;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockSignatureTest {
+    @Test
+    public void testMatchShiftedBlocks() throws IOException {
+        byte[] data = DigestsTestHelper.generateData(10 * 1000 + 123);
+        BlockSignature sig = BlockSignature.compute(write(data), 1000);
+        assertEquals(11, sig.getBlockCount());
+        assertEquals(123, sig.getBlockLength(10));
+
+        // an old copy with a few bytes inserted up front and the fifth block damaged
+        byte[] old = new byte[data.length + 7];
+        System.arraycopy(data, 0, old, 7, data.length);
+        old[7 + 4500] ^= 1;
+        long[] found = sig.match(write(old));
+        for (int ii = 0; ii < found.length; ii++) {
+            assertEquals("block " + ii, (ii == 4) ? -1L : 7L + ii * 1000, found[ii]);
+        }
+    }
+
+    @Test
+    public void testNothingInCommon() throws IOException {
+        BlockSignature sig = BlockSignature.compute(
+            write(DigestsTestHelper.generateData(5000)), 1000);
+        for (long position : sig.match(write(DigestsTestHelper.generateData(5000)))) {
+            assertEquals(-1L, position);
+        }
+        // a file shorter than a block has nothing to offer either
+        assertEquals(-1L, sig.match(write(new byte[10]))[0]);
+    }
+
+    @Test
+    public void testLargeFile() throws IOException {
+        // a data pack of realistic size, of which we have an old copy with a few bytes inserted
+        // up front and one block damaged
+        int size = 64 * 1024 * 1024, blockSize = BlockSignature.DEFAULT_BLOCK_SIZE;
+        long damaged = 1000L * blockSize + 123;
+        File file = writeRandom(1L, size, 0, -1L);
+        BlockSignature sig = BlockSignature.compute(file, blockSize);
+        long[] found = sig.match(writeRandom(1L, size, 13, damaged));
+        for (int ii = 0; ii < found.length; ii++) {
+            assertEquals("block " + ii, (ii == 1000) ? -1L : 13L + (long)ii * blockSize, found[ii]);
+        }
+
+        // and a file that has nothing in common with it, which has to be scanned byte by byte
+        long start = System.currentTimeMillis();
+        for (long position : sig.match(writeRandom(2L, size, 0, -1L))) {
+            assertEquals(-1L, position);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("scan took " + elapsed + "ms", elapsed < 30 * 1000L);
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        byte[] data = DigestsTestHelper.generateData(2500);
+        BlockSignature sig = BlockSignature.compute(write(data), 1000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sig.write(out);
+        BlockSignature copy = BlockSignature.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(sig.getLength(), copy.getLength());
+        assertEquals(sig.getBlockSize(), copy.getBlockSize());
+        long[] found = copy.match(write(data));
+        assertEquals("[0, 1000, 2000]", Arrays.toString(found));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadGarbage() throws IOException {
+        BlockSignature.read(new ByteArrayInputStream(new byte[32]));
+    }
+
+    /**
+     * Writes a file of pseudo-random data generated from the given seed, preceded by the given
+     * number of bytes of padding, with the byte at the given position (if any) of the data flipped.
+     */
+    private static File writeRandom(long seed, int length, int padding, long damaged)
+            throws IOException {
+        File file = FileTestHelper.createTempFile();
+        file.deleteOnExit();
+        Random rnd = new Random(seed);
+        byte[] chunk = new byte[1024 * 1024];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            out.write(new byte[padding]);
+            for (long written = 0; written < length; written += chunk.length) {
+                rnd.nextBytes(chunk);
+                if (damaged >= written && damaged < written + chunk.length) {
+                    chunk[(int)(damaged - written)] ^= 1;
+                }
+                out.write(chunk, 0, (int)Math.min(chunk.length, length - written));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static File write(byte[] data) throws IOException {
+        File file = FileTestHelper.createTempFile();
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,92 @@
+package com.threerings.getdown.util;
+
+import com.threerings.getdown.DigestsTestHelper;
+import com.threerings.getdown.FileTestHelper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ChunkTreeTest {
+    @Test
+    public void testFindCorruptChunks() throws IOException {
+        byte[] data = DigestsTestHelper.generateData(10 * 1000 + 123);
+        ChunkTree tree = ChunkTree.compute(write(data), 1000, 3);
+        assertEquals(11, tree.getChunkCount());
+        assertEquals(123, tree.getChunkLength(10));
+        assertEquals(Collections.<Integer>emptyList(), tree.findCorrupt(write(data), 3));
+
+        byte[] bad = data.clone();
+        bad[0] ^= 1;
+        bad[4999] ^= 1;
+        bad[5000] ^= 1;
+        assertEquals(Arrays.asList(0, 4, 5), tree.findCorrupt(write(bad), 3));
+
+        // chunks beyond the end of a truncated copy are corrupt too
+        byte[] truncated = Arrays.copyOf(data, 8500);
+        assertEquals(Arrays.asList(8, 9, 10), tree.findCorrupt(write(truncated), 2));
+    }
+
+    @Test
+    public void testRoot() throws IOException {
+        byte[] data = DigestsTestHelper.generateData(5500);
+        String root = ChunkTree.compute(write(data), 1000, 1).getRoot();
+        assertEquals(64, root.length());
+        // the root doesn't depend on how many threads computed the tree
+        assertEquals(root, ChunkTree.compute(write(data), 1000, 4).getRoot());
+
+        // but changes with any change to the data or the chunking
+        byte[] other = data.clone();
+        other[5499] ^= 1;
+        assertFalse(root.equals(ChunkTree.compute(write(other), 1000, 1).getRoot()));
+        assertFalse(root.equals(ChunkTree.compute(write(data), 500, 1).getRoot()));
+        assertFalse(root.equals(ChunkTree.compute(write(new byte[0]), 1000, 1).getRoot()));
+    }
+
+    @Test
+    public void testMatches() throws IOException {
+        byte[] data = DigestsTestHelper.generateData(2500);
+        ChunkTree tree = ChunkTree.compute(write(data), 1000, 2);
+        byte[] chunk = Arrays.copyOfRange(data, 2000, 2500);
+        assertTrue(tree.matches(2, chunk, 500));
+        assertFalse(tree.matches(1, chunk, 500));
+        chunk[0] ^= 1;
+        assertFalse(tree.matches(2, chunk, 500));
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        byte[] data = DigestsTestHelper.generateData(2500);
+        ChunkTree tree = ChunkTree.compute(write(data), 1000, 2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tree.write(out);
+        ChunkTree copy = ChunkTree.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(tree.getLength(), copy.getLength());
+        assertEquals(tree.getChunkSize(), copy.getChunkSize());
+        assertEquals(tree.getRoot(), copy.getRoot());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadGarbage() throws IOException {
+        ChunkTree.read(new ByteArrayInputStream(new byte[32]));
+    }
+
+    private static File write(byte[] data) throws IOException {
+        File file = FileTestHelper.createTempFile();
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
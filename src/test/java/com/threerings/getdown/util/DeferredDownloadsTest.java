@@ -0,0 +1,56 @@
+package com.threerings.getdown.util;
+
+import com.threerings.getdown.FileTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DeferredDownloadsTest {
+    @Before
+    public void createAppdir() throws IOException {
+        appdir = FileTestHelper.createTempFile(".dir");
+        appdir.delete();
+        appdir.mkdir();
+    }
+
+    @After
+    public void deleteAppdir() {
+        for (File file : appdir.listFiles()) {
+            file.delete();
+        }
+        appdir.delete();
+    }
+
+    @Test
+    public void testPending() {
+        assertTrue(DeferredDownloads.getPending(appdir).isEmpty());
+
+        DeferredDownloads.setPending(appdir, Arrays.asList("media/intro.ogg", "media/outro.ogg"));
+        assertTrue(DeferredDownloads.isPending(appdir, "media/intro.ogg"));
+        assertFalse(DeferredDownloads.isPending(appdir, "code/app.jar"));
+
+        DeferredDownloads.setPending(appdir, Collections.<String>emptyList());
+        assertFalse(DeferredDownloads.isPending(appdir, "media/intro.ogg"));
+        assertFalse(new File(appdir, DeferredDownloads.PENDING_FILE_NAME).exists());
+    }
+
+    @Test
+    public void testWaitForRecordsCritical() throws InterruptedException {
+        assertTrue(DeferredDownloads.waitFor(appdir, "media/intro.ogg", 0L));
+        assertTrue(DeferredDownloads.getCritical(appdir).isEmpty());
+
+        DeferredDownloads.setPending(appdir, Arrays.asList("media/intro.ogg"));
+        assertFalse(DeferredDownloads.waitFor(appdir, "media/intro.ogg", 300L));
+        // having had to wait for it, the app should get it before launching the next time
+        assertEquals(Collections.singleton("media/intro.ogg"), DeferredDownloads.getCritical(appdir));
+    }
+
+    private File appdir;
+}
@@ -0,0 +1,128 @@
+package com.threerings.getdown.util;
+
+import com.threerings.getdown.FileTestHelper;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import com.threerings.getdown.data.ResourceGroup;
+import com.threerings.getdown.data.ResourceType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class DigestCacheTest {
+    private File appdir;
+    private Resource a, b;
+
+    @Before
+    public void createAppdir() throws IOException {
+        File tmp = FileTestHelper.createTempFile();
+        tmp.delete();
+        appdir = new File(tmp.getPath() + ".dir");
+        assertTrue(appdir.mkdirs());
+        a = FileTestHelper.createLocalResource(ResourceType.RESOURCE_FILE, write("a.txt", "aaaa", true));
+        b = FileTestHelper.createLocalResource(ResourceType.RESOURCE_FILE, write("b.txt", "bbbbbbbb", true));
+    }
+
+    @After
+    public void deleteAppdir() {
+        for (File file : appdir.listFiles()) {
+            file.delete();
+        }
+        appdir.delete();
+        DigestCache.getCacheFile(appdir).delete();
+    }
+
+    @Test
+    public void shouldReuseDigestsOfUnchangedFiles() throws IOException {
+        DigestCache cache = new DigestCache(appdir, false);
+        String digest = cache.getDigest(a, DigestAlgorithm.SHA256, true);
+        assertEquals(DigestsUtil.computeResourceDigest(a, DigestAlgorithm.SHA256, null), digest);
+        assertEquals(0, cache.getReusedCount());
+        cache.save();
+        assertTrue(DigestCache.getCacheFile(appdir).isFile());
+
+        // changing the contents without changing the size and modification time goes unnoticed,
+        // which shows that the digest was reused
+        long modified = a.getLocalFile().lastModified();
+        write("a.txt", "AAAA", false);
+        assertTrue(a.getLocalFile().setLastModified(modified));
+        cache = new DigestCache(appdir, false);
+        assertEquals(digest, cache.getDigest(a, DigestAlgorithm.SHA256, true));
+        assertEquals(1, cache.getReusedCount());
+
+        // but not when verifying
+        cache = new DigestCache(appdir, true);
+        assertFalse(digest.equals(cache.getDigest(a, DigestAlgorithm.SHA256, true)));
+        assertEquals(0, cache.getReusedCount());
+        assertEquals(1, cache.getStaleCount());
+    }
+
+    @Test
+    public void shouldRedigestChangedFiles() throws IOException {
+        DigestCache cache = new DigestCache(appdir, false);
+        String digest = cache.getDigest(a, DigestAlgorithm.MD5, false);
+        cache.save();
+
+        write("a.txt", "aaaaa", true);
+        cache = new DigestCache(appdir, false);
+        String changed = cache.getDigest(a, DigestAlgorithm.MD5, false);
+        assertFalse(digest.equals(changed));
+        assertEquals(DigestsUtil.computeResourceDigest(a, DigestAlgorithm.MD5, null), changed);
+        // nor are digests computed with one algorithm mistaken for those of another
+        assertEquals(DigestsUtil.computeResourceDigest(a, DigestAlgorithm.SHA256, null),
+                     cache.getDigest(a, DigestAlgorithm.SHA256, false));
+        assertEquals(0, cache.getReusedCount());
+    }
+
+    @Test
+    public void shouldNotRememberRecentlyModifiedFiles() throws IOException {
+        write("a.txt", "aaaa", false);
+        DigestCache cache = new DigestCache(appdir, false);
+        cache.getDigest(a, DigestAlgorithm.MD5, false);
+        cache.getDigest(b, DigestAlgorithm.MD5, false);
+        cache.save();
+
+        cache = new DigestCache(appdir, false);
+        cache.getDigest(a, DigestAlgorithm.MD5, false);
+        cache.getDigest(b, DigestAlgorithm.MD5, false);
+        assertEquals(1, cache.getReusedCount());
+    }
+
+    @Test
+    public void shouldCreateSameDigestsAsFullRun() throws IOException {
+        ResourceGroup rg = new ResourceGroup();
+        rg.addResources(a, b);
+        for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+            if (!algorithm.isCryptographic()) {
+                continue;
+            }
+            Digests full = Digests.create(rg, VersionUtil.NO_VERSION,
+                                          new Digests.Options().algorithm(algorithm));
+            for (int ii = 0; ii < 2; ii++) {
+                DigestCache cache = new DigestCache(appdir, false);
+                Digests cached = Digests.create(rg, VersionUtil.NO_VERSION,
+                                                new Digests.Options().algorithm(algorithm).source(cache));
+                cache.save();
+                assertEquals(full.getContents(), cached.getContents());
+            }
+        }
+    }
+
+    private File write(String name, String contents, boolean old) throws IOException {
+        File file = new File(appdir, name);
+        FileWriter out = new FileWriter(file);
+        out.write(contents);
+        out.close();
+        if (old) {
+            // files modified moments ago aren't trusted to stay unchanged
+            assertTrue(file.setLastModified(System.currentTimeMillis() - 10000L));
+        }
+        return file;
+    }
+}
@@ -1,7 +1,11 @@
 package com.threerings.getdown.util;
 
+import com.samskivert.io.StreamUtil;
 import com.samskivert.text.MessageUtil;
 import com.samskivert.util.StringUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import com.threerings.getdown.DigestsTestHelper;
 import com.threerings.getdown.FileTestHelper;
 import com.threerings.getdown.data.Digests;
@@ -12,9 +16,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.Properties;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -106,6 +114,141 @@ public class DigestsUtilTest {
         assertEquals(digests, DigestsUtil.downloadDigests(tmpDir, tmpDir.toURI().toURL(), NO_VERSION, Arrays.asList(helper.getCertificate())));
     }
 
+    @Test
+    public void testReadPrefersDigests2() throws IOException, GeneralSecurityException {
+        File tmpDir = DigestsTestHelper.createTempFile(new byte[0]).getParentFile();
+        Digests md5 = DigestsTestHelper.createDigests(r1, r2, r3);
+        Digests sha256 = createDigests(DigestAlgorithm.SHA256, r1, r2, r3);
+        try {
+            DigestsUtil.writeDigests(tmpDir, md5, null);
+            DigestsUtil.writeDigests(tmpDir, sha256, null);
+            assertTrue(new File(tmpDir, DigestsUtil.DIGESTS2_FILE_NAME).exists());
+            assertEquals(sha256, DigestsUtil.readDigests(tmpDir, NO_VERSION));
+
+            DigestsUtil.deleteDigests2(tmpDir);
+            assertEquals(md5, DigestsUtil.readDigests(tmpDir, NO_VERSION));
+        } finally {
+            DigestsUtil.deleteDigests2(tmpDir);
+        }
+    }
+
+    @Test
+    public void testDownloadDigests2() throws IOException, GeneralSecurityException {
+        File tmpDir = DigestsTestHelper.createTempFile(new byte[0]).getParentFile();
+        Digests sha256 = createDigests(DigestAlgorithm.SHA256, r1, r2, r3);
+        try {
+            DigestsUtil.writeDigests(tmpDir, DigestsTestHelper.createDigests(r1, r2, r3), helper.getPrivateKey());
+            DigestsUtil.writeDigests(tmpDir, sha256, helper.getPrivateKey());
+
+            assertEquals(sha256, DigestsUtil.downloadDigests(tmpDir, tmpDir.toURI().toURL(), NO_VERSION, Arrays.asList(helper.getCertificate())));
+        } finally {
+            DigestsUtil.deleteDigests2(tmpDir);
+        }
+    }
+
+    @Test
+    public void testDownloadDigestsFallsBackOnClientError() throws IOException, GeneralSecurityException {
+        final File srcDir = createTempDir();
+        File appdir = createTempDir();
+        Digests digests = DigestsTestHelper.createDigests(r1, r2, r3);
+        DigestsUtil.writeDigests(srcDir, digests, helper.getPrivateKey());
+        DigestsUtil.writeDigests(srcDir, createDigests(DigestAlgorithm.SHA256, r1, r2, r3), helper.getPrivateKey());
+
+        // a server that forbids access to digests2.txt (as some CDNs do for unknown paths)
+        // should be treated like one that doesn't have it
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String name = exchange.getRequestURI().getPath().substring(1);
+                File file = new File(srcDir, name);
+                if (name.startsWith(DigestsUtil.DIGESTS2_FILE_NAME) || !file.exists()) {
+                    exchange.sendResponseHeaders(403, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.sendResponseHeaders(200, file.length());
+                OutputStream out = exchange.getResponseBody();
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    StreamUtil.copy(in, out);
+                } finally {
+                    in.close();
+                    out.close();
+                }
+            }
+        });
+        server.start();
+        try {
+            URL appbase = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            assertEquals(digests, DigestsUtil.downloadDigests(
+                appdir, appbase, NO_VERSION, Arrays.asList(helper.getCertificate())));
+            assertTrue(new File(appdir, DigestsUtil.DIGESTS_FILE_NAME).exists());
+            assertFalse(new File(appdir, DigestsUtil.DIGESTS2_FILE_NAME).exists());
+        } finally {
+            server.stop(0);
+            deleteDir(srcDir);
+            deleteDir(appdir);
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = FileTestHelper.createTempFile(".dir");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private static void deleteDir(File dir) {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testValidateLocalResourceDigest() throws IOException {
+        Digests sha256 = createDigests(DigestAlgorithm.SHA256, r1, r2);
+        assertTrue(DigestsUtil.validateResourceDigest(r1, sha256));
+        assertTrue(DigestsUtil.validateLocalResourceDigest(r1, sha256, null));
+
+        FileOutputStream out = new FileOutputStream(r2.getLocalFile(), true);
+        out.write('!');
+        out.close();
+        assertFalse(DigestsUtil.validateResourceDigest(r2, sha256));
+        assertFalse(DigestsUtil.validateLocalResourceDigest(r2, sha256, null));
+        assertFalse(DigestsUtil.validateLocalResourceDigest(r3, sha256, null));
+    }
+
+    @Test
+    public void testFastDigestOnlyForPreviouslyValidated() throws IOException {
+        // digests whose fast digest of r1 is wrong (as a crafted file's would be)
+        Digests sha256 = createDigests(DigestAlgorithm.SHA256, r1);
+        String contents = sha256.getContents().replace(sha256.getFastDigest(r1), "0000000000000000");
+        Properties props = new Properties();
+        props.load(new ByteArrayInputStream(contents.getBytes("UTF-8")));
+        MessageDigest md = DigestsUtil.getMessageDigest(DigestAlgorithm.SHA256);
+        props.setProperty(".", StringUtil.hexlate(md.digest((NO_VERSION + contents).getBytes())));
+        Digests bogus = Digests.create(props, NO_VERSION);
+
+        // a copy we never validated is checked against the cryptographic digest
+        assertTrue(DigestsUtil.validateLocalResourceDigest(r1, bogus, null));
+        try {
+            // one we validated before, but that looks changed since, against the fast one
+            r1.markAsValid(bogus.getResourceDigest(r1));
+            assertTrue(r1.getLocalFile().setLastModified(r1.getLocalFile().lastModified() - 10000L));
+            assertFalse(r1.isMarkedValid());
+            assertFalse(DigestsUtil.validateLocalResourceDigest(r1, bogus, null));
+        } finally {
+            r1.clearMarker();
+        }
+    }
+
+    private static Digests createDigests(DigestAlgorithm algorithm, Resource... resources) throws IOException {
+        ResourceGroup rg = new ResourceGroup();
+        rg.addResources(resources);
+        return Digests.create(rg, NO_VERSION, new Digests.Options().algorithm(algorithm));
+    }
+
     @Test
     public void testDownloadFailsForInvalidSignature() throws IOException, GeneralSecurityException {
         Digests digests = DigestsTestHelper.createDigests(r1, r2, r3);
@@ -123,6 +266,37 @@ public class DigestsUtilTest {
         }
     }
 
+    @Test
+    public void testDownloadLeavesNoTempFiles() throws IOException, GeneralSecurityException {
+        File srcDir = createTempDir();
+        File appdir = createTempDir();
+        try {
+            DigestsUtil.writeDigests(srcDir, DigestsTestHelper.createDigests(r1, r2, r3), helper.getPrivateKey());
+            FileOutputStream sigOut = new FileOutputStream(new File(srcDir, DigestsUtil.DIGESTS_FILE_NAME + DigestsUtil.DIGESTS_SIGNATURE_SUFFIX));
+            sigOut.write(DigestsTestHelper.generateData(1024));
+            sigOut.close();
+            // a previous run died while downloading
+            File stale = new File(appdir, DigestsUtil.DIGESTS2_FILE_NAME + ".new");
+            FileOutputStream staleOut = new FileOutputStream(stale);
+            staleOut.write(DigestsTestHelper.generateData(1024));
+            staleOut.close();
+
+            try {
+                DigestsUtil.downloadDigests(appdir, srcDir.toURI().toURL(), NO_VERSION, Arrays.asList(helper.getCertificate()));
+                fail("Downloaded digests with an invalid signature");
+            } catch (IOException e) {
+                assertEquals("m.corrupt_digest_signature_error", e.getMessage());
+            }
+            // neither the stale download nor the rejected one are left lying around
+            assertFalse(stale.exists());
+            assertFalse(new File(appdir, DigestsUtil.DIGESTS_FILE_NAME + ".new").exists());
+            assertFalse(new File(appdir, DigestsUtil.DIGESTS_FILE_NAME).exists());
+        } finally {
+            deleteDir(srcDir);
+            deleteDir(appdir);
+        }
+    }
+
     @Test
     public void testValidateResourceDigestSucceeds() throws IOException {
         File file = DigestsTestHelper.createTempFile(dataE);
@@ -290,4 +464,57 @@ public class DigestsUtilTest {
         assertTrue(obs.getCalls().size() > 2);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testUpdateFileDigestReadsLargeFiles() throws Exception {
+        byte[] data = DigestsTestHelper.generateData(3 * DigestsUtil.DIRECT_THRESHOLD + 123);
+        File file = DigestsTestHelper.createTempFile(data);
+        for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+            MessageDigest md = DigestsUtil.getMessageDigest(algorithm);
+            byte[] expected = md.digest(data);
+
+            DigestsTestHelper.ProgressObserverStub obs = new DigestsTestHelper.ProgressObserverStub();
+            DigestsUtil.updateFileDigest(md, file, obs);
+            assertTrue(Arrays.equals(expected, md.digest()));
+            assertTrue(obs.getCalls().size() > 2);
+            assertEquals(Integer.valueOf(100), obs.getCalls().get(obs.getCalls().size() - 1));
+
+            obs = new DigestsTestHelper.ProgressObserverStub();
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                DigestsUtil.updateMappedDigest(md, channel, file.length(), obs);
+            } finally {
+                channel.close();
+            }
+            assertTrue(Arrays.equals(expected, md.digest()));
+            assertTrue(obs.getCalls().size() > 2);
+            assertEquals(Integer.valueOf(100), obs.getCalls().get(obs.getCalls().size() - 1));
+        }
+    }
+
+    @Test
+    public void testRawArchiveDigests() throws Exception {
+        File zipFile = FileTestHelper.createTempFile(".zip");
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(zipFile));
+        zout.putNextEntry(new ZipEntry("a.txt"));
+        zout.write(dataA);
+        zout.closeEntry();
+        zout.close();
+        Resource archive = FileTestHelper.createLocalResource(ResourceType.RESOURCE_ARCHIVE, zipFile);
+
+        Digests sha256 = createDigests(DigestAlgorithm.SHA256, archive);
+        assertTrue(sha256.hasRawArchiveDigests());
+        MessageDigest md = DigestsUtil.getMessageDigest(DigestAlgorithm.SHA256);
+        DigestsUtil.updateMessageDigest(md, new FileInputStream(zipFile), zipFile.length(), null);
+        assertEquals(StringUtil.hexlate(md.digest()), sha256.getResourceDigest(archive));
+        assertTrue(DigestsUtil.validateResourceDigest(archive, sha256));
+        assertTrue(DigestsUtil.validateLocalResourceDigest(archive, sha256, null));
+        assertNotNull(DigestsUtil.createStreamingDigest(archive, sha256));
+
+        // the original digests still digest archives entry by entry
+        Digests md5 = DigestsTestHelper.createDigests(archive);
+        assertFalse(md5.hasRawArchiveDigests());
+        assertEquals(StringUtil.hexlate(DigestsUtil.getMessageDigest().digest(dataA)), md5.getResourceDigest(archive));
+        assertTrue(DigestsUtil.validateResourceDigest(archive, md5));
+        assertNull(DigestsUtil.createStreamingDigest(archive, md5));
+    }
+}
@@ -0,0 +1,136 @@
+package com.threerings.getdown.util;
+
+import com.samskivert.io.StreamUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.threerings.getdown.FileTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetadataCacheTest {
+    @Before
+    public void startServer() throws IOException {
+        appdir = FileTestHelper.createTempFile(".dir");
+        appdir.delete();
+        appdir.mkdir();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        for (File file : appdir.listFiles()) {
+            file.delete();
+        }
+        appdir.delete();
+    }
+
+    @Test
+    public void testConditionalDownload() throws IOException {
+        File target = new File(appdir, "getdown.txt");
+        assertTrue(new MetadataCache(appdir).download(url(), target, target));
+        assertEquals(CONTENTS, read(target));
+        assertNull(conditions.get(0));
+        // the cache was written aside and moved into place
+        assertTrue(new File(appdir, MetadataCache.CACHE_FILE_NAME).exists());
+        assertFalse(new File(appdir, MetadataCache.CACHE_FILE_NAME + "_new").exists());
+
+        // a fresh cache (i.e. the next launch) should send our validator and reuse our copy
+        assertFalse(new MetadataCache(appdir).download(url(), target, target));
+        assertEquals("\"v1\"", conditions.get(1));
+        assertEquals(CONTENTS, read(target));
+
+        // once the file changes on the server, we should download it again
+        etag = "\"v2\"";
+        assertTrue(new MetadataCache(appdir).download(url(), target, target));
+        assertEquals("\"v1\"", conditions.get(2));
+    }
+
+    @Test
+    public void testModifiedLocalCopyIsDownloadedAgain() throws IOException {
+        File target = new File(appdir, "getdown.txt");
+        assertTrue(new MetadataCache(appdir).download(url(), target, target));
+
+        // our copy no longer matches what the validator describes, so we mustn't send it
+        write(target, "corrupted");
+        assertTrue(new MetadataCache(appdir).download(url(), target, target));
+        assertNull(conditions.get(1));
+        assertEquals(CONTENTS, read(target));
+    }
+
+    @Test
+    public void testConditionalReadLine() throws IOException {
+        assertEquals("appbase = foo", new MetadataCache(appdir).readLine(url()));
+        assertEquals("appbase = foo", new MetadataCache(appdir).readLine(url()));
+        assertEquals(2, conditions.size());
+        assertNull(conditions.get(0));
+        assertEquals("\"v1\"", conditions.get(1));
+    }
+
+    private static String read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return StreamUtil.toString(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File file, String data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private URL url() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/getdown.txt");
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+        conditions.add(condition);
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(condition)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        byte[] data = CONTENTS.getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, data.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(data);
+        out.close();
+    }
+
+    private static final String CONTENTS = "appbase = foo\nclass = bar\n";
+
+    private File appdir;
+    private HttpServer server;
+    private volatile String etag = "\"v1\"";
+    private final List<String> conditions = Collections.synchronizedList(new ArrayList<String>());
+}
@@ -0,0 +1,79 @@
+package com.threerings.getdown.util;
+
+import com.threerings.getdown.DigestsTestHelper;
+import com.threerings.getdown.data.Digests;
+import com.threerings.getdown.data.Resource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ResourceVerifierTest {
+    private List<Resource> resources;
+    private Digests digests;
+    private long totalSize;
+
+    @Before
+    public void createResources() throws IOException {
+        resources = new ArrayList<Resource>();
+        for (int ii = 1; ii <= 8; ii++) {
+            resources.add(DigestsTestHelper.createResource(ii * DigestsUtil.DIGEST_BUFFER_SIZE / 2));
+        }
+        digests = DigestsTestHelper.createDigests(resources.toArray(new Resource[resources.size()]));
+        totalSize = 0L;
+        for (Resource rsrc : resources) {
+            totalSize += rsrc.getLocalFile().length();
+        }
+    }
+
+    @Test
+    public void shouldVerifyResourcesInParallel() throws Exception {
+        corrupt(resources.get(2));
+        corrupt(resources.get(5));
+        Set<Resource> expected = new HashSet<Resource>(resources);
+        expected.remove(resources.get(2));
+        expected.remove(resources.get(5));
+
+        DigestsTestHelper.ProgressObserverStub obs = new DigestsTestHelper.ProgressObserverStub();
+        Set<Resource> verified = new ResourceVerifier(digests, 4).verify(
+            resources, new MetaProgressObserver(obs, totalSize));
+
+        assertEquals(expected, verified);
+        assertProgress(obs.getCalls());
+    }
+
+    @Test
+    public void shouldVerifyResourcesSequentially() throws Exception {
+        corrupt(resources.get(0));
+        Set<Resource> expected = new HashSet<Resource>(resources);
+        expected.remove(resources.get(0));
+
+        DigestsTestHelper.ProgressObserverStub obs = new DigestsTestHelper.ProgressObserverStub();
+        Set<Resource> verified = new ResourceVerifier(digests, 1).verify(
+            resources, new MetaProgressObserver(obs, totalSize));
+
+        assertEquals(expected, verified);
+        assertProgress(obs.getCalls());
+    }
+
+    private static void assertProgress(List<Integer> calls) {
+        assertFalse(calls.isEmpty());
+        for (int ii = 1; ii < calls.size(); ii++) {
+            assertTrue("progress went backwards: " + calls, calls.get(ii) >= calls.get(ii - 1));
+        }
+        assertEquals(Integer.valueOf(100), calls.get(calls.size() - 1));
+    }
+
+    private static void corrupt(Resource rsrc) throws IOException {
+        FileOutputStream out = new FileOutputStream(rsrc.getLocalFile(), true);
+        out.write('!');
+        out.close();
+    }
+}
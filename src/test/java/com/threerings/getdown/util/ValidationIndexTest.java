@@ -0,0 +1,151 @@
+package com.threerings.getdown.util;
+
+import com.threerings.getdown.FileTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ValidationIndexTest {
+    private File appdir;
+    private File a, b;
+
+    @Before
+    public void createAppdir() throws IOException {
+        File tmp = FileTestHelper.createTempFile();
+        tmp.delete();
+        appdir = new File(tmp.getPath() + ".dir");
+        assertTrue(appdir.mkdirs());
+        a = write("a.txt", "aaaa");
+        b = write("b.txt", "bbbbbbbb");
+    }
+
+    @After
+    public void deleteAppdir() {
+        for (File file : appdir.listFiles()) {
+            file.delete();
+        }
+        appdir.delete();
+    }
+
+    @Test
+    public void shouldRememberValidResources() throws IOException {
+        ValidationIndex index = new ValidationIndex(appdir);
+        assertFalse(index.isValid("a.txt", a, null));
+        index.markValid("a.txt", a, "abcd");
+        index.markValid("b.txt", b, null);
+
+        index = new ValidationIndex(appdir);
+        assertTrue(index.isValid("a.txt", a, null));
+        assertTrue(index.isValid("a.txt", a, "abcd"));
+        assertFalse(index.isValid("a.txt", a, "ef01"));
+        assertTrue(index.isValid("b.txt", b, "ef01"));
+    }
+
+    @Test
+    public void shouldNotTrustChangedFiles() throws IOException {
+        ValidationIndex index = new ValidationIndex(appdir);
+        index.markValid("a.txt", a, null);
+        index.markValid("b.txt", b, null);
+
+        FileOutputStream out = new FileOutputStream(a, true);
+        out.write('!');
+        out.close();
+        assertFalse(index.isValid("a.txt", a, null));
+
+        assertTrue(b.setLastModified(b.lastModified() - 10000L));
+        assertFalse(index.isValid("b.txt", b, null));
+
+        index.markValid("b.txt", b, null);
+        assertTrue(index.isValid("b.txt", b, null));
+        b.delete();
+        assertFalse(index.isValid("b.txt", b, null));
+    }
+
+    @Test
+    public void shouldRememberDigestOfChangedFiles() throws IOException {
+        ValidationIndex index = new ValidationIndex(appdir);
+        index.markValid("a.txt", a, "abcd");
+        index.markValid("b.txt", b, null);
+        assertTrue(a.setLastModified(a.lastModified() - 10000L));
+        assertFalse(index.isValid("a.txt", a, "abcd"));
+        assertTrue(index.wasValidated("a.txt", "abcd"));
+        assertFalse(index.wasValidated("a.txt", "ef01"));
+        assertFalse(index.wasValidated("b.txt", null));
+        index.clear("a.txt");
+        assertFalse(index.wasValidated("a.txt", "abcd"));
+    }
+
+    @Test
+    public void shouldPersistClearedResources() throws IOException {
+        ValidationIndex index = new ValidationIndex(appdir);
+        index.markValid("a.txt", a, null);
+        index.markValid("b.txt", b, null);
+        index.clear("a.txt");
+        assertFalse(new ValidationIndex(appdir).isValid("a.txt", a, null));
+        assertTrue(new ValidationIndex(appdir).isValid("b.txt", b, null));
+
+        index.markValid("a.txt", a, null);
+        index.clear(Arrays.asList("a.txt", "b.txt"));
+        index = new ValidationIndex(appdir);
+        assertFalse(index.isValid("a.txt", a, null));
+        assertFalse(index.isValid("b.txt", b, null));
+    }
+
+    @Test
+    public void shouldIgnoreTornLines() throws IOException {
+        new ValidationIndex(appdir).markValid("a.txt", a, null);
+        FileWriter out = new FileWriter(new File(appdir, ValidationIndex.INDEX_FILE_NAME), true);
+        out.write("v\t8\t12");
+        out.close();
+
+        ValidationIndex index = new ValidationIndex(appdir);
+        assertTrue(index.isValid("a.txt", a, null));
+        assertFalse(index.isValid("b.txt", b, null));
+    }
+
+    @Test
+    public void shouldCompactSupersededLines() throws IOException {
+        ValidationIndex index = new ValidationIndex(appdir);
+        for (int ii = 0; ii < 200; ii++) {
+            index.markValid("a.txt", a, null);
+        }
+        File file = new File(appdir, ValidationIndex.INDEX_FILE_NAME);
+        long length = file.length();
+
+        index = new ValidationIndex(appdir);
+        assertTrue(index.isValid("a.txt", a, null));
+        assertTrue(file.length() < length / 10);
+        assertTrue(new ValidationIndex(appdir).isValid("a.txt", a, null));
+    }
+
+    @Test
+    public void shouldDeleteLegacyMarkers() throws IOException {
+        File markerA = write("a.txtv", "");
+        File markerB = write("b.txtv", "");
+        ValidationIndex index = new ValidationIndex(appdir);
+        index.markValid("a.txt", a, null);
+        assertFalse(markerA.exists());
+        assertTrue(markerB.exists());
+
+        ValidationIndex.deleteLegacyMarker(b);
+        assertFalse(markerB.exists());
+        // which is no reason to consider the resource valid
+        assertFalse(index.isValid("b.txt", b, null));
+    }
+
+    private File write(String name, String contents) throws IOException {
+        File file = new File(appdir, name);
+        FileWriter out = new FileWriter(file);
+        out.write(contents);
+        out.close();
+        return file;
+    }
+}
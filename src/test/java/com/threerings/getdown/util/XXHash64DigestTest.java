@@ -0,0 +1,69 @@
+package com.threerings.getdown.util;
+
+import com.samskivert.util.StringUtil;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class XXHash64DigestTest {
+
+    @Test
+    public void shouldMatchReferenceHashes() throws Exception {
+        assertEquals("ef46db3751d8e999", hash(""));
+        assertEquals("d24ec4f1a98c6e5b", hash("a"));
+        assertEquals("44bc2cf5ad770999", hash("abc"));
+        assertEquals("fbcea83c8a378bf1", hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void shouldNotDependOnHowInputIsSplit() {
+        byte[] data = new byte[10000];
+        new Random(42L).nextBytes(data);
+        MessageDigest md = new XXHash64Digest();
+        byte[] expected = md.digest(data);
+
+        Random rnd = new Random(7L);
+        for (int run = 0; run < 20; run++) {
+            int offset = 0;
+            while (offset < data.length) {
+                if (rnd.nextInt(10) == 0) {
+                    md.update(data[offset++]);
+                } else {
+                    int length = Math.min(rnd.nextInt(100), data.length - offset);
+                    md.update(data, offset, length);
+                    offset += length;
+                }
+            }
+            assertTrue(Arrays.equals(expected, md.digest()));
+        }
+    }
+
+    private static String hash(String data) throws Exception {
+        return StringUtil.hexlate(new XXHash64Digest().digest(data.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void shouldDigestDirectBuffers() {
+        byte[] data = new byte[10000];
+        new Random(42L).nextBytes(data);
+        MessageDigest md = new XXHash64Digest();
+        byte[] expected = md.digest(data);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        md.update(data[0]);
+        buffer.position(1);
+        for (int limit = 1; limit < data.length; ) {
+            limit = Math.min(data.length, limit + 997);
+            buffer.limit(limit);
+            md.update(buffer);
+            assertEquals(limit, buffer.position());
+        }
+        assertTrue(Arrays.equals(expected, md.digest()));
+    }
+}